@@ -0,0 +1,274 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+/** Reads a dump written by BinaryDumpSink and replays it into another
+ * sink, e.g. an XmlDumpSink to convert it or a sink which rebuilds
+ * the entities. Value records are passed to the sink's value method
+ * as the boxed type or date they were written from.
+ */
+public class BinaryDumpReader {
+  private final InputStream in;
+
+  private final List<QName> tags = new ArrayList<>();
+
+  private byte[] buf = new byte[256];
+
+  /**
+   * @param in to read from - should be buffered
+   */
+  public BinaryDumpReader(final InputStream in) {
+    this.in = in;
+  }
+
+  /** Read the whole stream.
+   *
+   * @param sink receives the content
+   */
+  public void replay(final DumpSink sink) {
+    try {
+      final byte[] hdr = in.readNBytes(BinaryDumpSink.magic.length + 1);
+
+      if ((hdr.length != BinaryDumpSink.magic.length + 1) ||
+              !Arrays.equals(hdr, 0, BinaryDumpSink.magic.length,
+                             BinaryDumpSink.magic, 0,
+                             BinaryDumpSink.magic.length)) {
+        throw new BedeworkDatabaseException("Not a binary dump");
+      }
+
+      /* Older versions are a subset of the current one */
+      final int version = hdr[BinaryDumpSink.magic.length];
+
+      if ((version < BinaryDumpSink.minVersion) ||
+              (version > BinaryDumpSink.version)) {
+        throw new BedeworkDatabaseException(
+                "Unsupported binary dump version " + version);
+      }
+
+      final Deque<QName> open = new ArrayDeque<>();
+      final Deque<Boolean> collection = new ArrayDeque<>();
+
+      while (true) {
+        final int rec = in.read();
+
+        if (rec < 0) {
+          break;
+        }
+
+        switch (rec) {
+          case BinaryDumpSink.recDefine -> {
+            final int id = readVarint();
+
+            if (id != tags.size()) {
+              throw new BedeworkDatabaseException(
+                      "Bad tag id " + id + " in binary dump");
+            }
+            tags.add(new QName(readString()));
+          }
+          case BinaryDumpSink.recOpen -> {
+            final QName tag = tag(readVarint());
+            open.push(tag);
+            collection.push(false);
+            sink.openTag(tag);
+          }
+          case BinaryDumpSink.recCollection -> {
+            if (version < 2) {
+              throw new BedeworkDatabaseException(
+                      "Collection record in version " + version +
+                              " binary dump");
+            }
+
+            final QName tag = tag(readVarint());
+            open.push(tag);
+            collection.push(true);
+            sink.openCollection(tag);
+          }
+          case BinaryDumpSink.recClose -> {
+            if (open.isEmpty()) {
+              throw new BedeworkDatabaseException(
+                      "Unbalanced close in binary dump");
+            }
+            if (collection.pop()) {
+              sink.closeCollection(open.pop());
+            } else {
+              sink.closeTag(open.pop());
+            }
+          }
+          case BinaryDumpSink.recProperty -> {
+            final QName tag = tag(readVarint());
+            sink.property(tag, readString());
+          }
+          case BinaryDumpSink.recValue -> {
+            if (version < 3) {
+              throw new BedeworkDatabaseException(
+                      "Value record in version " + version +
+                              " binary dump");
+            }
+
+            final QName tag = tag(readVarint());
+            sink.value(tag, readValue());
+          }
+          default -> throw new BedeworkDatabaseException(
+                  "Bad record type " + rec + " in binary dump");
+        }
+      }
+
+      if (!open.isEmpty()) {
+        throw new BedeworkDatabaseException("Truncated binary dump");
+      }
+
+      sink.flush();
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private QName tag(final int id) {
+    if ((id < 0) || (id >= tags.size())) {
+      throw new BedeworkDatabaseException(
+              "Undefined tag id " + id + " in binary dump");
+    }
+
+    return tags.get(id);
+  }
+
+  private Object readValue() throws IOException {
+    final int type = in.read();
+
+    return switch (type) {
+      case BinaryDumpSink.valInt -> (int)readZigzag();
+      case BinaryDumpSink.valLong -> readZigzag();
+      case BinaryDumpSink.valFalse -> false;
+      case BinaryDumpSink.valTrue -> true;
+      case BinaryDumpSink.valDouble ->
+              Double.longBitsToDouble(readFixed(8));
+      case BinaryDumpSink.valFloat ->
+              Float.intBitsToFloat((int)readFixed(4));
+      case BinaryDumpSink.valChar -> (char)readFixed(2);
+      case BinaryDumpSink.valTimestamp -> {
+        final long secs = readZigzag();
+        final int nanos = readVarint();
+
+        yield Timestamp.valueOf(
+                LocalDateTime.ofEpochSecond(secs, nanos,
+                                            ZoneOffset.UTC));
+      }
+      case BinaryDumpSink.valSqlDate ->
+              java.sql.Date.valueOf(LocalDate.ofEpochDay(readZigzag()));
+      case BinaryDumpSink.valDate -> new Date(readZigzag());
+      case -1 -> throw new EOFException();
+      default -> throw new BedeworkDatabaseException(
+              "Bad value type " + type + " in binary dump");
+    };
+  }
+
+  private String readString() throws IOException {
+    final int len = readVarint();
+
+    if (len > buf.length) {
+      buf = new byte[Math.max(len, buf.length * 2)];
+    }
+
+    if (in.readNBytes(buf, 0, len) != len) {
+      throw new EOFException();
+    }
+
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private long readZigzag() throws IOException {
+    long val = 0;
+
+    for (int shift = 0; shift < 70; shift += 7) {
+      final int b = in.read();
+
+      if (b < 0) {
+        throw new EOFException();
+      }
+
+      val |= (long)(b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return (val >>> 1) ^ -(val & 1);
+      }
+    }
+
+    throw new BedeworkDatabaseException("Bad varint in binary dump");
+  }
+
+  /* Big endian */
+  private long readFixed(final int bytes) throws IOException {
+    long val = 0;
+
+    for (int i = 0; i < bytes; i++) {
+      final int b = in.read();
+
+      if (b < 0) {
+        throw new EOFException();
+      }
+
+      val = (val << 8) | b;
+    }
+
+    return val;
+  }
+
+  private int readVarint() throws IOException {
+    int val = 0;
+
+    for (int shift = 0; shift < 35; shift += 7) {
+      final int b = in.read();
+
+      if (b < 0) {
+        throw new EOFException();
+      }
+
+      val |= (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return val;
+      }
+    }
+
+    throw new BedeworkDatabaseException("Bad varint in binary dump");
+  }
+}
@@ -0,0 +1,362 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** Writes the dump in a compact binary form. After a header each
+ * record is a type byte followed by its fields. Ids and lengths are
+ * unsigned varints; strings are a varint byte count and UTF-8.
+ *
+ * <pre>
+ *   header:   "BWDB" version - 2 added collection, 3 added value
+ *   define:   1 id name     - gives a tag an id, before its first use
+ *   open:     2 id
+ *   close:    3
+ *   property: 4 id string
+ *   collection: 5 id        - opens an element holding a collection
+ *   value:    6 id type data
+ * </pre>
+ *
+ * <p>A value record holds a number, boolean, character or date in
+ * binary. Integers are zigzag varints, floating point numbers their
+ * IEEE bits, big endian. A Timestamp is its local date and time as
+ * zigzag varint seconds and varint nanoseconds, a java.sql.Date its
+ * zigzag varint epoch day, so both read back with the same text
+ * whatever the time zone. A java.util.Date is its zigzag varint
+ * milliseconds. Any other value is written as a property.</p>
+ *
+ * <p>Each tag name is written once, so the tags of an entity class
+ * cost a byte or two after its first occurrence. Nothing is escaped.
+ * BinaryDumpReader reads it back.</p>
+ */
+public class BinaryDumpSink implements DumpSink {
+  static final byte[] magic = {'B', 'W', 'D', 'B'};
+  static final int version = 3;
+
+  /* Readers accept this version up to the current one */
+  static final int minVersion = 1;
+
+  static final int recDefine = 1;
+  static final int recOpen = 2;
+  static final int recClose = 3;
+  static final int recProperty = 4;
+  static final int recCollection = 5;
+  static final int recValue = 6;
+
+  /* Value types - Integer, Short and Byte are all valInt */
+  static final int valInt = 1;
+  static final int valLong = 2;
+  static final int valFalse = 3;
+  static final int valTrue = 4;
+  static final int valDouble = 5;
+  static final int valFloat = 6;
+  static final int valChar = 7;
+  static final int valTimestamp = 8;
+  static final int valSqlDate = 9;
+  static final int valDate = 10;
+
+  private final OutputStream out;
+
+  private final Map<QName, Integer> tagIds = new HashMap<>();
+
+  private char[] cbuf = new char[256];
+  private byte[] bbuf = new byte[768];
+
+  /**
+   * @param out to write to - should be buffered
+   */
+  public BinaryDumpSink(final OutputStream out) {
+    this.out = out;
+
+    try {
+      out.write(magic);
+      out.write(version);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void openTag(final QName tag) {
+    try {
+      final int id = tagId(tag);
+      out.write(recOpen);
+      writeVarint(id);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void openCollection(final QName tag) {
+    try {
+      final int id = tagId(tag);
+      out.write(recCollection);
+      writeVarint(id);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void closeCollection(final QName tag) {
+    closeTag(tag);
+  }
+
+  @Override
+  public void closeTag(final QName tag) {
+    try {
+      out.write(recClose);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void property(final QName tag, final String val) {
+    try {
+      final int id = tagId(tag);
+      out.write(recProperty);
+      writeVarint(id);
+      writeString(val);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void value(final QName tag, final Object val) {
+    try {
+      final int id = tagId(tag);
+      final int type = valueType(val);
+
+      if (type == 0) {
+        out.write(recProperty);
+        writeVarint(id);
+
+        if (val instanceof final String s) {
+          writeString(s);
+        } else if (val instanceof final char[] cs) {
+          writeChars(cs);
+        } else {
+          writeString(DumpChars.toString(val));
+        }
+        return;
+      }
+
+      out.write(recValue);
+      writeVarint(id);
+      out.write(type);
+
+      switch (type) {
+        case valInt -> writeZigzag(((Number)val).intValue());
+        case valLong -> writeZigzag((Long)val);
+        case valDouble ->
+                writeFixed(Double.doubleToRawLongBits((Double)val), 8);
+        case valFloat ->
+                writeFixed(Float.floatToRawIntBits((Float)val), 4);
+        case valChar -> writeFixed((Character)val, 2);
+        case valTimestamp -> {
+          final Timestamp ts = (Timestamp)val;
+          writeZigzag(ts.toLocalDateTime()
+                        .toEpochSecond(ZoneOffset.UTC));
+          writeVarint(ts.getNanos());
+        }
+        case valSqlDate ->
+                writeZigzag(((java.sql.Date)val).toLocalDate()
+                                                .toEpochDay());
+        case valDate -> writeZigzag(((Date)val).getTime());
+        default -> {}  // Booleans are all in the type
+      }
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void flush() {
+    try {
+      out.flush();
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private int tagId(final QName tag) throws IOException {
+    final Integer id = tagIds.get(tag);
+
+    if (id != null) {
+      return id;
+    }
+
+    final int newId = tagIds.size();
+    tagIds.put(tag, newId);
+
+    out.write(recDefine);
+    writeVarint(newId);
+    writeString(tag.getLocalPart());
+
+    return newId;
+  }
+
+  /* The value record type for val or 0 to write it as a string */
+  private static int valueType(final Object val) {
+    final Class<?> cl = val.getClass();
+
+    if ((cl == Integer.class) || (cl == Short.class) ||
+            (cl == Byte.class)) {
+      return valInt;
+    }
+
+    if (cl == Long.class) {
+      return valLong;
+    }
+
+    if (cl == Boolean.class) {
+      if ((Boolean)val) {
+        return valTrue;
+      }
+      return valFalse;
+    }
+
+    if (cl == Double.class) {
+      return valDouble;
+    }
+
+    if (cl == Float.class) {
+      return valFloat;
+    }
+
+    if (cl == Character.class) {
+      return valChar;
+    }
+
+    if (cl == Timestamp.class) {
+      return valTimestamp;
+    }
+
+    if (cl == java.sql.Date.class) {
+      return valSqlDate;
+    }
+
+    if (cl == Date.class) {
+      return valDate;
+    }
+
+    return 0;
+  }
+
+  /* Encode into a reused buffer rather than getBytes() */
+  private void writeString(final String val) throws IOException {
+    final int len = val.length();
+
+    if (len > cbuf.length) {
+      cbuf = new char[Math.max(len, cbuf.length * 2)];
+    }
+
+    val.getChars(0, len, cbuf, 0);
+    writeChars(cbuf, len);
+  }
+
+  private void writeChars(final char[] val) throws IOException {
+    writeChars(val, val.length);
+  }
+
+  private void writeChars(final char[] val,
+                          final int len) throws IOException {
+    /* At most 3 bytes per char - a surrogate pair is 4 bytes for 2 */
+    if ((len * 3) > bbuf.length) {
+      bbuf = new byte[Math.max(len * 3, bbuf.length * 2)];
+    }
+
+    int pos = 0;
+
+    for (int i = 0; i < len; i++) {
+      final char ch = val[i];
+
+      if (ch < 0x80) {
+        bbuf[pos++] = (byte)ch;
+      } else if (ch < 0x800) {
+        bbuf[pos++] = (byte)(0xc0 | (ch >> 6));
+        bbuf[pos++] = (byte)(0x80 | (ch & 0x3f));
+      } else if (Character.isHighSurrogate(ch) && ((i + 1) < len) &&
+              Character.isLowSurrogate(val[i + 1])) {
+        final int cp = Character.toCodePoint(ch, val[i + 1]);
+        i++;
+        bbuf[pos++] = (byte)(0xf0 | (cp >> 18));
+        bbuf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+        bbuf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+        bbuf[pos++] = (byte)(0x80 | (cp & 0x3f));
+      } else if (Character.isSurrogate(ch)) {
+        // Unpaired - as String.getBytes does
+        bbuf[pos++] = '?';
+      } else {
+        bbuf[pos++] = (byte)(0xe0 | (ch >> 12));
+        bbuf[pos++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+        bbuf[pos++] = (byte)(0x80 | (ch & 0x3f));
+      }
+    }
+
+    writeVarint(pos);
+    out.write(bbuf, 0, pos);
+  }
+
+  private void writeZigzag(final long val) throws IOException {
+    long v = (val << 1) ^ (val >> 63);
+
+    while ((v & ~0x7fL) != 0) {
+      out.write((int)((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+
+    out.write((int)v);
+  }
+
+  /* Big endian */
+  private void writeFixed(final long val,
+                          final int bytes) throws IOException {
+    for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+      out.write((int)(val >>> shift));
+    }
+  }
+
+  private void writeVarint(int val) throws IOException {
+    while ((val & ~0x7f) != 0) {
+      out.write((val & 0x7f) | 0x80);
+      val >>>= 7;
+    }
+
+    out.write(val);
+  }
+}
@@ -0,0 +1,480 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Dumps the database to a file of gzip compressed chunks which can
+ * be resumed after a failure.
+ *
+ * <p>Each chunk holds up to chunkEntities entities of one class as a
+ * complete dump in the format set (the dump element or array
+ * wrapping them) compressed as one gzip member. Chunks can be
+ * decoded on their own; the whole file is also a valid gzip stream
+ * giving the chunks one after the other.</p>
+ *
+ * <p>After each chunk is forced to disk the manifest (the file name
+ * plus ".manifest") records where it ends, its class and the last
+ * id in it. If a dump is interrupted, running again with the same
+ * file truncates anything after the last recorded chunk and carries
+ * on after the last id. Classes without a numeric id restart from
+ * their first chunk. A resumed dump is not a single consistent
+ * snapshot.</p>
+ */
+public class ChunkedDump implements Logged {
+  private final SessionFactory sessFactory;
+  private final File file;
+  private final File manifestFile;
+
+  private DumpFormat format = DumpFormat.xml;
+  private boolean dedupe;
+  private DumpStats stats;
+  private int chunkEntities = 10000;
+  private int fetchSize = 500;
+  private int bufferSize = 1024 * 1024;
+
+  private final Properties manifest = new Properties();
+
+  private FileChannel channel;
+
+  private long dumped;
+
+  /* Current chunk */
+  private GZIPOutputStream gz;
+  private DumpSink sink;
+  private DumpContext ctx;
+  private int inChunk;
+
+  /**
+   * @param sessFactory to read from
+   * @param file to write to
+   */
+  public ChunkedDump(final SessionFactory sessFactory,
+                     final File file) {
+    this.sessFactory = sessFactory;
+    this.file = file;
+    manifestFile = new File(file.getPath() + ".manifest");
+  }
+
+  /**
+   * @param val format inside the chunks - default xml
+   */
+  public void setFormat(final DumpFormat val) {
+    format = val;
+  }
+
+  /**
+   * @param val true to dump repeated references as back references
+   *            within each chunk. See DumpContext.
+   */
+  public void setDedupe(final boolean val) {
+    dedupe = val;
+  }
+
+  /**
+   * @param val null or records progress
+   */
+  public void setStats(final DumpStats val) {
+    stats = val;
+  }
+
+  /**
+   * @param val entities per chunk
+   */
+  public void setChunkEntities(final int val) {
+    chunkEntities = val;
+  }
+
+  /**
+   * @param val rows fetched per round trip
+   */
+  public void setFetchSize(final int val) {
+    fetchSize = val;
+  }
+
+  /**
+   * @param val size of the buffer in front of the file channel
+   */
+  public void setBufferSize(final int val) {
+    bufferSize = val;
+  }
+
+  /**
+   * @return number of entities dumped by this run
+   */
+  public long getDumped() {
+    return dumped;
+  }
+
+  /** Dump everything, resuming from the manifest if there is an
+   * incomplete one.
+   */
+  public void dump() {
+    final long start = System.currentTimeMillis();
+
+    loadManifest();
+
+    if (Boolean.parseBoolean(manifest.getProperty("complete"))) {
+      // Start again
+      manifest.clear();
+    }
+
+    final long offset = Long.parseLong(
+            manifest.getProperty("offset", "0"));
+
+    if (offset != 0) {
+      info("Resuming dump at offset " + offset);
+    }
+
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+
+    if (stats != null) {
+      stats.start();
+    }
+
+    try {
+      channel = FileChannel.open(file.toPath(),
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE);
+      channel.truncate(offset);
+      channel.position(offset);
+
+      sess.getSession().setDefaultReadOnly(true);
+      sess.getSession().setCacheMode(CacheMode.IGNORE);
+      sess.beginTransaction();
+
+      for (final String name: DbDump.getEntityNames(sessFactory)) {
+        if (Boolean.parseBoolean(manifest.getProperty(name + ".done"))) {
+          continue;
+        }
+
+        dumpEntity(sess, name);
+      }
+
+      sess.commit();
+
+      manifest.setProperty("complete", "true");
+      saveManifest();
+    } catch (final Throwable t) {
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+        } catch (final Throwable ignored) {}
+      }
+
+      if (t instanceof final BedeworkDatabaseException bde) {
+        throw bde;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    } finally {
+      if (stats != null) {
+        stats.finish();
+      }
+
+      if (sess.isOpen()) {
+        sess.close();
+      }
+
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (final Throwable ignored) {}
+        channel = null;
+      }
+    }
+
+    info("Dumped " + dumped + " entities in " +
+                 (System.currentTimeMillis() - start) + " millis");
+  }
+
+  /** Open one chunk of a chunked dump for reading.
+   *
+   * @param file the dump
+   * @param chunk number of the chunk - from 0
+   * @return the decompressed chunk
+   */
+  public static InputStream openChunk(final File file,
+                                      final int chunk) {
+    final Properties mf = new Properties();
+
+    try (final Reader rdr = new FileReader(file.getPath() + ".manifest")) {
+      mf.load(rdr);
+
+      final String pos = mf.getProperty("chunk." + chunk + ".start");
+      if (pos == null) {
+        throw new BedeworkDatabaseException("No chunk " + chunk +
+                                                    " in " + file);
+      }
+
+      final FileChannel fc = FileChannel.open(file.toPath(),
+                                              StandardOpenOption.READ);
+      fc.position(Long.parseLong(pos));
+
+      return new GZIPInputStream(Channels.newInputStream(fc), 64 * 1024);
+    } catch (final BedeworkDatabaseException bde) {
+      throw bde;
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void dumpEntity(final HibSessionImpl sess,
+                          final String name) throws IOException {
+    final EntityPersister persister =
+            ((SessionFactoryImplementor)sessFactory)
+                    .getMetamodel().entityPersister(name);
+    final String idName = persister.getIdentifierPropertyName();
+    final Class<?> idClass = persister.getIdentifierType().getReturnedClass();
+    final boolean numericId = (idName != null) &&
+            ((idClass == Long.class) || (idClass == Integer.class));
+
+    final String lastId = manifest.getProperty(name + ".lastId");
+    final String classStart = manifest.getProperty(name + ".start");
+
+    if ((lastId != null) && !numericId) {
+      // Can't carry on within the class - drop its chunks
+      truncate(Long.parseLong(classStart));
+    }
+
+    if ((lastId == null) || !numericId) {
+      manifest.setProperty(name + ".start",
+                           String.valueOf(channel.position()));
+      manifest.remove(name + ".lastId");
+      sess.createQuery(DbDump.getQuery(sessFactory, name, null));
+    } else {
+      info("Resuming " + name + " after id " + lastId);
+      sess.createQuery(DbDump.getQuery(sessFactory, name,
+                                       "e." + idName + " > :lastId"));
+      if (idClass == Integer.class) {
+        sess.setInt("lastId", Integer.parseInt(lastId));
+      } else {
+        sess.setLong("lastId", Long.parseLong(lastId));
+      }
+    }
+
+    sess.setFetchSize(fetchSize);
+
+    final ScrollableResults sr = sess.scroll();
+    Object id = null;
+
+    try {
+      while (sr.next()) {
+        final Object o = sr.get(0);
+
+        if (sink == null) {
+          startChunk();
+        }
+
+        ((DumpEntity<?>)o).dump(ctx, DumpType.def, false);
+        id = sess.getSession().getIdentifier(o);
+        inChunk++;
+        dumped++;
+
+        if (inChunk >= chunkEntities) {
+          endChunk(name, id);
+          sess.clear();
+        }
+      }
+    } finally {
+      sr.close();
+    }
+
+    if (sink != null) {
+      endChunk(name, id);
+    }
+
+    sess.clear();
+
+    manifest.setProperty(name + ".done", "true");
+    saveManifest();
+  }
+
+  private void startChunk() throws IOException {
+    final OutputStream out = new FilterOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel),
+                                     bufferSize)) {
+      @Override
+      public void write(final byte[] b,
+                        final int off,
+                        final int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        // Leave the channel open for the next chunk
+        flush();
+      }
+    };
+
+    DumpStats.CountingOutputStream counted = null;
+
+    if (stats == null) {
+      gz = new GZIPOutputStream(out, 64 * 1024);
+    } else {
+      counted = stats.count(out);
+      gz = new GZIPOutputStream(counted, 64 * 1024);
+    }
+
+    sink = format.newSink(gz);
+    ctx = new DumpContext(sink, dedupe);
+    ctx.setStats(stats);
+    ctx.setCounted(counted);
+    sink.openCollection(DbDump.dumpTag);
+    inChunk = 0;
+  }
+
+  private void endChunk(final String name,
+                        final Object lastId) throws IOException {
+    final int chunks = Integer.parseInt(
+            manifest.getProperty("chunks", "0"));
+    final long chunkStart = Long.parseLong(
+            manifest.getProperty("offset", "0"));
+
+    sink.closeCollection(DbDump.dumpTag);
+    sink.flush();
+    gz.close();   // Finishes the member and flushes to the channel
+    channel.force(false);
+
+    manifest.setProperty("chunk." + chunks + ".start",
+                         String.valueOf(chunkStart));
+    manifest.setProperty("chunk." + chunks + ".entity", name);
+    manifest.setProperty("chunk." + chunks + ".count",
+                         String.valueOf(inChunk));
+    manifest.setProperty("chunks", String.valueOf(chunks + 1));
+    manifest.setProperty("offset", String.valueOf(channel.position()));
+
+    if (lastId != null) {
+      manifest.setProperty(name + ".lastId", String.valueOf(lastId));
+    }
+
+    saveManifest();
+
+    sink = null;
+    ctx = null;
+    gz = null;
+  }
+
+  /* Drop chunks starting at or after pos */
+  private void truncate(final long pos) throws IOException {
+    channel.truncate(pos);
+    channel.position(pos);
+    manifest.setProperty("offset", String.valueOf(pos));
+
+    final int chunks = Integer.parseInt(
+            manifest.getProperty("chunks", "0"));
+    int keep = 0;
+
+    while ((keep < chunks) &&
+            (Long.parseLong(manifest.getProperty(
+                    "chunk." + keep + ".start")) < pos)) {
+      keep++;
+    }
+
+    for (int i = keep; i < chunks; i++) {
+      manifest.remove("chunk." + i + ".start");
+      manifest.remove("chunk." + i + ".entity");
+      manifest.remove("chunk." + i + ".count");
+    }
+
+    manifest.setProperty("chunks", String.valueOf(keep));
+  }
+
+  private void loadManifest() {
+    manifest.clear();
+
+    if (!manifestFile.exists()) {
+      return;
+    }
+
+    try (final Reader rdr = new FileReader(manifestFile)) {
+      manifest.load(rdr);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* Write to a temp file and rename so we never leave a partial file */
+  private void saveManifest() {
+    try {
+      final File tmp = new File(manifestFile.getPath() + ".tmp");
+
+      try (final Writer wtr = new FileWriter(tmp)) {
+        manifest.store(wtr, "Chunked dump manifest");
+      }
+
+      Files.move(tmp.toPath(), manifestFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,562 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A simple JDBC connection pool which records how long callers wait.
+ *
+ * <p>The only coordination is a semaphore limiting the number of
+ * connections handed out and a lock free deque of idle connections.
+ * The most recently returned connection is handed out first.</p>
+ *
+ * <p>Idle connections are validated before reuse if they have been
+ * idle longer than validateAfterMillis. Connections older than
+ * maxAgeMillis are closed rather than reused.</p>
+ *
+ * <p>A returned connection has any open transaction rolled back and
+ * its autocommit, isolation and read only settings restored before
+ * it goes back in the pool.</p>
+ */
+public class ConnectionPool implements Logged, ConnectionPoolMBean {
+  /* Upper bounds in microseconds for the latency histogram */
+  private static final long[] bucketLimits = {
+          10, 100, 1000, 10_000, 100_000, 1_000_000
+  };
+
+  private final String name;
+  private final Driver driver;
+  private final String url;
+  private final Properties connProps;
+  private final int maxSize;
+  private final int maxIdle;
+  private final long timeoutMillis;
+  private final long validateAfterMillis;
+  private final long maxAgeMillis;
+  private final boolean autocommit;
+  private final Integer isolation;
+
+  /* Isolation of a new connection if none was configured */
+  private volatile Integer defaultIsolation;
+
+  /* When each connection handed out was created */
+  private final ConcurrentHashMap<Connection, Long> createdAt =
+          new ConcurrentHashMap<>();
+
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<IdleConnection> idle =
+          new ConcurrentLinkedDeque<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong destroyed = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong resetFailures = new AtomicLong();
+  private final AtomicLongArray histogram =
+          new AtomicLongArray(bucketLimits.length + 1);
+
+  private volatile boolean closed;
+
+  private static final class IdleConnection {
+    final Connection conn;
+    final long createdAt;
+    final long returnedAt;
+
+    IdleConnection(final Connection conn,
+                   final long createdAt) {
+      this.conn = conn;
+      this.createdAt = createdAt;
+      returnedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * @param name of the pool - used for JMX
+   * @param driver null to use the DriverManager
+   * @param url jdbc url
+   * @param connProps properties for the driver - user, password etc
+   * @param maxSize max connections handed out
+   * @param maxIdle max connections kept in the pool
+   * @param timeoutMillis how long to wait for a connection
+   * @param validateAfterMillis validate connections idle this long
+   * @param maxAgeMillis close connections older than this - 0 for
+   *                     no limit
+   * @param autocommit autocommit setting for new connections
+   * @param isolation null or isolation level for new connections
+   */
+  public ConnectionPool(final String name,
+                        final Driver driver,
+                        final String url,
+                        final Properties connProps,
+                        final int maxSize,
+                        final int maxIdle,
+                        final long timeoutMillis,
+                        final long validateAfterMillis,
+                        final long maxAgeMillis,
+                        final boolean autocommit,
+                        final Integer isolation) {
+    this.name = name;
+    this.driver = driver;
+    this.url = url;
+    this.connProps = connProps;
+    this.maxSize = maxSize;
+    this.maxIdle = maxIdle;
+    this.timeoutMillis = timeoutMillis;
+    this.validateAfterMillis = validateAfterMillis;
+    this.maxAgeMillis = maxAgeMillis;
+    this.autocommit = autocommit;
+    this.isolation = isolation;
+
+    permits = new Semaphore(maxSize);
+  }
+
+  /**
+   * @return name of this pool
+   */
+  public String getName() {
+    return name;
+  }
+
+  /** Get a connection, waiting up to the timeout for one to be
+   * returned if the pool is at its maximum.
+   *
+   * @return a connection
+   * @throws SQLException on timeout or failure to connect
+   */
+  public Connection getConnection() throws SQLException {
+    if (closed) {
+      throw new SQLException("Pool " + name + " is closed");
+    }
+
+    final long start = System.nanoTime();
+
+    if (!permits.tryAcquire()) {
+      waits.incrementAndGet();
+
+      final boolean ok;
+      try {
+        ok = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for a connection", ie);
+      }
+
+      final long waited = System.nanoTime() - start;
+      totalWaitNanos.addAndGet(waited);
+      if (waited > maxWaitNanos.get()) {
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+      }
+
+      if (!ok) {
+        timeouts.incrementAndGet();
+        throw new SQLTimeoutException(
+                "Timed out after " + timeoutMillis +
+                        "ms waiting for a connection from pool " +
+                        name + ". Active: " + active.get());
+      }
+    }
+
+    try {
+      final Connection conn = takeIdle();
+
+      active.incrementAndGet();
+      acquired.incrementAndGet();
+      record(System.nanoTime() - start);
+
+      return conn;
+    } catch (final Throwable t) {
+      permits.release();
+      if (t instanceof final SQLException se) {
+        throw se;
+      }
+      throw new SQLException(t);
+    }
+  }
+
+  /** Return a connection to the pool. Any open transaction is
+   * rolled back and the connection settings restored.
+   *
+   * <p>A connection this pool did not hand out, or one already
+   * returned, does not count against the pool. One already sitting
+   * in the idle pool is left alone, anything else is closed.</p>
+   *
+   * @param conn the connection
+   */
+  public void release(final Connection conn) {
+    final Long born = createdAt.remove(conn);
+
+    if (born == null) {
+      if (isIdle(conn)) {
+        warn("Connection released twice to pool " + name);
+        return;
+      }
+
+      warn("Connection not from pool " + name + " released");
+      destroy(conn);
+      return;
+    }
+
+    active.decrementAndGet();
+
+    try {
+      if (closed || conn.isClosed()) {
+        destroy(conn);
+        return;
+      }
+
+      if (tooOld(born)) {
+        expired.incrementAndGet();
+        destroy(conn);
+        return;
+      }
+
+      if (!reset(conn) || !reserveIdle()) {
+        destroy(conn);
+        return;
+      }
+
+      idle.offerFirst(new IdleConnection(conn, born));
+    } catch (final Throwable t) {
+      destroy(conn);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Close all idle connections and refuse further requests.
+   *
+   */
+  public void close() {
+    closed = true;
+
+    IdleConnection ic;
+    while ((ic = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      destroy(ic.conn);
+    }
+  }
+
+  /* ==============================================================
+   *                   MBean methods
+   * ============================================================== */
+
+  @Override
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public int getActive() {
+    return active.get();
+  }
+
+  @Override
+  public int getIdle() {
+    return idleCount.get();
+  }
+
+  @Override
+  public long getAcquired() {
+    return acquired.get();
+  }
+
+  @Override
+  public long getWaits() {
+    return waits.get();
+  }
+
+  @Override
+  public long getTotalWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+  }
+
+  @Override
+  public long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+  }
+
+  @Override
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Override
+  public long getCreated() {
+    return created.get();
+  }
+
+  @Override
+  public long getDestroyed() {
+    return destroyed.get();
+  }
+
+  @Override
+  public long getMaxAgeMillis() {
+    return maxAgeMillis;
+  }
+
+  @Override
+  public long getExpired() {
+    return expired.get();
+  }
+
+  @Override
+  public long getResetFailures() {
+    return resetFailures.get();
+  }
+
+  @Override
+  public List<String> getAcquireHistogram() {
+    final List<String> res = new ArrayList<>();
+
+    for (int i = 0; i < bucketLimits.length; i++) {
+      res.add("< " + micros(bucketLimits[i]) + ": " +
+                      histogram.get(i));
+    }
+
+    res.add(">= " + micros(bucketLimits[bucketLimits.length - 1]) +
+                    ": " + histogram.get(bucketLimits.length));
+
+    return res;
+  }
+
+  @Override
+  public void resetStats() {
+    acquired.set(0);
+    waits.set(0);
+    totalWaitNanos.set(0);
+    maxWaitNanos.set(0);
+    timeouts.set(0);
+
+    for (int i = 0; i < histogram.length(); i++) {
+      histogram.set(i, 0);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private Connection takeIdle() throws SQLException {
+    IdleConnection ic;
+
+    while ((ic = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+
+      if (tooOld(ic.createdAt)) {
+        expired.incrementAndGet();
+        destroy(ic.conn);
+        continue;
+      }
+
+      if ((System.currentTimeMillis() - ic.returnedAt) <
+              validateAfterMillis) {
+        return handOut(ic.conn, ic.createdAt);
+      }
+
+      try {
+        if (ic.conn.isValid(5)) {
+          return handOut(ic.conn, ic.createdAt);
+        }
+      } catch (final Throwable ignored) {}
+
+      destroy(ic.conn);
+    }
+
+    final Connection conn;
+    if (driver == null) {
+      conn = DriverManager.getConnection(url, connProps);
+    } else {
+      conn = driver.connect(url, connProps);
+      if (conn == null) {
+        throw new SQLException("Driver " + driver.getClass().getName() +
+                                       " does not accept url " + url);
+      }
+    }
+    created.incrementAndGet();
+
+    try {
+      conn.setAutoCommit(autocommit);
+      if (isolation != null) {
+        conn.setTransactionIsolation(isolation);
+      } else if (defaultIsolation == null) {
+        defaultIsolation = conn.getTransactionIsolation();
+      }
+    } catch (final SQLException se) {
+      destroy(conn);
+      throw se;
+    }
+
+    return handOut(conn, System.currentTimeMillis());
+  }
+
+  private Connection handOut(final Connection conn,
+                             final long born) {
+    createdAt.put(conn, born);
+
+    return conn;
+  }
+
+  /* Claim a place in the idle pool. Only succeeds if that leaves
+   * no more than maxIdle connections counted as idle.
+   */
+  private boolean reserveIdle() {
+    while (true) {
+      final int ct = idleCount.get();
+      if (ct >= maxIdle) {
+        return false;
+      }
+
+      if (idleCount.compareAndSet(ct, ct + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private boolean isIdle(final Connection conn) {
+    for (final IdleConnection ic: idle) {
+      if (ic.conn == conn) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private boolean tooOld(final long born) {
+    return (maxAgeMillis > 0) &&
+            ((System.currentTimeMillis() - born) >= maxAgeMillis);
+  }
+
+  /* Undo whatever the last user did to the connection. Rolling back
+   * first means switching autocommit on cannot commit their work.
+   */
+  private boolean reset(final Connection conn) {
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+      }
+
+      if (conn.getAutoCommit() != autocommit) {
+        conn.setAutoCommit(autocommit);
+      }
+
+      final Integer iso;
+      if (isolation != null) {
+        iso = isolation;
+      } else {
+        iso = defaultIsolation;
+      }
+
+      if ((iso != null) && (conn.getTransactionIsolation() != iso)) {
+        conn.setTransactionIsolation(iso);
+      }
+
+      if (conn.isReadOnly()) {
+        conn.setReadOnly(false);
+      }
+
+      conn.clearWarnings();
+
+      return true;
+    } catch (final Throwable t) {
+      resetFailures.incrementAndGet();
+      if (debug()) {
+        debug("Exception resetting connection: " + t.getMessage());
+      }
+
+      return false;
+    }
+  }
+
+  private void destroy(final Connection conn) {
+    destroyed.incrementAndGet();
+
+    try {
+      conn.close();
+    } catch (final Throwable t) {
+      if (debug()) {
+        debug("Exception closing connection: " + t.getMessage());
+      }
+    }
+  }
+
+  private void record(final long nanos) {
+    final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+
+    for (int i = 0; i < bucketLimits.length; i++) {
+      if (micros < bucketLimits[i]) {
+        histogram.incrementAndGet(i);
+        return;
+      }
+    }
+
+    histogram.incrementAndGet(bucketLimits.length);
+  }
+
+  private static String micros(final long val) {
+    if (val >= 1_000_000) {
+      return (val / 1_000_000) + "s";
+    }
+
+    if (val >= 1000) {
+      return (val / 1000) + "ms";
+    }
+
+    return val + "us";
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,102 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.List;
+
+/** JMX interface for the built in connection pool.
+ *
+ */
+public interface ConnectionPoolMBean {
+  /**
+   * @return max connections
+   */
+  int getMaxSize();
+
+  /**
+   * @return connections currently handed out
+   */
+  int getActive();
+
+  /**
+   * @return connections sitting in the pool
+   */
+  int getIdle();
+
+  /**
+   * @return number of connections acquired
+   */
+  long getAcquired();
+
+  /**
+   * @return number of acquisitions which had to wait for a connection
+   */
+  long getWaits();
+
+  /**
+   * @return total time spent waiting in milliseconds
+   */
+  long getTotalWaitMillis();
+
+  /**
+   * @return longest wait in milliseconds
+   */
+  long getMaxWaitMillis();
+
+  /**
+   * @return number of acquisitions which timed out
+   */
+  long getTimeouts();
+
+  /**
+   * @return number of physical connections opened
+   */
+  long getCreated();
+
+  /**
+   * @return number of physical connections closed
+   */
+  long getDestroyed();
+
+  /**
+   * @return max age of a connection in milliseconds - 0 for no limit
+   */
+  long getMaxAgeMillis();
+
+  /**
+   * @return number of connections closed because they were too old
+   */
+  long getExpired();
+
+  /**
+   * @return number of returned connections closed because we could
+   * not restore their settings
+   */
+  long getResetFailures();
+
+  /**
+   * @return acquisition latency histogram - one line per bucket
+   */
+  List<String> getAcquireHistogram();
+
+  /** Reset the counters and histogram
+   *
+   */
+  void resetStats();
+}
@@ -0,0 +1,353 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+/** Dumps every mapped DumpEntity class in the database.
+ *
+ * <p>Each class is read through a forward only cursor in a single
+ * read-only session and transaction. The session is cleared every
+ * clearInterval entities so memory use does not depend on the size of
+ * the tables. Classes are dumped referenced first, the order a restore
+ * needs.</p>
+ *
+ * <p>Drivers differ in what it takes to stream a result set. PostgreSQL
+ * needs the transaction (which we have) and a fetch size; MySQL needs
+ * a fetch size of Integer.MIN_VALUE.</p>
+ */
+public class DbDump implements Logged {
+  /** Root element of the dump */
+  public static final QName dumpTag = new QName("dump");
+
+  private final SessionFactory sessFactory;
+
+  private DumpFormat format = DumpFormat.xml;
+  private boolean dedupe;
+  private DumpStats stats;
+  private DumpDigest digest;
+  private int fetchSize = 500;
+  private int clearInterval = 1000;
+
+  private long dumped;
+
+  /**
+   * @param sessFactory to read from
+   */
+  public DbDump(final SessionFactory sessFactory) {
+    this.sessFactory = sessFactory;
+  }
+
+  /**
+   * @param val format for dump(OutputStream) - default xml
+   */
+  public void setFormat(final DumpFormat val) {
+    format = val;
+  }
+
+  /**
+   * @param val true to dump repeated references as back references.
+   *            See DumpContext.
+   */
+  public void setDedupe(final boolean val) {
+    dedupe = val;
+  }
+
+  /**
+   * @param val null or records progress
+   */
+  public void setStats(final DumpStats val) {
+    stats = val;
+  }
+
+  /** Compute the hashes of the entities as we dump them. Cannot be
+   * used with de-duplication.
+   *
+   * @param val null or digest to update
+   */
+  public void setDigest(final DumpDigest val) {
+    digest = val;
+  }
+
+  /**
+   * @param val rows fetched per round trip
+   */
+  public void setFetchSize(final int val) {
+    fetchSize = val;
+  }
+
+  /**
+   * @param val clear the session after this many entities
+   */
+  public void setClearInterval(final int val) {
+    clearInterval = val;
+  }
+
+  /**
+   * @return number of entities dumped so far
+   */
+  public long getDumped() {
+    return dumped;
+  }
+
+  /** Dump everything in the format set.
+   *
+   * @param out stream to write to. Not closed.
+   */
+  public void dump(final OutputStream out) {
+    if (stats == null) {
+      dump(format.newSink(out), null);
+    } else {
+      final DumpStats.CountingOutputStream counted = stats.count(out);
+
+      dump(format.newSink(counted), counted);
+    }
+  }
+
+  /** Dump everything. If stats are set the classes are counted
+   * first to give the expected total.
+   *
+   * @param sink for the output. Flushed at the end.
+   */
+  public void dump(final DumpSink sink) {
+    dump(sink, null);
+  }
+
+  /** The root entities whose class is a DumpEntity, referenced first.
+   * Subclass entities are dumped by the query on their root.
+   *
+   * @param sessFactory the factory
+   * @return entity names
+   */
+  static List<String> getEntityNames(final SessionFactory sessFactory) {
+    final SessionFactoryImplementor sf =
+            (SessionFactoryImplementor)sessFactory;
+    final List<String> names = new ArrayList<>();
+
+    for (final EntityPersister persister:
+            sf.getMetamodel().entityPersisters().values()) {
+      final Class<?> cl = persister.getMappedClass();
+
+      if ((cl == null) ||
+              !DumpEntity.class.isAssignableFrom(cl) ||
+              persister.isInherited()) {
+        continue;
+      }
+
+      names.add(persister.getEntityName());
+    }
+
+    return EntityDependencies.insertOrder(sf, names);
+  }
+
+  /** Query for all the entities of a root entity in id order.
+   *
+   * @param sessFactory the factory
+   * @param name entity name
+   * @param where null or a condition on alias "e"
+   * @return the hql
+   */
+  static String getQuery(final SessionFactory sessFactory,
+                         final String name,
+                         final String where) {
+    final EntityPersister persister = ((SessionFactoryImplementor)sessFactory)
+            .getMetamodel().entityPersister(name);
+    final StringBuilder hql = new StringBuilder("from ");
+
+    hql.append(name).append(" e");
+
+    if (where != null) {
+      hql.append(" where ").append(where);
+    }
+
+    if (persister.getIdentifierPropertyName() != null) {
+      hql.append(" order by e.")
+         .append(persister.getIdentifierPropertyName());
+    }
+
+    return hql.toString();
+  }
+
+  /** Dump the results of the current query, clearing the session as
+   * we go.
+   *
+   * @param sess with the query created
+   * @param ctx for output
+   * @param fetchSize rows per round trip
+   * @param clearInterval clear the session after this many entities
+   * @return number dumped
+   */
+  static long dumpResults(final HibSession sess,
+                          final DumpContext ctx,
+                          final int fetchSize,
+                          final int clearInterval) {
+    long ct = 0;
+
+    sess.setFetchSize(fetchSize);
+
+    final ScrollableResults sr = sess.scroll();
+
+    try {
+      while (sr.next()) {
+        ((DumpEntity<?>)sr.get(0)).dump(ctx, DumpType.def, false);
+        ct++;
+
+        if ((ct % clearInterval) == 0) {
+          sess.clear();
+          ctx.clear();
+        }
+      }
+    } finally {
+      sr.close();
+    }
+
+    sess.clear();
+    ctx.clear();
+
+    return ct;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void dump(final DumpSink sink,
+                    final DumpStats.CountingOutputStream counted) {
+    if (dedupe && (digest != null)) {
+      throw new BedeworkDatabaseException(
+              "A digest cannot be made of a de-duplicated dump");
+    }
+
+    final long start = System.currentTimeMillis();
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+
+    try {
+      sink.openCollection(dumpTag);
+
+      sess.getSession().setDefaultReadOnly(true);
+      sess.getSession().setCacheMode(CacheMode.IGNORE);
+      sess.beginTransaction();
+
+      final DumpContext ctx;
+
+      if (digest == null) {
+        ctx = new DumpContext(sink, dedupe);
+      } else {
+        ctx = new DumpContext(digest.tee(sink));
+        ctx.setDigest(digest);
+      }
+
+      if (stats != null) {
+        stats.start();
+        stats.setExpectedEntities(count(sess));
+        ctx.setStats(stats);
+        ctx.setCounted(counted);
+      }
+
+      for (final String name: getEntityNames(sessFactory)) {
+        dumpEntity(sess, ctx, name);
+      }
+
+      sess.commit();
+
+      sink.closeCollection(dumpTag);
+      sink.flush();
+    } catch (final Throwable t) {
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+        } catch (final Throwable ignored) {}
+      }
+
+      if (t instanceof final BedeworkDatabaseException bde) {
+        throw bde;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    } finally {
+      if (stats != null) {
+        stats.finish();
+      }
+
+      if (sess.isOpen()) {
+        sess.close();
+      }
+    }
+
+    info("Dumped " + dumped + " entities in " +
+                 (System.currentTimeMillis() - start) + " millis");
+  }
+
+  private long count(final HibSessionImpl sess) {
+    long total = 0;
+
+    for (final String name: getEntityNames(sessFactory)) {
+      sess.createQuery("select count(e) from " + name + " e");
+      total += ((Number)sess.getUnique()).longValue();
+    }
+
+    return total;
+  }
+
+  private void dumpEntity(final HibSessionImpl sess,
+                          final DumpContext ctx,
+                          final String name) {
+    sess.createQuery(getQuery(sessFactory, name, null));
+
+    final long ct = dumpResults(sess, ctx, fetchSize, clearInterval);
+    dumped += ct;
+
+    if (debug()) {
+      debug("Dumped " + ct + " " + name);
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,511 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.namespace.QName;
+
+/** Dumps only what changed since the last run.
+ *
+ * <p>For each versioned class with a numeric id the state directory
+ * holds the (id, seq) pairs of the last run sorted by id. This run
+ * reads the current pairs in id order and merges the two lists:
+ * entities which are new or whose seq changed are dumped, and ids
+ * which have gone get a tombstone</p>
+ * <pre>
+ *   &lt;deleted&gt;&lt;entity&gt;name&lt;/entity&gt;&lt;id&gt;123&lt;/id&gt;&lt;/deleted&gt;
+ * </pre>
+ * <p>Deletions are found however they were made, so nothing needs to
+ * be recorded on the delete path. Other classes are dumped in full
+ * every time. The first run, with no state, is a full dump.</p>
+ *
+ * <p>Each run writes its state files into a new numbered generation
+ * directory under the state directory. Only when the whole delta has
+ * been written is the manifest, which names the current generation,
+ * replaced with a single atomic rename. A failed run leaves the old
+ * state in force for every class. Apply deltas in order on top of the
+ * full dump.</p>
+ */
+public class DeltaDump implements Logged {
+  /** Tombstone element */
+  public static final QName deletedTag = new QName("deleted");
+
+  /** Entity name in a tombstone */
+  public static final QName entityTag = new QName("entity");
+
+  /** Id in a tombstone */
+  public static final QName idTag = new QName("id");
+
+  /** Names the current generation of state files */
+  public static final String manifestName = "delta.manifest";
+
+  private static final int fetchBatch = EntityDeletes.maxInList;
+
+  private final SessionFactory sessFactory;
+  private final File stateDir;
+
+  private DumpFormat format = DumpFormat.xml;
+  private int fetchSize = 500;
+  private int clearInterval = 1000;
+
+  private long dumped;
+  private long deleted;
+
+  /* State of the last run - null for none - and of this one */
+  private File prevDir;
+  private File newDir;
+
+  /**
+   * @param sessFactory to read from
+   * @param stateDir where we keep the state between runs
+   */
+  public DeltaDump(final SessionFactory sessFactory,
+                   final File stateDir) {
+    this.sessFactory = sessFactory;
+    this.stateDir = stateDir;
+  }
+
+  /**
+   * @param val format for dump(OutputStream) - default xml
+   */
+  public void setFormat(final DumpFormat val) {
+    format = val;
+  }
+
+  /**
+   * @param val rows fetched per round trip
+   */
+  public void setFetchSize(final int val) {
+    fetchSize = val;
+  }
+
+  /**
+   * @param val clear the session after this many entities
+   */
+  public void setClearInterval(final int val) {
+    clearInterval = val;
+  }
+
+  /**
+   * @return number of entities dumped by this run
+   */
+  public long getDumped() {
+    return dumped;
+  }
+
+  /**
+   * @return number of tombstones written by this run
+   */
+  public long getDeleted() {
+    return deleted;
+  }
+
+  /** Dump the changes in the format set.
+   *
+   * @param out stream to write to. Not closed.
+   */
+  public void dump(final OutputStream out) {
+    dump(format.newSink(out));
+  }
+
+  /** Dump the changes.
+   *
+   * @param sink for the output. Flushed at the end.
+   */
+  public void dump(final DumpSink sink) {
+    final long start = System.currentTimeMillis();
+
+    if (!stateDir.isDirectory() && !stateDir.mkdirs()) {
+      throw new BedeworkDatabaseException("Unable to create " + stateDir);
+    }
+
+    final long generation = loadGeneration();
+
+    if (generation == 0) {
+      prevDir = null;
+    } else {
+      prevDir = new File(stateDir, String.valueOf(generation));
+    }
+
+    /* May be left over from a failed run */
+    newDir = new File(stateDir, String.valueOf(generation + 1));
+    deleteDir(newDir);
+
+    if (!newDir.mkdirs()) {
+      throw new BedeworkDatabaseException("Unable to create " + newDir);
+    }
+
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+
+    try {
+      sess.getSession().setDefaultReadOnly(true);
+      sess.getSession().setCacheMode(CacheMode.IGNORE);
+      sess.beginTransaction();
+
+      sink.openCollection(DbDump.dumpTag);
+
+      final DumpContext ctx = new DumpContext(sink);
+
+      for (final String name: DbDump.getEntityNames(sessFactory)) {
+        dumpEntity(sess, ctx, name);
+      }
+
+      sink.closeCollection(DbDump.dumpTag);
+      sink.flush();
+
+      sess.commit();
+
+      /* Only now is it safe to move on - all classes at once */
+      saveGeneration(generation + 1);
+
+      if (prevDir != null) {
+        deleteDir(prevDir);
+      }
+    } catch (final Throwable t) {
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+        } catch (final Throwable ignored) {}
+      }
+
+      deleteDir(newDir);
+
+      if (t instanceof final BedeworkDatabaseException bde) {
+        throw bde;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    } finally {
+      if (sess.isOpen()) {
+        sess.close();
+      }
+    }
+
+    info("Dumped " + dumped + " changed entities and " + deleted +
+                 " deletions in " +
+                 (System.currentTimeMillis() - start) + " millis");
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void dumpEntity(final HibSessionImpl sess,
+                          final DumpContext ctx,
+                          final String name) throws IOException {
+    final DumpSink sink = ctx.sink;
+    final EntityPersister persister =
+            ((SessionFactoryImplementor)sessFactory)
+                    .getMetamodel().entityPersister(name);
+    final String idName = persister.getIdentifierPropertyName();
+    final String seqName = EntityDeletes.versionName(persister);
+    final Class<?> idClass = persister.getIdentifierType().getReturnedClass();
+
+    if ((idName == null) || (seqName == null) ||
+            !VersionedDbEntity.class.isAssignableFrom(
+                    persister.getMappedClass()) ||
+            ((idClass != Long.class) && (idClass != Integer.class))) {
+      sess.createQuery(DbDump.getQuery(sessFactory, name, null));
+      dumped += DbDump.dumpResults(sess, ctx, fetchSize, clearInterval);
+      return;
+    }
+
+    final File newState = new File(newDir, name + ".state");
+
+    try (final DataOutputStream newOut = new DataOutputStream(
+            new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(newState)), 64 * 1024))) {
+      final File stateFile;
+      if (prevDir == null) {
+        stateFile = null;
+      } else {
+        stateFile = new File(prevDir, name + ".state");
+      }
+
+      if ((stateFile == null) || !stateFile.exists()) {
+        fullDump(sess, ctx, name, newOut);
+        return;
+      }
+
+      try (final DataInputStream prevIn = new DataInputStream(
+              new BufferedInputStream(new GZIPInputStream(
+                      new FileInputStream(stateFile)), 64 * 1024))) {
+        final long[] changed = merge(sess, sink, name, idName, seqName,
+                                     prevIn, newOut);
+
+        dumpChanged(sess, ctx, name, idName,
+                    idClass == Integer.class, changed);
+      }
+    }
+  }
+
+  /* No previous state - dump the lot, recording the state as we go */
+  private void fullDump(final HibSessionImpl sess,
+                        final DumpContext ctx,
+                        final String name,
+                        final DataOutputStream newOut) throws IOException {
+    long ct = 0;
+
+    sess.createQuery(DbDump.getQuery(sessFactory, name, null));
+    sess.setFetchSize(fetchSize);
+
+    final ScrollableResults sr = sess.scroll();
+
+    try {
+      while (sr.next()) {
+        final VersionedDbEntity<?, ?> ent =
+                (VersionedDbEntity<?, ?>)sr.get(0);
+
+        ent.dump(ctx, DumpType.def, false);
+        writeState(newOut,
+                   ((Number)sess.getSession().getIdentifier(ent)).longValue(),
+                   ent.getSeq());
+        ct++;
+
+        if ((ct % clearInterval) == 0) {
+          sess.clear();
+          ctx.clear();
+        }
+      }
+    } finally {
+      sr.close();
+    }
+
+    sess.clear();
+    ctx.clear();
+    dumped += ct;
+  }
+
+  /* Merge the current (id, seq) pairs with the previous ones. Writes
+   * tombstones and the new state, returns the changed ids.
+   */
+  private long[] merge(final HibSessionImpl sess,
+                       final DumpSink sink,
+                       final String name,
+                       final String idName,
+                       final String seqName,
+                       final DataInputStream prevIn,
+                       final DataOutputStream newOut) throws IOException {
+    long[] changed = new long[1024];
+    int nchanged = 0;
+
+    long[] prev = readState(prevIn);
+
+    sess.createQuery("select e." + idName + ", e." + seqName +
+                             " from " + name + " e order by e." + idName);
+    sess.setFetchSize(fetchSize * 10);
+
+    final ScrollableResults sr = sess.scroll();
+
+    try {
+      while (sr.next()) {
+        final long id = ((Number)sr.get(0)).longValue();
+        final Object seqObj = sr.get(1);
+        final int seq = (seqObj == null) ? 0 : ((Number)seqObj).intValue();
+
+        while ((prev != null) && (prev[0] < id)) {
+          tombstone(sink, name, prev[0]);
+          prev = readState(prevIn);
+        }
+
+        final boolean same = (prev != null) && (prev[0] == id) &&
+                (prev[1] == seq);
+
+        if ((prev != null) && (prev[0] == id)) {
+          prev = readState(prevIn);
+        }
+
+        if (!same) {
+          if (nchanged == changed.length) {
+            changed = Arrays.copyOf(changed, nchanged * 2);
+          }
+          changed[nchanged] = id;
+          nchanged++;
+        }
+
+        writeState(newOut, id, seq);
+      }
+    } finally {
+      sr.close();
+    }
+
+    while (prev != null) {
+      tombstone(sink, name, prev[0]);
+      prev = readState(prevIn);
+    }
+
+    return Arrays.copyOf(changed, nchanged);
+  }
+
+  private void dumpChanged(final HibSessionImpl sess,
+                           final DumpContext ctx,
+                           final String name,
+                           final String idName,
+                           final boolean intId,
+                           final long[] changed) {
+    final String hql = DbDump.getQuery(sessFactory, name,
+                                       "e." + idName + " in (:ids)");
+
+    for (int i = 0; i < changed.length; i += fetchBatch) {
+      final int end = Math.min(i + fetchBatch, changed.length);
+      final List<Object> ids = new ArrayList<>(end - i);
+
+      for (int j = i; j < end; j++) {
+        if (intId) {
+          ids.add((int)changed[j]);
+        } else {
+          ids.add(changed[j]);
+        }
+      }
+
+      sess.createQuery(hql);
+      sess.setParameterList("ids", ids);
+
+      dumped += DbDump.dumpResults(sess, ctx, fetchSize, clearInterval);
+    }
+  }
+
+  private void tombstone(final DumpSink sink,
+                         final String name,
+                         final long id) {
+    sink.openTag(deletedTag);
+    sink.property(entityTag, name);
+    sink.property(idTag, String.valueOf(id));
+    sink.closeTag(deletedTag);
+    deleted++;
+  }
+
+  /* 0 if there is no state yet */
+  private long loadGeneration() {
+    final File mf = new File(stateDir, manifestName);
+
+    if (!mf.exists()) {
+      return 0;
+    }
+
+    final Properties props = new Properties();
+
+    try (final Reader rdr = new FileReader(mf)) {
+      props.load(rdr);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+
+    return Long.parseLong(props.getProperty("generation", "0"));
+  }
+
+  /* Write to a temp file and rename so the switch is atomic */
+  private void saveGeneration(final long generation) throws IOException {
+    final Properties props = new Properties();
+    props.setProperty("generation", String.valueOf(generation));
+
+    final File mf = new File(stateDir, manifestName);
+    final File tmp = new File(stateDir, manifestName + ".tmp");
+
+    try (final FileOutputStream fos = new FileOutputStream(tmp)) {
+      props.store(fos, "Delta dump state");
+      fos.getFD().sync();
+    }
+
+    Files.move(tmp.toPath(), mf.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void deleteDir(final File dir) {
+    final File[] files = dir.listFiles();
+
+    if (files != null) {
+      for (final File f: files) {
+        f.delete();
+      }
+    }
+
+    dir.delete();
+  }
+
+  private static void writeState(final DataOutputStream out,
+                                 final long id,
+                                 final Integer seq) throws IOException {
+    out.writeLong(id);
+    out.writeInt((seq == null) ? 0 : seq);
+  }
+
+  /* Returns null at the end */
+  private static long[] readState(final DataInputStream in)
+          throws IOException {
+    try {
+      final long id = in.readLong();
+      final int seq = in.readInt();
+
+      return new long[]{id, seq};
+    } catch (final EOFException eof) {
+      return null;
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,187 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.sql.Timestamp;
+
+/** Formats the common property types into a reusable buffer so that
+ * sinks can write them without making a String. The text is the same
+ * as String.valueOf would give. Not thread safe - one per sink.
+ *
+ * <p>Sinks write the buffer as it is, so only types whose text is
+ * plain ASCII letters, digits and punctuation needing no escape in
+ * any format are handled here. Anything else, e.g. a Character, goes
+ * through toString and the sink's escaping.</p>
+ */
+final class DumpChars {
+  char[] buf = new char[32];
+  int len;
+
+  /** Format val into buf.
+   *
+   * @param val property value - not null
+   * @return false if we don't handle the type - use toString(val)
+   */
+  @SuppressWarnings("deprecation")
+  boolean format(final Object val) {
+    len = 0;
+
+    final Class<?> cl = val.getClass();
+
+    if ((cl == Integer.class) || (cl == Short.class) ||
+            (cl == Byte.class)) {
+      appendLong(((Number)val).intValue());
+      return true;
+    }
+
+    if (cl == Long.class) {
+      final long l = (Long)val;
+
+      if (l == Long.MIN_VALUE) {
+        return false;
+      }
+
+      appendLong(l);
+      return true;
+    }
+
+    if (cl == Boolean.class) {
+      if ((Boolean)val) {
+        append("true");
+      } else {
+        append("false");
+      }
+      return true;
+    }
+
+    if (cl == Timestamp.class) {
+      final Timestamp ts = (Timestamp)val;
+
+      if (!appendDate(ts.getYear() + 1900, ts.getMonth() + 1,
+                      ts.getDate())) {
+        return false;
+      }
+
+      buf[len++] = ' ';
+      append2(ts.getHours());
+      buf[len++] = ':';
+      append2(ts.getMinutes());
+      buf[len++] = ':';
+      append2(ts.getSeconds());
+      buf[len++] = '.';
+
+      int nanos = ts.getNanos();
+      if (nanos == 0) {
+        buf[len++] = '0';
+        return true;
+      }
+
+      /* 9 digits less trailing zeros */
+      int digits = 9;
+      while ((nanos % 10) == 0) {
+        nanos /= 10;
+        digits--;
+      }
+
+      for (int i = len + digits - 1; i >= len; i--) {
+        buf[i] = (char)('0' + (nanos % 10));
+        nanos /= 10;
+      }
+      len += digits;
+
+      return true;
+    }
+
+    if (cl == java.sql.Date.class) {
+      final java.sql.Date d = (java.sql.Date)val;
+
+      return appendDate(d.getYear() + 1900, d.getMonth() + 1,
+                        d.getDate());
+    }
+
+    return false;
+  }
+
+  /** As String.valueOf except a char[] gives its characters.
+   *
+   * @param val property value - not null
+   * @return the value as a String
+   */
+  static String toString(final Object val) {
+    if (val instanceof final char[] chars) {
+      return new String(chars);
+    }
+
+    return String.valueOf(val);
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void appendLong(final long val) {
+    long v = val;
+
+    if (v < 0) {
+      buf[len++] = '-';
+      v = -v;
+    }
+
+    final int start = len;
+
+    do {
+      buf[len++] = (char)('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+
+    /* Digits went in backwards */
+    for (int i = start, j = len - 1; i < j; i++, j--) {
+      final char ch = buf[i];
+      buf[i] = buf[j];
+      buf[j] = ch;
+    }
+  }
+
+  /* yyyy-mm-dd - false for years toString would not give 4 digits */
+  private boolean appendDate(final int year,
+                             final int month,
+                             final int day) {
+    if ((year < 1000) || (year > 9999)) {
+      return false;
+    }
+
+    appendLong(year);
+    buf[len++] = '-';
+    append2(month);
+    buf[len++] = '-';
+    append2(day);
+
+    return true;
+  }
+
+  private void append2(final int val) {
+    buf[len++] = (char)('0' + (val / 10));
+    buf[len++] = (char)('0' + (val % 10));
+  }
+
+  private void append(final String val) {
+    val.getChars(0, val.length(), buf, len);
+    len += val.length();
+  }
+}
@@ -0,0 +1,242 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** State for one dump: the sink, the entities being dumped (to catch
+ * cycles) and, if deduplication is on, the entities already dumped as
+ * references.
+ *
+ * <p>With deduplication the first reference to an entity is dumped as
+ * usual with a refId property added before the key fields. Later
+ * references to the same object are dumped as the entity element
+ * holding only a backRef property with that number:</p>
+ * <pre>
+ *   &lt;owner&gt;&lt;principal&gt;&lt;refId&gt;3&lt;/refId&gt;&lt;account&gt;...&lt;/account&gt;&lt;/principal&gt;&lt;/owner&gt;
+ *   ...
+ *   &lt;owner&gt;&lt;principal&gt;&lt;backRef&gt;3&lt;/backRef&gt;&lt;/principal&gt;&lt;/owner&gt;
+ * </pre>
+ * <p>References are tracked by identity so call clear() whenever the
+ * hibernate session is cleared - that also bounds the memory used.
+ * Numbers are never reused within a context.</p>
+ */
+public class DumpContext {
+  /** Number given to the first reference to an entity */
+  public static final QName refIdTag = new QName("refId");
+
+  /** Refers back to a refId */
+  public static final QName backRefTag = new QName("backRef");
+
+  final DumpSink sink;
+
+  private final boolean dedupe;
+
+  private final Map<Object, Integer> refs;
+  private int nextRef;
+
+  /* Entities being dumped */
+  private Object[] stack = new Object[16];
+  private int depth;
+
+  private DumpStats stats;
+  private DumpStats.CountingOutputStream counted;
+  private DumpDigest digest;
+
+  /* When we started the current top level entity */
+  private long startNanos;
+  private long startBytes;
+
+  /**
+   * @param sink for the output
+   */
+  public DumpContext(final DumpSink sink) {
+    this(sink, false);
+  }
+
+  /**
+   * @param sink for the output
+   * @param dedupe true to dump repeated references as back references
+   */
+  public DumpContext(final DumpSink sink,
+                     final boolean dedupe) {
+    this.sink = sink;
+    this.dedupe = dedupe;
+
+    if (dedupe) {
+      refs = new IdentityHashMap<>();
+    } else {
+      refs = null;
+    }
+  }
+
+  /**
+   * @param val null or records each top level entity dumped
+   */
+  public void setStats(final DumpStats val) {
+    stats = val;
+  }
+
+  /**
+   * @param val null or the stream the sink writes to - the bytes
+   *            written while dumping each top level entity are
+   *            recorded for its class
+   */
+  public void setCounted(final DumpStats.CountingOutputStream val) {
+    counted = val;
+  }
+
+  /** The sink should be the digest's tee.
+   *
+   * @param val null or computes the hash of each top level entity
+   */
+  public void setDigest(final DumpDigest val) {
+    digest = val;
+  }
+
+  /** Forget the references seen so far.
+   */
+  public void clear() {
+    if (refs != null) {
+      refs.clear();
+    }
+  }
+
+  /* ==============================================================
+   *                   Package methods
+   * ============================================================== */
+
+  /**
+   * @param ent being dumped as a reference
+   * @return the number it was given or -1 if it's the first time or we
+   *         don't dedupe
+   */
+  int seenRef(final Object ent) {
+    if (!dedupe) {
+      return -1;
+    }
+
+    final Integer ref = refs.get(ent);
+
+    if (ref == null) {
+      return -1;
+    }
+
+    return ref;
+  }
+
+  /**
+   * @param ent being dumped as a reference for the first time
+   * @return its number or -1 if we don't dedupe
+   */
+  int addRef(final Object ent) {
+    if (!dedupe) {
+      return -1;
+    }
+
+    final int ref = nextRef;
+    nextRef++;
+    refs.put(ent, ref);
+
+    return ref;
+  }
+
+  /** Called as we start dumping an entity.
+   *
+   * @param ent the entity
+   */
+  void enter(final Object ent) {
+    for (int i = 0; i < depth; i++) {
+      if (stack[i] == ent) {
+        throw new BedeworkDatabaseException(
+                "Cycle in dump: " + path(i, ent));
+      }
+    }
+
+    if (depth == 0) {
+      if (stats != null) {
+        startNanos = System.nanoTime();
+
+        if (counted != null) {
+          startBytes = counted.getCount();
+        }
+      }
+
+      if (digest != null) {
+        digest.startEntity();
+      }
+    }
+
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+    }
+
+    stack[depth] = ent;
+    depth++;
+  }
+
+  /** Called when we have finished dumping an entity, including when
+   * the dump failed, so that the context can be used again.
+   *
+   * @param completed false if the dump failed - nothing is recorded
+   */
+  void leave(final boolean completed) {
+    depth--;
+
+    if (completed && (depth == 0)) {
+      if (stats != null) {
+        long bytes = 0;
+
+        if (counted != null) {
+          bytes = counted.getCount() - startBytes;
+        }
+
+        stats.record(stack[0].getClass(), System.nanoTime() - startNanos,
+                     bytes);
+      }
+
+      if (digest != null) {
+        digest.endEntity(stack[0]);
+      }
+    }
+
+    stack[depth] = null;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private String path(final int from,
+                      final Object ent) {
+    final StringBuilder sb = new StringBuilder();
+
+    for (int i = from; i < depth; i++) {
+      sb.append(stack[i].getClass().getName()).append(" -> ");
+    }
+
+    return sb.append(ent.getClass().getName()).toString();
+  }
+}
@@ -0,0 +1,731 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.namespace.QName;
+
+/** Content hashes of dumped entities, for checking a restore or
+ * comparing dumps without comparing all the data.
+ *
+ * <p>The hash of an entity is the SHA-256 of what DumpEntity dumps for
+ * it - element names and property values - so it covers exactly the
+ * properties the Dump and NoDump annotations make visible and does not
+ * depend on the dump format. The members of a collection are hashed
+ * separately and their hashes summed, so the hash of an entity does
+ * not depend on the order its collections are iterated in. In the
+ * same way the hash of a class is the sum of the hashes of its
+ * entities, so it does not depend on their order and digests of parts
+ * of a class can be merged.</p>
+ *
+ * <p>save() writes the counts and class hashes as a manifest. If a
+ * hashes file was set the hash of every entity is also written to it
+ * as the dump goes, which allows diff() to say which entities
+ * differ.</p>
+ *
+ * <p>Hashes are computed over the full references, so a digest cannot
+ * be made of a de-duplicated dump.</p>
+ */
+public class DumpDigest {
+  private static final char[] hex = "0123456789abcdef".toCharArray();
+
+  /* Event types */
+  private static final byte evOpen = 1;
+  private static final byte evClose = 2;
+  private static final byte evProperty = 3;
+
+  /** Count and hash for one class.
+   */
+  public static class ClassDigest {
+    private long count;
+
+    /* 256 bit sum, most significant first */
+    private final long[] sum = new long[4];
+
+    /**
+     * @return number of entities
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the hash as hex
+     */
+    public String getHash() {
+      final StringBuilder sb = new StringBuilder(64);
+
+      for (final long l: sum) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+          sb.append(hex[(int)(l >>> shift) & 0xf]);
+        }
+      }
+
+      return sb.toString();
+    }
+
+    void add(final byte[] hash) {
+      final long[] h = new long[4];
+
+      for (int i = 0; i < 32; i++) {
+        h[i / 8] = (h[i / 8] << 8) | (hash[i] & 0xff);
+      }
+
+      add(h, 1);
+    }
+
+    void add(final ClassDigest val) {
+      add(val.sum, val.count);
+    }
+
+    void clear() {
+      Arrays.fill(sum, 0);
+      count = 0;
+    }
+
+    private void add(final long[] h,
+                     final long n) {
+      long carry = 0;
+
+      for (int i = 3; i >= 0; i--) {
+        final long s = sum[i] + h[i];
+        final long c = (Long.compareUnsigned(s, sum[i]) < 0) ? 1 : 0;
+        final long s1 = s + carry;
+
+        sum[i] = s1;
+        carry = c | ((Long.compareUnsigned(s1, s) < 0) ? 1 : 0);
+      }
+
+      count += n;
+    }
+  }
+
+  /* A collection being hashed */
+  private static class Members {
+    /* Where the collection itself is hashed */
+    MessageDigest parent;
+
+    /* The current member */
+    final MessageDigest member = newDigest();
+
+    final ClassDigest sum = new ClassDigest();
+
+    /* Open elements in the current member */
+    int depth;
+  }
+
+  private final Map<String, ClassDigest> classes = new HashMap<>();
+
+  /* The entity */
+  private final MessageDigest md;
+
+  /* Where events go - the entity or a collection member */
+  private MessageDigest cur;
+
+  /* Collections being hashed, innermost last. Kept for reuse. */
+  private final List<Members> members = new ArrayList<>();
+  private int nmembers;
+
+  private final DumpChars chars = new DumpChars();
+  private char[] cbuf = new char[256];
+  private final byte[] bbuf = new byte[512];
+
+  private boolean inEntity;
+
+  private File hashesFile;
+  private Writer hashes;
+
+  /**
+   */
+  public DumpDigest() {
+    md = newDigest();
+  }
+
+  /** Write the hash of each entity to a file as well. Must be called
+   * before the dump starts.
+   *
+   * @param val gzipped file for the entity hashes
+   */
+  public void setHashesFile(final File val) {
+    hashesFile = val;
+
+    try {
+      hashes = new BufferedWriter(new OutputStreamWriter(
+              new GZIPOutputStream(new FileOutputStream(val), 64 * 1024),
+              StandardCharsets.UTF_8));
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /**
+   * @param out null or sink to pass everything on to
+   * @return a sink which computes the hashes as the entities pass
+   */
+  public DumpSink tee(final DumpSink out) {
+    return new DumpSink() {
+      @Override
+      public void openTag(final QName tag) {
+        if (out != null) {
+          out.openTag(tag);
+        }
+        open(tag, false);
+      }
+
+      @Override
+      public void closeTag(final QName tag) {
+        if (out != null) {
+          out.closeTag(tag);
+        }
+        close(tag, false);
+      }
+
+      @Override
+      public void openCollection(final QName tag) {
+        if (out != null) {
+          out.openCollection(tag);
+        }
+        open(tag, true);
+      }
+
+      @Override
+      public void closeCollection(final QName tag) {
+        if (out != null) {
+          out.closeCollection(tag);
+        }
+        close(tag, true);
+      }
+
+      @Override
+      public void property(final QName tag,
+                           final String val) {
+        if (out != null) {
+          out.property(tag, val);
+        }
+
+        if (event(evProperty, tag)) {
+          update(val);
+          endProperty();
+        }
+      }
+
+      @Override
+      public void value(final QName tag,
+                        final Object val) {
+        if (out != null) {
+          out.value(tag, val);
+        }
+
+        if (!event(evProperty, tag)) {
+          return;
+        }
+
+        if (val instanceof final char[] cs) {
+          update(cs, cs.length);
+        } else if (chars.format(val)) {
+          update(chars.buf, chars.len);
+        } else {
+          update(DumpChars.toString(val));
+        }
+
+        endProperty();
+      }
+
+      @Override
+      public void flush() {
+        if (out != null) {
+          out.flush();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the digest for each class by class name
+   */
+  public Map<String, ClassDigest> getClasses() {
+    return classes;
+  }
+
+  /** Add in the digests from another part of the dump.
+   *
+   * @param val digest to merge
+   */
+  public void merge(final DumpDigest val) {
+    for (final Map.Entry<String, ClassDigest> ent:
+            val.classes.entrySet()) {
+      classes.computeIfAbsent(ent.getKey(), k -> new ClassDigest())
+             .add(ent.getValue());
+    }
+  }
+
+  /** Close the hashes file if any and write the manifest.
+   *
+   * @param manifest file to write
+   */
+  public void save(final File manifest) {
+    final Properties props = new Properties();
+
+    for (final Map.Entry<String, ClassDigest> ent: classes.entrySet()) {
+      props.setProperty(ent.getKey() + ".count",
+                        String.valueOf(ent.getValue().getCount()));
+      props.setProperty(ent.getKey() + ".hash", ent.getValue().getHash());
+    }
+
+    try {
+      if (hashes != null) {
+        hashes.close();
+        hashes = null;
+        props.setProperty("hashes", hashesFile.getName());
+      }
+
+      try (final Writer wtr = new FileWriter(manifest)) {
+        props.store(wtr, "Dump digest");
+      }
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /**
+   * @param manifest written by save()
+   * @return the digest for each class by class name
+   */
+  public static Map<String, ClassDigest> load(final File manifest) {
+    final Properties props = loadProps(manifest);
+    final Map<String, ClassDigest> res = new TreeMap<>();
+
+    for (final String key: props.stringPropertyNames()) {
+      if (!key.endsWith(".count")) {
+        continue;
+      }
+
+      final String cl = key.substring(0, key.length() - 6);
+      final ClassDigest cd = new ClassDigest();
+      final String h = props.getProperty(cl + ".hash", "");
+
+      cd.count = Long.parseLong(props.getProperty(key));
+
+      for (int i = 0; (i < 4) && (h.length() == 64); i++) {
+        cd.sum[i] = Long.parseUnsignedLong(h.substring(i * 16,
+                                                       i * 16 + 16),
+                                           16);
+      }
+
+      res.put(cl, cd);
+    }
+
+    return res;
+  }
+
+  /** Compare two dumps by their manifests. Classes with the same
+   * count and hash are the same. For the others, if both dumps have
+   * a hashes file, the entities which were added, removed or changed
+   * are listed by id. Only the entities of the differing classes in
+   * the first dump are held in memory.
+   *
+   * @param manifestA the first dump
+   * @param manifestB the second dump
+   * @param maxEntities max entities listed for each class
+   * @return the differences - empty if the same
+   */
+  public static List<String> diff(final File manifestA,
+                                  final File manifestB,
+                                  final int maxEntities) {
+    final Map<String, ClassDigest> a = load(manifestA);
+    final Map<String, ClassDigest> b = load(manifestB);
+    final List<String> res = new ArrayList<>();
+    final Set<String> differ = new TreeSet<>(a.keySet());
+
+    differ.addAll(b.keySet());
+    differ.removeIf(cl -> (a.get(cl) != null) && (b.get(cl) != null) &&
+            (a.get(cl).getCount() == b.get(cl).getCount()) &&
+            a.get(cl).getHash().equals(b.get(cl).getHash()));
+
+    for (final String cl: differ) {
+      res.add(cl + ": " + count(a.get(cl)) + " entities in first, " +
+                      count(b.get(cl)) + " in second, hashes differ");
+    }
+
+    final File ha = hashesFile(manifestA);
+    final File hb = hashesFile(manifestB);
+
+    if (differ.isEmpty() || (ha == null) || (hb == null)) {
+      return res;
+    }
+
+    /* Class -> id -> hash for the first dump */
+    final Map<String, Map<String, String>> first = new HashMap<>();
+    readHashes(ha, differ, (cl, id, h) ->
+            first.computeIfAbsent(cl, k -> new HashMap<>()).put(id, h));
+
+    final Map<String, Integer> listed = new HashMap<>();
+
+    readHashes(hb, differ, (cl, id, h) -> {
+      final Map<String, String> m = first.get(cl);
+      final String ah;
+
+      if (m == null) {
+        ah = null;
+      } else {
+        ah = m.remove(id);
+      }
+
+      if (ah == null) {
+        entityDiff(res, listed, maxEntities, cl, "added", id);
+      } else if (!ah.equals(h)) {
+        entityDiff(res, listed, maxEntities, cl, "changed", id);
+      }
+    });
+
+    for (final Map.Entry<String, Map<String, String>> ent:
+            first.entrySet()) {
+      for (final String id: ent.getValue().keySet()) {
+        entityDiff(res, listed, maxEntities, ent.getKey(), "removed", id);
+      }
+    }
+
+    for (final Map.Entry<String, Integer> ent: listed.entrySet()) {
+      if (ent.getValue() > maxEntities) {
+        res.add(ent.getKey() + ": " + (ent.getValue() - maxEntities) +
+                        " more entities differ");
+      }
+    }
+
+    return res;
+  }
+
+  /* ==============================================================
+   *                   Package methods
+   * ============================================================== */
+
+  /** Called by DumpContext as a top level entity starts.
+   */
+  void startEntity() {
+    md.reset();
+    cur = md;
+    nmembers = 0;
+    inEntity = true;
+  }
+
+  /** Called by DumpContext when a top level entity is done.
+   *
+   * @param ent the entity
+   */
+  void endEntity(final Object ent) {
+    inEntity = false;
+
+    final byte[] hash = md.digest();
+    final String cl = ent.getClass().getName();
+
+    classes.computeIfAbsent(cl, k -> new ClassDigest()).add(hash);
+
+    if (hashes == null) {
+      return;
+    }
+
+    Object id = null;
+    if (ent instanceof final UnversionedDbentity<?, ?> ue) {
+      id = ue.getId();
+    }
+
+    if (id == null) {
+      // Nothing to identify it by - it's still in the class hash
+      return;
+    }
+
+    try {
+      hashes.write(cl);
+      hashes.write(' ');
+      hashes.write(String.valueOf(id));
+      hashes.write(' ');
+
+      for (final byte b: hash) {
+        hashes.write(hex[(b >> 4) & 0xf]);
+        hashes.write(hex[b & 0xf]);
+      }
+
+      hashes.write('\n');
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private interface HashLine {
+    void line(String cl, String id, String hash);
+  }
+
+  private static void readHashes(final File f,
+                                 final Set<String> classes,
+                                 final HashLine hl) {
+    try (final BufferedReader rdr = new BufferedReader(
+            new InputStreamReader(new GZIPInputStream(
+                    new FileInputStream(f), 64 * 1024),
+                                  StandardCharsets.UTF_8))) {
+      String ln;
+
+      while ((ln = rdr.readLine()) != null) {
+        final int p1 = ln.indexOf(' ');
+        final int p2 = ln.lastIndexOf(' ');
+
+        if ((p1 < 0) || (p2 == p1)) {
+          continue;
+        }
+
+        final String cl = ln.substring(0, p1);
+
+        if (classes.contains(cl)) {
+          hl.line(cl, ln.substring(p1 + 1, p2), ln.substring(p2 + 1));
+        }
+      }
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  private static void entityDiff(final List<String> res,
+                                 final Map<String, Integer> listed,
+                                 final int maxEntities,
+                                 final String cl,
+                                 final String what,
+                                 final String id) {
+    final int n = listed.merge(cl, 1, Integer::sum);
+
+    if (n <= maxEntities) {
+      res.add(cl + " " + id + ": " + what);
+    }
+  }
+
+  private static long count(final ClassDigest cd) {
+    if (cd == null) {
+      return 0;
+    }
+
+    return cd.getCount();
+  }
+
+  private static File hashesFile(final File manifest) {
+    final String name = loadProps(manifest).getProperty("hashes");
+
+    if (name == null) {
+      return null;
+    }
+
+    final File f = new File(manifest.getAbsoluteFile().getParentFile(),
+                            name);
+
+    if (!f.exists()) {
+      return null;
+    }
+
+    return f;
+  }
+
+  private static Properties loadProps(final File f) {
+    final Properties props = new Properties();
+
+    try (final Reader rdr = new FileReader(f)) {
+      props.load(rdr);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+
+    return props;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  private Members innermost() {
+    if (nmembers == 0) {
+      return null;
+    }
+
+    return members.get(nmembers - 1);
+  }
+
+  private void open(final QName tag,
+                    final boolean collection) {
+    if (!event(evOpen, tag)) {
+      return;
+    }
+
+    final Members ms = innermost();
+
+    if (ms != null) {
+      ms.depth++;
+    }
+
+    if (!collection) {
+      return;
+    }
+
+    if (nmembers == members.size()) {
+      members.add(new Members());
+    }
+
+    final Members coll = members.get(nmembers);
+    nmembers++;
+
+    coll.parent = cur;
+    coll.sum.clear();
+    coll.depth = 0;
+  }
+
+  private void close(final QName tag,
+                     final boolean collection) {
+    if (!inEntity) {
+      return;
+    }
+
+    if (collection) {
+      /* The members' sum goes in where the collection was opened */
+      final Members coll = innermost();
+      nmembers--;
+
+      cur = coll.parent;
+
+      for (final long l: coll.sum.sum) {
+        update(l);
+      }
+      update(coll.sum.count);
+    }
+
+    event(evClose, tag);
+
+    final Members ms = innermost();
+
+    if (ms != null) {
+      ms.depth--;
+      endMember(ms);
+    }
+  }
+
+  private void endProperty() {
+    final Members ms = innermost();
+
+    if (ms != null) {
+      endMember(ms);
+    }
+  }
+
+  private void endMember(final Members ms) {
+    if (ms.depth == 0) {
+      ms.sum.add(ms.member.digest());
+    }
+  }
+
+  /* Returns true if we are in an entity and the tag was hashed */
+  private boolean event(final byte type,
+                        final QName tag) {
+    if (!inEntity) {
+      return false;
+    }
+
+    final Members ms = innermost();
+
+    if ((ms != null) && (ms.depth == 0)) {
+      /* A new member of a collection */
+      cur = ms.member;
+      cur.reset();
+    }
+
+    cur.update(type);
+    update(tag.getLocalPart());
+
+    return true;
+  }
+
+  private void update(final long val) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      cur.update((byte)(val >>> shift));
+    }
+  }
+
+  private void update(final String val) {
+    final int len = val.length();
+
+    if (len > cbuf.length) {
+      cbuf = new char[Math.max(len, cbuf.length * 2)];
+    }
+
+    val.getChars(0, len, cbuf, 0);
+    update(cbuf, len);
+  }
+
+  /* Length then UTF-16 so values can't run together */
+  private void update(final char[] cs,
+                      final int len) {
+    cur.update((byte)(len >>> 24));
+    cur.update((byte)(len >>> 16));
+    cur.update((byte)(len >>> 8));
+    cur.update((byte)len);
+
+    int pos = 0;
+
+    while (pos < len) {
+      final int n = Math.min(len - pos, bbuf.length / 2);
+
+      for (int i = 0; i < n; i++) {
+        final char ch = cs[pos + i];
+
+        bbuf[i * 2] = (byte)(ch >>> 8);
+        bbuf[i * 2 + 1] = (byte)ch;
+      }
+
+      cur.update(bbuf, 0, n * 2);
+      pos += n;
+    }
+  }
+}
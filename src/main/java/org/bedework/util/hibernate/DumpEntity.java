@@ -23,12 +23,7 @@ import org.bedework.util.logging.BwLogger;
 import org.bedework.util.logging.Logged;
 import org.bedework.util.xml.XmlEmit;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.TreeSet;
 
 import javax.xml.namespace.QName;
 
@@ -40,6 +35,15 @@ import javax.xml.namespace.QName;
  * @param <T>
  */
 public class DumpEntity<T> implements Logged {
+  /* Tags for collection members with no element name */
+  private static final ClassValue<QName> classTags =
+          new ClassValue<>() {
+            @Override
+            protected QName computeValue(final Class<?> type) {
+              return new QName(type.getName());
+            }
+          };
+
   /** We're dumping the entire object */
   public enum DumpType {
     /** We're dumping the entire object */
@@ -83,6 +87,15 @@ public class DumpEntity<T> implements Logged {
     dump(xml, DumpType.def, false);
   }
 
+  /** Dump the entire entity.
+   *
+   * @param sink for output
+   */
+  @NoWrap
+  public void dump(final DumpSink sink) {
+    dump(sink, DumpType.def, false);
+  }
+
   /* ====================================================================
    *                   Private XML methods
    * ==================================================================== */
@@ -97,94 +110,90 @@ public class DumpEntity<T> implements Logged {
   public void dump(final XmlEmit xml,
                    final DumpType dtype,
                    final boolean fromCollection) {
+    dump(new XmlDumpSink(xml), dtype, fromCollection);
+  }
+
+  /** Dump this entity.
+   *
+   * @param sink for output
+   * @param dtype
+   * @param fromCollection  true if the value is a member of a collection
+   */
+  @NoWrap
+  public void dump(final DumpSink sink,
+                   final DumpType dtype,
+                   final boolean fromCollection) {
+    dump(new DumpContext(sink), dtype, fromCollection);
+  }
+
+  /** Dump this entity.
+   *
+   * @param ctx for the dump
+   * @param dtype
+   * @param fromCollection  true if the value is a member of a collection
+   */
+  @NoWrap
+  public void dump(final DumpContext ctx,
+                   final DumpType dtype,
+                   final boolean fromCollection) {
     if (!hasDumpValue()) {
       return;
     }
 
-    final NoDump ndCl = getClass().getAnnotation(NoDump.class);
-    final Dump dCl = getClass().getAnnotation(Dump.class);
-
-    final boolean dumpKeyFields = dtype == DumpType.reference;
+    final DumpPlan plan = DumpPlan.get(getClass(), dtype);
 
-    ArrayList<String> noDumpMethods = null;
-    ArrayList<String> firstMethods = null;
-
-    if (ndCl != null) {
-      if (ndCl.value().length == 0) {
-        return;
-      }
-
-      noDumpMethods = new ArrayList<>();
-      Collections.addAll(noDumpMethods, ndCl.value());
+    if (plan.suppressed) {
+      return;
     }
 
-    if (!dumpKeyFields && (dCl != null) && (dCl.firstFields().length != 0)) {
-      firstMethods = new ArrayList<>();
-      for (final String f: dCl.firstFields()) {
-        firstMethods.add(methodName(f));
-      }
+    if (plan.error != null) {
+      error(plan.error);
+      throw new BedeworkDatabaseException("noKeyFields");
     }
 
-    QName qn = null;
+    final DumpSink sink = ctx.sink;
+    int refId = -1;
 
-    if (fromCollection || (dtype != DumpType.compound)) {
-      qn = startElement(xml, getClass(), dCl);
-    }
+    if (dtype == DumpType.reference) {
+      final int backRef = ctx.seenRef(this);
 
-    final Collection<ComparableMethod> ms = findGetters(dCl, dtype);
+      if (backRef >= 0) {
+        sink.openTag(plan.elementTag);
+        sink.value(DumpContext.backRefTag, backRef);
+        sink.closeTag(plan.elementTag);
+        return;
+      }
 
-    if (firstMethods != null) {
-      doFirstMethods:
-      for (final String methodName: firstMethods) {
-        for (final ComparableMethod cm: ms) {
-          final Method m = cm.m;
+      refId = ctx.addRef(this);
+    }
 
-          if (methodName.equals(m.getName())) {
-            final Dump d = m.getAnnotation(Dump.class);
+    ctx.enter(this);
 
-            try {
-              dumpValue(xml, m, d,
-                        m.invoke(this, (Object[])null), fromCollection);
-            } catch (final  IllegalAccessException
-                            | InvocationTargetException e) {
-              throw new BedeworkDatabaseException(e);
-            }
+    boolean completed = false;
 
-            continue doFirstMethods;
-          }
-        }
+    try {
+      QName qn = null;
 
-        error("Listed first field has no corresponding getter: " +
-                      methodName);
+      if (fromCollection || (dtype != DumpType.compound)) {
+        qn = plan.elementTag;
+        sink.openTag(qn);
       }
-    }
 
-    for (final ComparableMethod cm: ms) {
-      final Method m = cm.m;
-
-      if ((noDumpMethods != null) &&
-              noDumpMethods.contains(fieldName(m.getName()))) {
-        continue;
+      if (refId >= 0) {
+        sink.value(DumpContext.refIdTag, refId);
       }
 
-      if ((firstMethods != null) &&
-              firstMethods.contains(m.getName())) {
-        continue;
+      for (final DumpPlan.Accessor acc: plan.accessors) {
+        dumpValue(ctx, acc, acc.get(this), fromCollection);
       }
 
-      final Dump d = m.getAnnotation(Dump.class);
-
-      try {
-        dumpValue(xml, m, d,
-                  m.invoke(this, (Object[])null), fromCollection);
-      } catch (final  IllegalAccessException
-                      | InvocationTargetException e) {
-        throw new BedeworkDatabaseException(e);
+      if (qn != null) {
+        sink.closeTag(qn);
       }
-    }
 
-    if (qn != null) {
-      closeElement(xml, qn);
+      completed = true;
+    } finally {
+      ctx.leave(completed);
     }
   }
 
@@ -192,9 +201,8 @@ public class DumpEntity<T> implements Logged {
    *                   Private methods
    * ==================================================================== */
 
-  private boolean dumpValue(final XmlEmit xml,
-                            final Method m,
-                            final Dump d,
+  private boolean dumpValue(final DumpContext ctx,
+                            final DumpPlan.Accessor acc,
                             final Object methVal,
                             final boolean fromCollection) {
     /* We always open the methodName or elementName tag if this is the method
@@ -204,26 +212,26 @@ public class DumpEntity<T> implements Logged {
      *
      * We do open a tag if the annotation specifies a collectionElementName
      */
+    final DumpSink sink = ctx.sink;
+
     if (methVal instanceof final DumpEntity<?> de) {
       if (!de.hasDumpValue()) {
         return false;
       }
 
-      final boolean compound = (d!= null) && d.compound();
-
-      final QName mqn = startElement(xml, m, d, fromCollection);
+      final QName mqn = startElement(sink, acc, fromCollection);
 
       final DumpType dt;
-      if (compound) {
+      if (acc.compound) {
         dt = DumpType.compound;
       } else {
         dt = DumpType.reference;
       }
 
-      de.dump(xml, dt, false);
+      de.dump(ctx, dt, false);
 
       if (mqn != null) {
-        closeElement(xml, mqn);
+        sink.closeTag(mqn);
       }
 
       return true;
@@ -243,195 +251,56 @@ public class DumpEntity<T> implements Logged {
         }
 
         if (mqn == null) {
-          mqn = startElement(xml, m, d, fromCollection);
+          mqn = acc.getTag(fromCollection);
+
+          if (mqn != null) {
+            sink.openCollection(mqn);
+          }
         }
 
-        dumpValue(xml, m, d, o, true);
+        dumpValue(ctx, acc, o, true);
       }
 
       if (mqn != null) {
-        closeElement(xml, mqn);
+        sink.closeCollection(mqn);
       }
 
       return true;
     }
 
-    property(xml, m, d, methVal, fromCollection);
+    property(sink, acc, methVal, fromCollection);
 
     return true;
   }
 
-  private QName startElement(final XmlEmit xml,
-                             final Class<?> c,
-                             final Dump d) {
-    final QName qn;
-
-    if (d == null) {
-      qn = new QName(c.getName());
-    } else {
-      qn = new QName(d.elementName());
-    }
-
-    xml.openTag(qn);
-    return qn;
-  }
-
-  private QName startElement(final XmlEmit xml,
-                             final Method m,
-                             final Dump d,
+  private QName startElement(final DumpSink sink,
+                             final DumpPlan.Accessor acc,
                              final boolean fromCollection) {
-    final QName qn = getTag(m, d, fromCollection);
+    final QName qn = acc.getTag(fromCollection);
 
     if (qn != null) {
-      xml.openTag(qn);
+      sink.openTag(qn);
     }
 
     return qn;
   }
 
-  private QName getTag(final Method m, final Dump d,
-                       final boolean fromCollection) {
-    String tagName = null;
-
-    if (d != null) {
-      if (!fromCollection) {
-        if (!d.elementName().isEmpty()) {
-          tagName = d.elementName();
-        }
-      } else if (!d.collectionElementName().isEmpty()) {
-        tagName = d.collectionElementName();
-      }
-    }
-
-    if ((tagName == null) && !fromCollection) {
-      tagName = fieldName(m.getName());
-    }
-
-    if (tagName == null) {
-      return null;
-    }
-
-    return new QName(tagName);
-  }
-
-  private void property(final XmlEmit xml, final Method m,
-                        final Dump d, final Object p,
+  private void property(final DumpSink sink,
+                        final DumpPlan.Accessor acc,
+                        final Object p,
                         final boolean fromCollection) {
     if (p == null) {
       return;
     }
 
-    QName qn = getTag(m, d, fromCollection);
+    QName qn = acc.getTag(fromCollection);
 
     if (qn == null) {
       /* Collection and no collection element name specified */
-      qn = new QName(p.getClass().getName());
-    }
-
-    final String sval;
-
-    if (p instanceof char[]) {
-      sval = new String((char[])p);
-    } else {
-      sval = String.valueOf(p);
-    }
-
-    if ((sval.indexOf('&') < 0) && (sval.indexOf('<') < 0)) {
-      xml.property(qn, sval);
-    } else {
-      xml.cdataProperty(qn, sval);
-    }
-  }
-
-  private void closeElement(final XmlEmit xml,
-                            final QName qn) {
-    xml.closeTag(qn);
-  }
-
-  private static class ComparableMethod implements Comparable<ComparableMethod> {
-    Method m;
-
-    ComparableMethod(final Method m) {
-      this.m = m;
-    }
-
-    @Override
-    public int compareTo(final ComparableMethod that) {
-      return this.m.getName().compareTo(that.m.getName());
-    }
-  }
-
-  private Collection<ComparableMethod> findGetters(final Dump d,
-                                                   final DumpType dt) {
-    final Method[] meths = getClass().getMethods();
-    final Collection<ComparableMethod> getters = new TreeSet<>();
-    Collection<String> keyMethods = null;
-
-    if (dt == DumpType.reference) {
-      if ((d == null) || (d.keyFields().length == 0)) {
-        error("No key fields defined for class " + getClass().getCanonicalName());
-        throw new BedeworkDatabaseException("noKeyFields");
-      }
-      keyMethods = new ArrayList<>();
-      for (final String f: d.keyFields()) {
-        keyMethods.add(methodName(f));
-      }
-    }
-
-    for (final Method m : meths) {
-      final String mname = m.getName();
-
-      if (mname.length() < 4) {
-        continue;
-      }
-
-      /* Name must start with get */
-      if (!mname.startsWith("get")) {
-        continue;
-      }
-
-      /* Don't want getClass */
-      if (mname.equals("getClass")) {
-        continue;
-      }
-
-      /* No parameters */
-      final Class<?>[] parClasses = m.getParameterTypes();
-      if (parClasses.length != 0) {
-        continue;
-      }
-
-      /* Not annotated with NoDump */
-      if (m.getAnnotation(NoDump.class) != null) {
-        continue;
-      }
-
-      /* If we have a list of key methods it must be in that list */
-      if ((keyMethods != null) && !keyMethods.contains(mname)) {
-        continue;
-      }
-
-      getters.add(new ComparableMethod(m));
-    }
-
-    return getters;
-  }
-
-  private String methodName(final String val) {
-    String m = "get" + val.substring(0, 1).toUpperCase();
-    if (val.length() > 1) {
-      m += val.substring(1);
-    }
-
-    return m;
-  }
-
-  private String fieldName(final String val) {
-    if (val.length() < 4) {
-      return null;
+      qn = classTags.get(p.getClass());
     }
 
-    return val.substring(3, 4).toLowerCase() + val.substring(4);
+    sink.value(qn, p);
   }
 
   /* ====================================================================
@@ -440,7 +309,10 @@ public class DumpEntity<T> implements Logged {
 
   private final BwLogger logger = new BwLogger();
 
+  /* Not a property - it dumped as an identity string which differs on
+     every run */
   @Override
+  @NoDump
   public BwLogger getLogger() {
     if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
       logger.setLoggedClass(getClass());
@@ -0,0 +1,80 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/** The formats we can dump in.
+ */
+public enum DumpFormat {
+  /** XmlDumpSink */
+  xml(".xml") {
+    @Override
+    public DumpSink newSink(final OutputStream out) {
+      return new XmlDumpSink(new BufferedWriter(
+              new OutputStreamWriter(out, StandardCharsets.UTF_8),
+              bufferSize));
+    }
+  },
+
+  /** JsonDumpSink */
+  json(".json") {
+    @Override
+    public DumpSink newSink(final OutputStream out) {
+      return new JsonDumpSink(new BufferedWriter(
+              new OutputStreamWriter(out, StandardCharsets.UTF_8),
+              bufferSize));
+    }
+  },
+
+  /** BinaryDumpSink */
+  binary(".bwd") {
+    @Override
+    public DumpSink newSink(final OutputStream out) {
+      return new BinaryDumpSink(new BufferedOutputStream(out,
+                                                         bufferSize));
+    }
+  };
+
+  private static final int bufferSize = 64 * 1024;
+
+  private final String suffix;
+
+  DumpFormat(final String suffix) {
+    this.suffix = suffix;
+  }
+
+  /**
+   * @return file name suffix for the format
+   */
+  public String getSuffix() {
+    return suffix;
+  }
+
+  /**
+   * @param out to write to. The sink buffers it; flush the sink when
+   *            done.
+   * @return a sink writing in this format
+   */
+  public abstract DumpSink newSink(OutputStream out);
+}
@@ -0,0 +1,457 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import javax.xml.namespace.QName;
+
+/** What to dump for a class and dump type: the ordered getters with
+ * their resolved tags. Plans are worked out once per class from the
+ * Dump and NoDump annotations and cached. If DumpProcessor generated
+ * a plan for the class at build time we use that instead.
+ */
+public final class DumpPlan {
+  private static final BwLogger logger = new BwLogger();
+
+  static {
+    logger.setLoggedClass(DumpPlan.class);
+  }
+
+  private static final ClassValue<DumpPlan[]> plans =
+          new ClassValue<>() {
+            @Override
+            protected DumpPlan[] computeValue(final Class<?> cl) {
+              final DumpType[] types = DumpType.values();
+              final DumpPlan[] res = new DumpPlan[types.length];
+              final Provider gen = generated(cl);
+
+              for (final DumpType dt: types) {
+                if (gen != null) {
+                  res[dt.ordinal()] = gen.plan(dt);
+                } else if (dt == DumpType.compound) {
+                  // Same getters as the full dump
+                  res[dt.ordinal()] = res[DumpType.def.ordinal()];
+                } else {
+                  res[dt.ordinal()] = build(cl, dt);
+                }
+              }
+
+              return res;
+            }
+          };
+
+  /** Implemented by the classes DumpProcessor generates. The class
+   * for an entity class p.Foo is p.Foo_DumpPlan (p.Outer_Inner_DumpPlan
+   * for a nested class).
+   */
+  public interface Provider {
+    /**
+     * @param dt type of dump
+     * @return the plan
+     */
+    DumpPlan plan(DumpType dt);
+  }
+
+  /** A property to dump.
+   */
+  public static final class Accessor {
+    final String methodName;
+    final boolean compound;
+
+    /* Calls the getter */
+    private final Function<Object, Object> getter;
+
+    /* Tag when dumping the value itself - never null */
+    final QName tag;
+
+    /* Tag for each member when dumping a collection - may be null */
+    final QName collectionTag;
+
+    private Accessor(final String methodName,
+                     final boolean compound,
+                     final QName tag,
+                     final QName collectionTag,
+                     final Function<Object, Object> getter) {
+      this.methodName = methodName;
+      this.compound = compound;
+      this.tag = tag;
+      this.collectionTag = collectionTag;
+      this.getter = getter;
+    }
+
+    /**
+     * @param o the entity
+     * @return value of the property
+     */
+    Object get(final Object o) {
+      try {
+        return getter.apply(o);
+      } catch (final BedeworkDatabaseException bde) {
+        throw bde;
+      } catch (final Throwable t) {
+        throw new BedeworkDatabaseException(t);
+      }
+    }
+
+    /**
+     * @param fromCollection true for a member of a collection
+     * @return the tag or null for no tag
+     */
+    QName getTag(final boolean fromCollection) {
+      if (fromCollection) {
+        return collectionTag;
+      }
+
+      return tag;
+    }
+  }
+
+  /* True if the class is annotated with an empty NoDump */
+  final boolean suppressed;
+
+  /* Non-null if we cannot dump - e.g. reference with no key fields */
+  final String error;
+
+  final QName elementTag;
+
+  final List<Accessor> accessors;
+
+  private DumpPlan(final boolean suppressed,
+                   final String error,
+                   final QName elementTag,
+                   final List<Accessor> accessors) {
+    this.suppressed = suppressed;
+    this.error = error;
+    this.elementTag = elementTag;
+    this.accessors = accessors;
+  }
+
+  /** Used by generated plans.
+   *
+   * @param elementName for the entity
+   * @param accessors in dump order
+   * @return a plan
+   */
+  public static DumpPlan of(final String elementName,
+                            final Accessor... accessors) {
+    return new DumpPlan(false, null, new QName(elementName),
+                        List.of(accessors));
+  }
+
+  /** Used by generated plans.
+   *
+   * @return a plan for a class which is not dumped
+   */
+  public static DumpPlan suppressed() {
+    return new DumpPlan(true, null, null, Collections.emptyList());
+  }
+
+  /** Used by generated plans.
+   *
+   * @param msg logged when we try to dump
+   * @return a plan which fails
+   */
+  public static DumpPlan failed(final String msg) {
+    return new DumpPlan(false, msg, null, Collections.emptyList());
+  }
+
+  /** Used by generated plans.
+   *
+   * @param methodName name of the getter
+   * @param compound from the Dump annotation
+   * @param tagName element name for the value
+   * @param collectionTagName null or element name for collection members
+   * @param getter calls the getter
+   * @return an accessor
+   */
+  public static Accessor accessor(final String methodName,
+                                  final boolean compound,
+                                  final String tagName,
+                                  final String collectionTagName,
+                                  final Function<Object, Object> getter) {
+    final QName ctag;
+    if (collectionTagName == null) {
+      ctag = null;
+    } else {
+      ctag = new QName(collectionTagName);
+    }
+
+    return new Accessor(methodName, compound, new QName(tagName),
+                        ctag, getter);
+  }
+
+  /**
+   * @param cl class of the entity
+   * @param dt type of dump
+   * @return the plan
+   */
+  static DumpPlan get(final Class<?> cl,
+                      final DumpType dt) {
+    return plans.get(cl)[dt.ordinal()];
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  static String generatedName(final String className) {
+    final int pos = className.lastIndexOf('.');
+
+    return className.substring(0, pos + 1) +
+            className.substring(pos + 1).replace('$', '_') +
+            "_DumpPlan";
+  }
+
+  private static Provider generated(final Class<?> cl) {
+    if (cl.getClassLoader() == null) {
+      return null;
+    }
+
+    try {
+      final Class<?> gcl = Class.forName(generatedName(cl.getName()),
+                                         true, cl.getClassLoader());
+
+      if (!Provider.class.isAssignableFrom(gcl)) {
+        return null;
+      }
+
+      return (Provider)gcl.getDeclaredConstructor().newInstance();
+    } catch (final ClassNotFoundException ignored) {
+      return null;
+    } catch (final Throwable t) {
+      logger.warn("Unable to use generated dump plan for " +
+                          cl.getName() + ": " + t);
+      return null;
+    }
+  }
+
+  private static DumpPlan build(final Class<?> cl,
+                                final DumpType dt) {
+    final NoDump ndCl = cl.getAnnotation(NoDump.class);
+    final Dump dCl = cl.getAnnotation(Dump.class);
+
+    if ((ndCl != null) && (ndCl.value().length == 0)) {
+      return suppressed();
+    }
+
+    final QName elementTag;
+    if (dCl == null) {
+      elementTag = new QName(cl.getName());
+    } else {
+      elementTag = new QName(dCl.elementName());
+    }
+
+    List<String> keyMethods = null;
+
+    if (dt == DumpType.reference) {
+      if ((dCl == null) || (dCl.keyFields().length == 0)) {
+        return failed("No key fields defined for class " +
+                              cl.getCanonicalName());
+      }
+
+      keyMethods = new ArrayList<>();
+      for (final String f: dCl.keyFields()) {
+        keyMethods.add(methodName(f));
+      }
+    }
+
+    /* Getters ordered by name */
+    final Map<String, Method> getters = new TreeMap<>();
+
+    for (final Method m: cl.getMethods()) {
+      final String mname = m.getName();
+
+      if (mname.length() < 4) {
+        continue;
+      }
+
+      /* Name must start with get */
+      if (!mname.startsWith("get")) {
+        continue;
+      }
+
+      /* Don't want getClass */
+      if (mname.equals("getClass")) {
+        continue;
+      }
+
+      /* No parameters */
+      if (m.getParameterCount() != 0) {
+        continue;
+      }
+
+      /* Not annotated with NoDump */
+      if (m.getAnnotation(NoDump.class) != null) {
+        continue;
+      }
+
+      /* If we have a list of key methods it must be in that list */
+      if ((keyMethods != null) && !keyMethods.contains(mname)) {
+        continue;
+      }
+
+      getters.putIfAbsent(mname, m);
+    }
+
+    final List<Accessor> accessors = new ArrayList<>();
+    final List<String> firstMethods = new ArrayList<>();
+
+    if ((dt != DumpType.reference) &&
+            (dCl != null) && (dCl.firstFields().length != 0)) {
+      for (final String f: dCl.firstFields()) {
+        final String mname = methodName(f);
+        final Method m = getters.get(mname);
+
+        firstMethods.add(mname);
+
+        if (m == null) {
+          logger.error("Listed first field has no corresponding getter: " +
+                               mname + " in " + cl.getName());
+          continue;
+        }
+
+        accessors.add(accessor(m));
+      }
+    }
+
+    final List<String> noDumpFields = new ArrayList<>();
+    if (ndCl != null) {
+      Collections.addAll(noDumpFields, ndCl.value());
+    }
+
+    for (final Method m: getters.values()) {
+      if (noDumpFields.contains(fieldName(m.getName())) ||
+              firstMethods.contains(m.getName())) {
+        continue;
+      }
+
+      accessors.add(accessor(m));
+    }
+
+    return new DumpPlan(false, null, elementTag,
+                        Collections.unmodifiableList(accessors));
+  }
+
+  private static Accessor accessor(final Method m) {
+    final Dump d = m.getAnnotation(Dump.class);
+
+    final String tagName;
+    if ((d != null) && !d.elementName().isEmpty()) {
+      tagName = d.elementName();
+    } else {
+      tagName = fieldName(m.getName());
+    }
+
+    String ctagName = null;
+    if ((d != null) && !d.collectionElementName().isEmpty()) {
+      ctagName = d.collectionElementName();
+    }
+
+    return accessor(m.getName(), (d != null) && d.compound(),
+                    tagName, ctagName, getter(m));
+  }
+
+  /* Try for a Function the JIT can inline. Spinning the lambda needs
+   * full access to the declaring class, which we don't get across
+   * class loaders, so fall back to a method handle and then to
+   * reflection.
+   */
+  @SuppressWarnings("unchecked")
+  private static Function<Object, Object> getter(final Method m) {
+    final MethodHandle mh;
+    final MethodHandles.Lookup lookup;
+
+    try {
+      lookup = MethodHandles.privateLookupIn(m.getDeclaringClass(),
+                                             MethodHandles.lookup());
+      if (Modifier.isStatic(m.getModifiers())) {
+        mh = MethodHandles.dropArguments(lookup.unreflect(m),
+                                         0, Object.class);
+      } else {
+        mh = lookup.unreflect(m);
+      }
+    } catch (final Throwable t) {
+      return o -> {
+        try {
+          return m.invoke(o);
+        } catch (final Throwable t1) {
+          throw new BedeworkDatabaseException(t1);
+        }
+      };
+    }
+
+    try {
+      final CallSite site = LambdaMetafactory.metafactory(
+              lookup,
+              "apply",
+              MethodType.methodType(Function.class),
+              MethodType.methodType(Object.class, Object.class),
+              mh,
+              mh.type().wrap());
+
+      return (Function<Object, Object>)site.getTarget().invokeExact();
+    } catch (final Throwable ignored) {
+    }
+
+    final MethodHandle gmh =
+            mh.asType(MethodType.methodType(Object.class, Object.class));
+
+    return o -> {
+      try {
+        return gmh.invokeExact(o);
+      } catch (final Throwable t) {
+        throw new BedeworkDatabaseException(t);
+      }
+    };
+  }
+
+  static String methodName(final String val) {
+    String m = "get" + val.substring(0, 1).toUpperCase();
+    if (val.length() > 1) {
+      m += val.substring(1);
+    }
+
+    return m;
+  }
+
+  static String fieldName(final String val) {
+    if (val.length() < 4) {
+      return null;
+    }
+
+    return val.substring(3, 4).toLowerCase() + val.substring(4);
+  }
+}
@@ -0,0 +1,399 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Generated;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/** Generates a DumpPlan.Provider for each concrete DumpEntity
+ * subclass being compiled so that DumpEntity can dump it without
+ * reflection. The generated plans follow the same rules as the
+ * reflective ones in DumpPlan.
+ *
+ * <p>The processor is not registered as a service - that would break
+ * the build of this module. Name it explicitly, e.g. for maven:</p>
+ * <pre>
+ *   &lt;annotationProcessorPaths&gt;
+ *     &lt;path&gt;
+ *       &lt;groupId&gt;org.bedework&lt;/groupId&gt;
+ *       &lt;artifactId&gt;bw-util-hibernate&lt;/artifactId&gt;
+ *       &lt;version&gt;${bw-util-hibernate.version}&lt;/version&gt;
+ *     &lt;/path&gt;
+ *   &lt;/annotationProcessorPaths&gt;
+ *   &lt;annotationProcessors&gt;
+ *     &lt;annotationProcessor&gt;org.bedework.util.hibernate.DumpProcessor&lt;/annotationProcessor&gt;
+ *   &lt;/annotationProcessors&gt;
+ * </pre>
+ */
+@SupportedAnnotationTypes("*")
+public class DumpProcessor extends AbstractProcessor {
+  private static final String planClass = DumpPlan.class.getName();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(final Set<? extends TypeElement> annotations,
+                         final RoundEnvironment roundEnv) {
+    final TypeElement dumpEntity = processingEnv.getElementUtils()
+            .getTypeElement(DumpEntity.class.getCanonicalName());
+
+    if (dumpEntity == null) {
+      return false;
+    }
+
+    for (final TypeElement te:
+            ElementFilter.typesIn(roundEnv.getRootElements())) {
+      process(te, dumpEntity);
+    }
+
+    /* Claim the round only if it has nothing but our annotations,
+     * the Generated on our output and java.lang ones. That avoids the
+     * unclaimed annotations lint warning without hiding anything from
+     * other processors.
+     */
+    if (annotations.isEmpty()) {
+      return false;
+    }
+
+    for (final TypeElement ann: annotations) {
+      final String name = ann.getQualifiedName().toString();
+
+      if (!name.startsWith("java.lang.") &&
+              !name.equals(Dump.class.getCanonicalName()) &&
+              !name.equals(NoDump.class.getCanonicalName()) &&
+              !name.equals(Generated.class.getCanonicalName())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void process(final TypeElement te,
+                       final TypeElement dumpEntity) {
+    for (final TypeElement nested:
+            ElementFilter.typesIn(te.getEnclosedElements())) {
+      process(nested, dumpEntity);
+    }
+
+    if (!wanted(te, dumpEntity)) {
+      return;
+    }
+
+    try {
+      generate(te);
+    } catch (final Throwable t) {
+      processingEnv.getMessager().printMessage(
+              Diagnostic.Kind.ERROR,
+              "Unable to generate dump plan: " + t, te);
+    }
+  }
+
+  private boolean wanted(final TypeElement te,
+                         final TypeElement dumpEntity) {
+    final Types types = processingEnv.getTypeUtils();
+    final Set<Modifier> mods = te.getModifiers();
+
+    if ((te.getKind() != ElementKind.CLASS) ||
+            mods.contains(Modifier.ABSTRACT) ||
+            mods.contains(Modifier.PRIVATE) ||
+            te.equals(dumpEntity)) {
+      return false;
+    }
+
+    if ((te.getNestingKind() == NestingKind.MEMBER) &&
+            !mods.contains(Modifier.STATIC)) {
+      return false;
+    }
+
+    if (te.getNestingKind() != NestingKind.TOP_LEVEL) {
+      // Every enclosing class must be accessible from the package
+      Element encl = te.getEnclosingElement();
+      while (encl instanceof final TypeElement ete) {
+        if (ete.getModifiers().contains(Modifier.PRIVATE)) {
+          return false;
+        }
+        encl = ete.getEnclosingElement();
+      }
+    }
+
+    return types.isSubtype(types.erasure(te.asType()),
+                           types.erasure(dumpEntity.asType()));
+  }
+
+  private void generate(final TypeElement te) throws Throwable {
+    final Elements elements = processingEnv.getElementUtils();
+    final String binaryName = elements.getBinaryName(te).toString();
+    final String genName = DumpPlan.generatedName(binaryName);
+    final String pkg = elements.getPackageOf(te)
+                               .getQualifiedName().toString();
+    final String simpleName = genName.substring(genName.lastIndexOf('.') + 1);
+    final String clName = te.getQualifiedName().toString();
+
+    final Dump dCl = te.getAnnotation(Dump.class);
+    final NoDump ndCl = te.getAnnotation(NoDump.class);
+
+    final StringBuilder sb = new StringBuilder();
+
+    if (!pkg.isEmpty()) {
+      sb.append("package ").append(pkg).append(";\n\n");
+    }
+
+    sb.append("@javax.annotation.processing.Generated(\"")
+      .append(DumpProcessor.class.getName()).append("\")\n");
+    sb.append("@SuppressWarnings(\"rawtypes\")\n");
+    sb.append("public final class ").append(simpleName)
+      .append(" implements ").append(planClass).append(".Provider {\n");
+
+    if ((ndCl != null) && (ndCl.value().length == 0)) {
+      sb.append("  private static final ").append(planClass)
+        .append(" plan = ").append(planClass).append(".suppressed();\n\n");
+      sb.append("  @Override\n");
+      sb.append("  public ").append(planClass).append(" plan(final ")
+        .append(DumpEntity.DumpType.class.getCanonicalName())
+        .append(" dt) {\n");
+      sb.append("    return plan;\n");
+      sb.append("  }\n");
+      sb.append("}\n");
+
+      write(te, genName, sb);
+      return;
+    }
+
+    final String elementName;
+    if (dCl == null) {
+      elementName = binaryName;
+    } else {
+      elementName = dCl.elementName();
+    }
+
+    /* Getters ordered by name */
+    final Map<String, ExecutableElement> getters = new TreeMap<>();
+
+    for (final ExecutableElement m:
+            ElementFilter.methodsIn(elements.getAllMembers(te))) {
+      final String mname = m.getSimpleName().toString();
+
+      if ((mname.length() < 4) ||
+              !mname.startsWith("get") ||
+              mname.equals("getClass") ||
+              !m.getModifiers().contains(Modifier.PUBLIC) ||
+              !m.getParameters().isEmpty() ||
+              (m.getReturnType().getKind() == TypeKind.VOID) ||
+              (m.getAnnotation(NoDump.class) != null)) {
+        continue;
+      }
+
+      getters.putIfAbsent(mname, m);
+    }
+
+    /* Default plan */
+    final List<String> firstMethods = new ArrayList<>();
+    final List<ExecutableElement> defs = new ArrayList<>();
+
+    if ((dCl != null) && (dCl.firstFields().length != 0)) {
+      for (final String f: dCl.firstFields()) {
+        final String mname = DumpPlan.methodName(f);
+        final ExecutableElement m = getters.get(mname);
+
+        firstMethods.add(mname);
+
+        if (m == null) {
+          processingEnv.getMessager().printMessage(
+                  Diagnostic.Kind.WARNING,
+                  "Listed first field has no corresponding getter: " +
+                          mname, te);
+          continue;
+        }
+
+        defs.add(m);
+      }
+    }
+
+    final List<String> noDumpFields = new ArrayList<>();
+    if (ndCl != null) {
+      noDumpFields.addAll(Arrays.asList(ndCl.value()));
+    }
+
+    for (final ExecutableElement m: getters.values()) {
+      final String mname = m.getSimpleName().toString();
+
+      if (noDumpFields.contains(DumpPlan.fieldName(mname)) ||
+              firstMethods.contains(mname)) {
+        continue;
+      }
+
+      defs.add(m);
+    }
+
+    /* Reference plan */
+    final List<ExecutableElement> refs = new ArrayList<>();
+
+    if ((dCl != null) && (dCl.keyFields().length != 0)) {
+      final List<String> keyMethods = new ArrayList<>();
+      for (final String f: dCl.keyFields()) {
+        keyMethods.add(DumpPlan.methodName(f));
+      }
+
+      for (final ExecutableElement m: getters.values()) {
+        if (keyMethods.contains(m.getSimpleName().toString()) &&
+                !noDumpFields.contains(
+                        DumpPlan.fieldName(m.getSimpleName().toString()))) {
+          refs.add(m);
+        }
+      }
+    }
+
+    plan(sb, "defPlan", clName, elementName, defs);
+
+    if ((dCl == null) || (dCl.keyFields().length == 0)) {
+      sb.append("  private static final ").append(planClass)
+        .append(" refPlan = ").append(planClass).append(".failed(")
+        .append(literal("No key fields defined for class " + clName))
+        .append(");\n\n");
+    } else {
+      plan(sb, "refPlan", clName, elementName, refs);
+    }
+
+    sb.append("  @Override\n");
+    sb.append("  public ").append(planClass).append(" plan(final ")
+      .append(DumpEntity.DumpType.class.getCanonicalName())
+      .append(" dt) {\n");
+    sb.append("    if (dt == ")
+      .append(DumpEntity.DumpType.class.getCanonicalName())
+      .append(".reference) {\n");
+    sb.append("      return refPlan;\n");
+    sb.append("    }\n\n");
+    sb.append("    return defPlan;\n");
+    sb.append("  }\n");
+    sb.append("}\n");
+
+    write(te, genName, sb);
+  }
+
+  private void plan(final StringBuilder sb,
+                    final String field,
+                    final String clName,
+                    final String elementName,
+                    final List<ExecutableElement> ms) {
+    sb.append("  private static final ").append(planClass)
+      .append(' ').append(field).append(" =\n");
+    sb.append("          ").append(planClass).append(".of(")
+      .append(literal(elementName));
+
+    for (final ExecutableElement m: ms) {
+      final String mname = m.getSimpleName().toString();
+      final Dump d = m.getAnnotation(Dump.class);
+
+      final String tagName;
+      if ((d != null) && !d.elementName().isEmpty()) {
+        tagName = d.elementName();
+      } else {
+        tagName = DumpPlan.fieldName(mname);
+      }
+
+      String ctagName = null;
+      if ((d != null) && !d.collectionElementName().isEmpty()) {
+        ctagName = d.collectionElementName();
+      }
+
+      final String call;
+      if (m.getModifiers().contains(Modifier.STATIC)) {
+        call = clName + "." + mname + "()";
+      } else {
+        call = "((" + clName + ")o)." + mname + "()";
+      }
+
+      sb.append(",\n              ").append(planClass).append(".accessor(")
+        .append(literal(mname)).append(", ")
+        .append((d != null) && d.compound()).append(", ")
+        .append(literal(tagName)).append(", ")
+        .append(literal(ctagName)).append(",\n")
+        .append("                  o -> ").append(call).append(")");
+    }
+
+    sb.append(");\n\n");
+  }
+
+  private void write(final TypeElement te,
+                     final String genName,
+                     final StringBuilder sb) throws Throwable {
+    try (final Writer wtr = processingEnv.getFiler()
+                                         .createSourceFile(genName, te)
+                                         .openWriter()) {
+      wtr.write(sb.toString());
+    }
+  }
+
+  private static String literal(final String val) {
+    if (val == null) {
+      return "null";
+    }
+
+    final StringBuilder sb = new StringBuilder("\"");
+
+    for (final char ch: val.toCharArray()) {
+      switch (ch) {
+        case '"' -> sb.append("\\\"");
+        case '\\' -> sb.append("\\\\");
+        case '\n' -> sb.append("\\n");
+        case '\r' -> sb.append("\\r");
+        case '\t' -> sb.append("\\t");
+        default -> {
+          if (ch < 0x20) {
+            sb.append(String.format("\\u%04x", (int)ch));
+          } else {
+            sb.append(ch);
+          }
+        }
+      }
+    }
+
+    return sb.append('"').toString();
+  }
+}
@@ -0,0 +1,85 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import javax.xml.namespace.QName;
+
+/** Where DumpEntity sends its output. The calls describe a tree of
+ * elements the same way for every format: entities and compound
+ * values are opened and closed, simple values are properties.
+ * Elements holding the members of a collection are opened with
+ * openCollection so that formats with arrays can use them.
+ */
+public interface DumpSink {
+  /**
+   * @param tag of element to open
+   */
+  void openTag(QName tag);
+
+  /**
+   * @param tag of element to close - as passed to openTag
+   */
+  void closeTag(QName tag);
+
+  /** Open the element holding the members of a collection.
+   *
+   * @param tag of element to open
+   */
+  default void openCollection(final QName tag) {
+    openTag(tag);
+  }
+
+  /**
+   * @param tag of element to close - as passed to openCollection
+   */
+  default void closeCollection(final QName tag) {
+    closeTag(tag);
+  }
+
+  /**
+   * @param tag of the property
+   * @param val its value - never null
+   */
+  void property(QName tag, String val);
+
+  /** A simple value as returned by a getter. Sinks can override this
+   * to write common types without making a String first.
+   *
+   * @param tag of the property
+   * @param val its value - never null
+   */
+  default void value(final QName tag, final Object val) {
+    property(tag, DumpChars.toString(val));
+  }
+
+  /** Used by readers of formats, such as xml, where an element with
+   * no content looks the same as an empty property.
+   *
+   * @param tag of an element with no content
+   * @return true if at this point it would be an entity or compound
+   *         value - it is then opened and closed
+   */
+  default boolean isElement(final QName tag) {
+    return false;
+  }
+
+  /** Push any buffered output to the underlying stream.
+   */
+  void flush();
+}
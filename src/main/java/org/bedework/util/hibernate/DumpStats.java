@@ -0,0 +1,554 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.jmx.InfoLines;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Progress of a dump or restore: entities, bytes, time and rates in
+ * total and for each entity class, an estimate of the time remaining
+ * and the slowest classes.
+ *
+ * <p>Give one to DbDump, ParallelDump, ChunkedDump or
+ * ParallelRestore. Dumps count the entities as DumpEntity finishes
+ * each one; restores count in HibSession.restore(). Bytes are counted
+ * by wrapping the output or input stream with count() - the dumpers
+ * do that themselves, for a restore wrap the stream the source reads.
+ * </p>
+ *
+ * <p>For a dump the bytes for a class are those written to the
+ * context's counted stream while each of its entities is dumped, so
+ * each thread of a parallel dump counts its own. Output is buffered
+ * so they are only exact over a run of the class to within the buffer
+ * size. Restores only count the total bytes read.</p>
+ *
+ * <p>For a restore the time for a class is the time spent in
+ * restore(). ParallelRestore adds the time to flush and commit each
+ * batch, spread evenly over its entities.</p>
+ *
+ * <p>Every progressIntervalSeconds a progress line is logged and
+ * added to infoLines. Everything is available through JMX once
+ * register() has been called.</p>
+ */
+public class DumpStats implements Logged, DumpStatsMBean {
+  /** Counts the bytes written through it for one dump context as
+   * well as adding them to the total.
+   */
+  public class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(final OutputStream out) {
+      super(out);
+    }
+
+    /**
+     * @return bytes written through this stream
+     */
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      count++;
+      bytes.increment();
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+      bytes.add(len);
+    }
+  }
+
+  /** Figures for one class */
+  public static class ClassStats {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    ClassStats(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the class name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return entities processed
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * @return bytes attributed to the class
+     */
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    /**
+     * @return nanoseconds spent on the class
+     */
+    public long getNanos() {
+      return nanos.sum();
+    }
+
+    /**
+     * @return entities per second of time spent on the class
+     */
+    public double getEntitiesPerSecond() {
+      return rate(getCount(), getNanos() / 1000000);
+    }
+
+    /**
+     * @return bytes per second of time spent on the class
+     */
+    public double getBytesPerSecond() {
+      return rate(getBytes(), getNanos() / 1000000);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d entities, %d bytes in %d ms - " +
+                                   "%.1f entities/s, %.0f bytes/s",
+                           name, getCount(), getBytes(),
+                           getNanos() / 1000000,
+                           getEntitiesPerSecond(),
+                           getBytesPerSecond());
+    }
+  }
+
+  private static final int maxSlowest = 10;
+
+  private final String name;
+
+  /** Progress lines for the current or last run */
+  public final InfoLines infoLines = new InfoLines();
+
+  private final ConcurrentHashMap<Class<?>, ClassStats> classes =
+          new ConcurrentHashMap<>();
+
+  private final LongAdder entities = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+
+  /* When we next add a progress line */
+  private final AtomicLong nextProgress = new AtomicLong();
+
+  private volatile boolean running;
+  private volatile long startMillis;
+  private volatile long endMillis;
+  private volatile long expected;
+  private volatile int progressIntervalSeconds = 60;
+
+  /**
+   * @param name for logging and JMX
+   */
+  public DumpStats(final String name) {
+    this.name = name;
+  }
+
+  /** Register with JMX.
+   */
+  public void register() {
+    HibMBeans.register("DumpStats", name, this);
+  }
+
+  /** Unregister from JMX.
+   */
+  public void unregister() {
+    HibMBeans.unregister("DumpStats", name);
+  }
+
+  /** Reset everything except the expected count and start timing.
+   */
+  public void start() {
+    classes.clear();
+    entities.reset();
+    bytes.reset();
+
+    synchronized (infoLines) {
+      infoLines.clear();
+    }
+
+    startMillis = System.currentTimeMillis();
+    endMillis = 0;
+    nextProgress.set(startMillis + progressIntervalSeconds * 1000L);
+    running = true;
+
+    addLine("Started " + name);
+  }
+
+  /** Stop timing and add a summary to infoLines.
+   */
+  public void finish() {
+    if (!running) {
+      return;
+    }
+
+    endMillis = System.currentTimeMillis();
+    running = false;
+
+    addLine("Finished " + name + ": " + summary());
+    addLine("Slowest classes:");
+
+    for (final String s: getSlowestClasses()) {
+      addLine("  " + s);
+    }
+  }
+
+  /** Give the result to the DumpContext writing to it so that bytes
+   * can be counted for each class.
+   *
+   * @param out stream to count
+   * @return a stream counting the bytes written to out
+   */
+  public CountingOutputStream count(final OutputStream out) {
+    return new CountingOutputStream(out);
+  }
+
+  /**
+   * @param in stream to count
+   * @return a stream counting the bytes read from in
+   */
+  public InputStream count(final InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        final int b = in.read();
+
+        if (b >= 0) {
+          bytes.increment();
+        }
+
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+        final int n = in.read(b, off, len);
+
+        if (n > 0) {
+          bytes.add(n);
+        }
+
+        return n;
+      }
+    };
+  }
+
+  /**
+   * @return figures for each class so far
+   */
+  public List<ClassStats> getClassStatsList() {
+    final List<ClassStats> res = new ArrayList<>(classes.values());
+
+    res.sort(Comparator.comparing(ClassStats::getName));
+
+    return res;
+  }
+
+  /* ==============================================================
+   *                   MBean methods
+   * ============================================================== */
+
+  @Override
+  public boolean getRunning() {
+    return running;
+  }
+
+  @Override
+  public long getEntities() {
+    return entities.sum();
+  }
+
+  @Override
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  @Override
+  public void setExpectedEntities(final long val) {
+    expected = val;
+  }
+
+  @Override
+  public long getExpectedEntities() {
+    return expected;
+  }
+
+  @Override
+  public long getElapsedSeconds() {
+    return elapsedMillis() / 1000;
+  }
+
+  @Override
+  public long getEstimatedRemainingSeconds() {
+    final long done = getEntities();
+
+    if ((expected <= 0) || (done == 0)) {
+      return -1;
+    }
+
+    if (done >= expected) {
+      return 0;
+    }
+
+    return (expected - done) * elapsedMillis() / done / 1000;
+  }
+
+  @Override
+  public double getEntitiesPerSecond() {
+    return rate(getEntities(), elapsedMillis());
+  }
+
+  @Override
+  public double getBytesPerSecond() {
+    return rate(getBytes(), elapsedMillis());
+  }
+
+  @Override
+  public void setProgressIntervalSeconds(final int val) {
+    progressIntervalSeconds = val;
+  }
+
+  @Override
+  public int getProgressIntervalSeconds() {
+    return progressIntervalSeconds;
+  }
+
+  @Override
+  public List<String> getClassStats() {
+    final List<String> res = new ArrayList<>();
+
+    for (final ClassStats cs: getClassStatsList()) {
+      res.add(cs.toString());
+    }
+
+    return res;
+  }
+
+  @Override
+  public List<String> getSlowestClasses() {
+    final List<ClassStats> css = new ArrayList<>(classes.values());
+
+    css.sort(Comparator.comparingLong(ClassStats::getNanos).reversed());
+
+    final List<String> res = new ArrayList<>();
+
+    for (final ClassStats cs: css) {
+      if (res.size() == maxSlowest) {
+        break;
+      }
+
+      res.add(cs.toString());
+    }
+
+    return res;
+  }
+
+  @Override
+  public List<String> getInfo() {
+    synchronized (infoLines) {
+      return new ArrayList<>(infoLines);
+    }
+  }
+
+  /* ==============================================================
+   *                   Package methods
+   * ============================================================== */
+
+  /** Called for each entity dumped or restored.
+   *
+   * @param cl class of the entity
+   * @param nanos time it took
+   * @param bytes written for it
+   */
+  void record(final Class<?> cl,
+              final long nanos,
+              final long bytes) {
+    final ClassStats cs = classStats(cl);
+
+    cs.count.increment();
+    cs.nanos.add(nanos);
+    cs.bytes.add(bytes);
+
+    entities.increment();
+    progress();
+  }
+
+  /** Spread time spent on a number of entities, e.g. flushing a
+   * batch, evenly over them.
+   *
+   * @param ents the entities
+   * @param nanos time it took
+   */
+  void spread(final List<?> ents,
+              final long nanos) {
+    if (ents.isEmpty()) {
+      return;
+    }
+
+    final long each = nanos / ents.size();
+    Class<?> cl = null;
+    int n = 0;
+
+    /* Batches are usually all one class */
+    for (final Object ent: ents) {
+      if (ent.getClass() != cl) {
+        if (cl != null) {
+          classStats(cl).nanos.add(each * n);
+        }
+
+        cl = ent.getClass();
+        n = 0;
+      }
+
+      n++;
+    }
+
+    classStats(cl).nanos.add(each * n);
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private ClassStats classStats(final Class<?> cl) {
+    return classes.computeIfAbsent(cl, c -> new ClassStats(c.getName()));
+  }
+
+  private void progress() {
+    if (progressIntervalSeconds <= 0) {
+      return;
+    }
+
+    final long now = System.currentTimeMillis();
+    final long next = nextProgress.get();
+
+    if ((now < next) ||
+            !nextProgress.compareAndSet(
+                    next, now + progressIntervalSeconds * 1000L)) {
+      return;
+    }
+
+    final String ln = summary();
+
+    addLine(ln);
+    info(name + ": " + ln);
+  }
+
+  private String summary() {
+    final StringBuilder sb = new StringBuilder();
+
+    sb.append(getEntities());
+
+    if (expected > 0) {
+      sb.append(" of ").append(expected);
+    }
+
+    sb.append(String.format(" entities, %d bytes in %s - " +
+                                    "%.1f entities/s, %.0f bytes/s",
+                            getBytes(),
+                            duration(getElapsedSeconds()),
+                            getEntitiesPerSecond(),
+                            getBytesPerSecond()));
+
+    final long remaining = getEstimatedRemainingSeconds();
+
+    if (running && (remaining >= 0)) {
+      sb.append(", about ").append(duration(remaining))
+        .append(" to go");
+    }
+
+    return sb.toString();
+  }
+
+  private void addLine(final String val) {
+    synchronized (infoLines) {
+      infoLines.addLn(val);
+    }
+  }
+
+  private long elapsedMillis() {
+    if (startMillis == 0) {
+      return 0;
+    }
+
+    if (running) {
+      return System.currentTimeMillis() - startMillis;
+    }
+
+    return endMillis - startMillis;
+  }
+
+  private static double rate(final long val,
+                             final long millis) {
+    if (millis <= 0) {
+      return 0;
+    }
+
+    return val * 1000.0 / millis;
+  }
+
+  private static String duration(final long seconds) {
+    return String.format("%d:%02d:%02d", seconds / 3600,
+                         (seconds / 60) % 60, seconds % 60);
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,96 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.List;
+
+/** JMX interface for dump and restore progress.
+ *
+ */
+public interface DumpStatsMBean {
+  /**
+   * @return true between start and finish
+   */
+  boolean getRunning();
+
+  /**
+   * @return entities processed so far
+   */
+  long getEntities();
+
+  /**
+   * @return bytes written or read so far
+   */
+  long getBytes();
+
+  /**
+   * @param val total entities we expect - 0 if unknown
+   */
+  void setExpectedEntities(long val);
+
+  /**
+   * @return total entities we expect - 0 if unknown
+   */
+  long getExpectedEntities();
+
+  /**
+   * @return seconds since the start
+   */
+  long getElapsedSeconds();
+
+  /**
+   * @return estimated seconds to go at the rate so far - -1 if unknown
+   */
+  long getEstimatedRemainingSeconds();
+
+  /**
+   * @return entities per second since the start
+   */
+  double getEntitiesPerSecond();
+
+  /**
+   * @return bytes per second since the start
+   */
+  double getBytesPerSecond();
+
+  /**
+   * @param val seconds between progress lines - 0 for none
+   */
+  void setProgressIntervalSeconds(int val);
+
+  /**
+   * @return seconds between progress lines
+   */
+  int getProgressIntervalSeconds();
+
+  /**
+   * @return one line per class with counts and rates
+   */
+  List<String> getClassStats();
+
+  /**
+   * @return the classes which took the most time, slowest first
+   */
+  List<String> getSlowestClasses();
+
+  /**
+   * @return progress lines for this run
+   */
+  List<String> getInfo();
+}
@@ -0,0 +1,216 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpDigest.ClassDigest;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.CacheMode;
+import org.hibernate.SessionFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Checks the database against the manifest of a DumpDigest, e.g.
+ * after a restore or migration. The hashes are recomputed from the
+ * live database, one class per worker, and compared with the
+ * manifest class by class.
+ *
+ * <p>The workers do not share a snapshot so the database should not
+ * be changing while we verify.</p>
+ */
+public class DumpVerifier implements Logged {
+  private final SessionFactory sessFactory;
+  private final int threads;
+
+  private int fetchSize = 500;
+  private int clearInterval = 1000;
+
+  /**
+   * @param sessFactory to read from
+   * @param threads number of workers
+   */
+  public DumpVerifier(final SessionFactory sessFactory,
+                      final int threads) {
+    this.sessFactory = sessFactory;
+    this.threads = threads;
+  }
+
+  /**
+   * @param val rows fetched per round trip
+   */
+  public void setFetchSize(final int val) {
+    fetchSize = val;
+  }
+
+  /**
+   * @param val clear the session after this many entities
+   */
+  public void setClearInterval(final int val) {
+    clearInterval = val;
+  }
+
+  /** Recompute the hashes for the whole database.
+   *
+   * @return the digest
+   */
+  public DumpDigest digest() {
+    final DumpDigest res = new DumpDigest();
+    final ExecutorService exec = Executors.newFixedThreadPool(threads);
+    final List<Future<?>> futures = new ArrayList<>();
+
+    try {
+      for (final String name: DbDump.getEntityNames(sessFactory)) {
+        futures.add(exec.submit(() -> {
+          final DumpDigest d = digestEntity(name);
+
+          synchronized (res) {
+            res.merge(d);
+          }
+        }));
+      }
+
+      for (final Future<?> f: futures) {
+        try {
+          f.get();
+        } catch (final Throwable t) {
+          for (final Future<?> f1: futures) {
+            f1.cancel(true);
+          }
+
+          throw new BedeworkDatabaseException(t);
+        }
+      }
+    } finally {
+      exec.shutdownNow();
+    }
+
+    return res;
+  }
+
+  /** Compare the database with a manifest.
+   *
+   * @param manifest written by DumpDigest.save()
+   * @return the classes which differ - empty if all match
+   */
+  public List<String> verify(final File manifest) {
+    final long start = System.currentTimeMillis();
+    final Map<String, ClassDigest> expected = DumpDigest.load(manifest);
+    final Map<String, ClassDigest> found = digest().getClasses();
+    final Set<String> names = new TreeSet<>(expected.keySet());
+    final List<String> res = new ArrayList<>();
+
+    names.addAll(found.keySet());
+
+    for (final String name: names) {
+      final ClassDigest e = expected.get(name);
+      final ClassDigest f = found.get(name);
+
+      if (e == null) {
+        res.add(name + ": " + f.getCount() +
+                        " entities not in the manifest");
+      } else if (f == null) {
+        res.add(name + ": none of the " + e.getCount() +
+                        " entities in the manifest");
+      } else if (e.getCount() != f.getCount()) {
+        res.add(name + ": " + f.getCount() + " entities, expected " +
+                        e.getCount());
+      } else if (!e.getHash().equals(f.getHash())) {
+        res.add(name + ": hashes differ");
+      }
+    }
+
+    info("Verified " + names.size() + " classes in " +
+                 (System.currentTimeMillis() - start) + " millis - " +
+                 res.size() + " differ");
+
+    return res;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private DumpDigest digestEntity(final String name) {
+    final DumpDigest d = new DumpDigest();
+    final DumpContext ctx = new DumpContext(d.tee(null));
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    ctx.setDigest(d);
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+
+    try {
+      sess.getSession().setDefaultReadOnly(true);
+      sess.getSession().setCacheMode(CacheMode.IGNORE);
+      sess.beginTransaction();
+
+      sess.createQuery(DbDump.getQuery(sessFactory, name, null));
+      DbDump.dumpResults(sess, ctx, fetchSize, clearInterval);
+
+      sess.commit();
+      sess.close();
+    } catch (final Throwable t) {
+      /* The session closes itself on database exceptions */
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+          sess.close();
+        } catch (final Throwable ignored) {}
+      }
+
+      if (t instanceof final RuntimeException re) {
+        throw re;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    }
+
+    if (debug()) {
+      debug("Computed digest for " + name);
+    }
+
+    return d;
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
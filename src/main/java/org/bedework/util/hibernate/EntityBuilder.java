@@ -0,0 +1,886 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+
+/** A sink which rebuilds the dumped entities and hands them on one at
+ * a time as each is completed. It uses the same Dump and NoDump
+ * metadata as DumpEntity to map elements back onto setters, so
+ * entities are only held in memory until they have been passed on.
+ *
+ * <p>References are built with their key fields set and passed to the
+ * Resolver, which by default returns them unchanged. Back references
+ * from a de-duplicated dump are replaced by what the resolver returned
+ * for the refId.</p>
+ *
+ * <p>To restore straight from an xml dump:</p>
+ * <pre>
+ *   new XmlDumpReader(in).replay(
+ *           new EntityBuilder(EntityBuilder.dumpClasses(sf), sess::restore));
+ * </pre>
+ *
+ * <p>Collection members which are compound values must have a
+ * collectionElementName, otherwise their values cannot be told
+ * apart.</p>
+ */
+public class EntityBuilder implements DumpSink, Logged {
+  /** Supplies the entity to use for a reference.
+   */
+  public interface Resolver {
+    /**
+     * @param ref an entity with only its key fields set
+     * @return the entity to use in its place - e.g. the persistent one
+     */
+    Object resolve(Object ref);
+  }
+
+  private static final ClassValue<ClassPlan> plans =
+          new ClassValue<>() {
+            @Override
+            protected ClassPlan computeValue(final Class<?> cl) {
+              return new ClassPlan(cl);
+            }
+          };
+
+  /* A property we can set */
+  private static class Prop {
+    final QName collectionTag;
+    final boolean compound;
+    final Method setter;
+
+    /* Type of the value */
+    final Class<?> type;
+    final boolean entity;
+    final boolean collection;
+
+    /* Type of the members of a collection */
+    final Class<?> memberType;
+    final boolean memberEntity;
+
+    Prop(final Class<?> cl,
+         final DumpPlan.Accessor acc,
+         final Method setter) {
+      collectionTag = acc.collectionTag;
+      compound = acc.compound;
+      this.setter = setter;
+
+      final Type t = setter.getGenericParameterTypes()[0];
+
+      type = resolve(t, cl);
+      entity = DumpEntity.class.isAssignableFrom(type);
+      collection = Collection.class.isAssignableFrom(type);
+
+      if (collection && (t instanceof final ParameterizedType pt) &&
+              (pt.getActualTypeArguments().length == 1)) {
+        memberType = resolve(pt.getActualTypeArguments()[0], cl);
+      } else {
+        memberType = Object.class;
+      }
+
+      memberEntity = DumpEntity.class.isAssignableFrom(memberType);
+    }
+
+    void set(final Object obj,
+             final Object val) {
+      if ((val == null) && type.isPrimitive()) {
+        return;
+      }
+
+      try {
+        setter.invoke(obj, val);
+      } catch (final Throwable t) {
+        throw new BedeworkDatabaseException(t);
+      }
+    }
+  }
+
+  /* The settable properties of a class by tag */
+  private static class ClassPlan {
+    final QName elementTag;
+    final Constructor<?> constructor;
+    final Map<QName, Prop> props = new HashMap<>();
+
+    ClassPlan(final Class<?> cl) {
+      final DumpPlan plan = DumpPlan.get(cl, DumpType.def);
+
+      elementTag = plan.elementTag;
+
+      Constructor<?> c = null;
+      if (!Modifier.isAbstract(cl.getModifiers())) {
+        try {
+          c = cl.getDeclaredConstructor();
+          c.setAccessible(true);
+        } catch (final Throwable ignored) {
+          c = null;
+        }
+      }
+      constructor = c;
+
+      for (final DumpPlan.Accessor acc: plan.accessors) {
+        final Method setter = setter(cl, acc.methodName);
+
+        if (setter != null) {
+          props.put(acc.tag, new Prop(cl, acc, setter));
+        }
+      }
+    }
+
+    Object newInstance(final Class<?> cl) {
+      if (constructor == null) {
+        throw new BedeworkDatabaseException(
+                "No usable constructor for " + cl.getName());
+      }
+
+      try {
+        return constructor.newInstance();
+      } catch (final Throwable t) {
+        throw new BedeworkDatabaseException(t);
+      }
+    }
+  }
+
+  private enum Kind {
+    /* The element wrapping the entities */
+    wrapper,
+
+    /* An entity or compound value */
+    entity,
+
+    /* An entity dumped as a reference */
+    reference,
+
+    /* The element holding a reference */
+    holder,
+
+    collection,
+
+    /* Deletion in a delta dump */
+    tombstone,
+
+    /* Something we don't restore */
+    skip
+  }
+
+  private static class Frame {
+    final Kind kind;
+
+    /* Receives the value when the element closes */
+    final Consumer<Object> target;
+
+    /* The value being built */
+    Object obj;
+
+    ClassPlan plan;
+    Prop prop;
+
+    /* Declared type for a holder */
+    Class<?> type;
+
+    int refId = -1;
+    boolean backRef;
+
+    String entity;
+    String id;
+
+    Frame(final Kind kind,
+          final Consumer<Object> target) {
+      this.kind = kind;
+      this.target = target;
+    }
+  }
+
+  private final Map<QName, Class<?>> classes = new HashMap<>();
+
+  private final Consumer<Object> consumer;
+
+  private Resolver resolver = ref -> ref;
+
+  private BiConsumer<String, String> deletions;
+
+  private final Map<Integer, Object> refs = new HashMap<>();
+
+  private final Deque<Frame> stack = new ArrayDeque<>();
+
+  private long built;
+
+  /**
+   * @param classes the entity classes we may find at the top level
+   *                or as references
+   * @param consumer receives each top level entity
+   */
+  public EntityBuilder(final Collection<Class<?>> classes,
+                       final Consumer<Object> consumer) {
+    this.consumer = consumer;
+
+    for (final Class<?> cl: classes) {
+      if (!DumpEntity.class.isAssignableFrom(cl)) {
+        continue;
+      }
+
+      final DumpPlan plan = DumpPlan.get(cl, DumpType.def);
+
+      if (plan.suppressed || (plan.elementTag == null)) {
+        continue;
+      }
+
+      final Class<?> prev = this.classes.putIfAbsent(plan.elementTag, cl);
+
+      if (prev != null) {
+        warn("Element " + plan.elementTag + " used by " +
+                     prev.getName() + " and " + cl.getName());
+      }
+    }
+  }
+
+  /** The mapped classes which are DumpEntity subclasses.
+   *
+   * @param sessFactory the factory
+   * @return the classes
+   */
+  public static Collection<Class<?>> dumpClasses(
+          final SessionFactory sessFactory) {
+    final List<Class<?>> res = new ArrayList<>();
+
+    for (final EntityPersister persister:
+            ((SessionFactoryImplementor)sessFactory).getMetamodel()
+                                                    .entityPersisters()
+                                                    .values()) {
+      final Class<?> cl = persister.getMappedClass();
+
+      if ((cl != null) && DumpEntity.class.isAssignableFrom(cl)) {
+        res.add(cl);
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * @param val resolves references
+   */
+  public void setResolver(final Resolver val) {
+    resolver = val;
+  }
+
+  /**
+   * @param val called with the entity name and id of each deletion
+   *            in a delta dump. If not set deletions are skipped.
+   */
+  public void setDeletions(final BiConsumer<String, String> val) {
+    deletions = val;
+  }
+
+  /**
+   * @return number of top level entities built so far
+   */
+  public long getBuilt() {
+    return built;
+  }
+
+  /** Forget the resolved back references. Only safe at a point where
+   * the dump started a new context, e.g. a new chunk or part.
+   */
+  public void clearRefs() {
+    refs.clear();
+  }
+
+  /* ==============================================================
+   *                   DumpSink methods
+   * ============================================================== */
+
+  @Override
+  public void openTag(final QName tag) {
+    final Frame top = stack.peek();
+
+    if (top == null) {
+      final Class<?> cl = classes.get(tag);
+
+      if (cl == null) {
+        stack.push(new Frame(Kind.wrapper, null));
+      } else {
+        stack.push(entity(cl, Kind.entity, this::deliver));
+      }
+      return;
+    }
+
+    switch (top.kind) {
+      case wrapper -> {
+        if (tag.equals(DeltaDump.deletedTag)) {
+          stack.push(new Frame(Kind.tombstone, null));
+          return;
+        }
+
+        final Class<?> cl = classes.get(tag);
+
+        if (cl == null) {
+          warn("Skipping unknown element " + tag);
+          skip();
+          return;
+        }
+
+        stack.push(entity(cl, Kind.entity, this::deliver));
+      }
+      case entity, reference -> openProperty(top, tag);
+      case holder -> {
+        final Frame f = entity(classFor(tag, top.type), Kind.reference,
+                               v -> top.obj = v);
+        stack.push(f);
+      }
+      case collection -> openMember(top, tag);
+      default -> skip();
+    }
+  }
+
+  @Override
+  public void closeTag(final QName tag) {
+    if (stack.isEmpty()) {
+      throw new BedeworkDatabaseException("Unbalanced close of " + tag);
+    }
+
+    final Frame f = stack.pop();
+
+    switch (f.kind) {
+      case entity -> f.target.accept(f.obj);
+      case reference -> {
+        if (f.backRef) {
+          f.target.accept(f.obj);
+          return;
+        }
+
+        final Object val = resolver.resolve(f.obj);
+
+        if (f.refId >= 0) {
+          refs.put(f.refId, val);
+        }
+
+        f.target.accept(val);
+      }
+      case holder, collection -> {
+        if (f.obj != null) {
+          f.target.accept(f.obj);
+        }
+      }
+      case tombstone -> {
+        if (deletions != null) {
+          deletions.accept(f.entity, f.id);
+        }
+      }
+      default -> {}
+    }
+  }
+
+  @Override
+  public void property(final QName tag,
+                       final String val) {
+    final Frame top = stack.peek();
+
+    if (top == null) {
+      return;
+    }
+
+    switch (top.kind) {
+      case entity, reference -> {
+        if (top.kind == Kind.reference) {
+          if (tag.equals(DumpContext.refIdTag)) {
+            top.refId = Integer.parseInt(val);
+            return;
+          }
+
+          if (tag.equals(DumpContext.backRefTag)) {
+            final int ref = Integer.parseInt(val);
+
+            top.obj = refs.get(ref);
+            top.backRef = true;
+
+            if (top.obj == null) {
+              throw new BedeworkDatabaseException(
+                      "Unknown back reference " + ref);
+            }
+            return;
+          }
+        }
+
+        final Prop p = top.plan.props.get(tag);
+
+        if (p == null) {
+          unknown(tag);
+          return;
+        }
+
+        if (p.entity || p.collection) {
+          // An empty element
+          return;
+        }
+
+        p.set(top.obj, convert(val, p.type));
+      }
+      case collection -> {
+        final Prop p = top.prop;
+
+        if (p.memberEntity) {
+          return;
+        }
+
+        Class<?> type = p.memberType;
+
+        if ((type == Object.class) && (p.collectionTag == null)) {
+          // Tag is the class of the value
+          type = loadClass(tag.getLocalPart());
+        }
+
+        collection(top).add(convert(val, type));
+      }
+      case tombstone -> {
+        if (tag.equals(DeltaDump.entityTag)) {
+          top.entity = val;
+        } else if (tag.equals(DeltaDump.idTag)) {
+          top.id = val;
+        }
+      }
+      default -> {}
+    }
+  }
+
+  @Override
+  public boolean isElement(final QName tag) {
+    final Frame top = stack.peek();
+
+    if ((top == null) || (top.kind == Kind.wrapper)) {
+      return classes.containsKey(tag);
+    }
+
+    return switch (top.kind) {
+      case entity, reference -> {
+        final Prop p = top.plan.props.get(tag);
+
+        yield (p != null) && p.entity;
+      }
+      case holder -> true;
+      case collection -> top.prop.memberEntity;
+      default -> false;
+    };
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void deliver(final Object val) {
+    built++;
+    consumer.accept(val);
+  }
+
+  private Frame entity(final Class<?> cl,
+                       final Kind kind,
+                       final Consumer<Object> target) {
+    final Frame f = new Frame(kind, target);
+
+    f.plan = plans.get(cl);
+    f.obj = f.plan.newInstance(cl);
+
+    return f;
+  }
+
+  private void skip() {
+    stack.push(new Frame(Kind.skip, null));
+  }
+
+  private void openProperty(final Frame top,
+                            final QName tag) {
+    final Prop p = top.plan.props.get(tag);
+
+    if ((p == null) || !(p.entity || p.collection)) {
+      unknown(tag);
+      skip();
+      return;
+    }
+
+    final Object obj = top.obj;
+    final Consumer<Object> target = v -> p.set(obj, v);
+
+    if (p.collection) {
+      final Frame f = new Frame(Kind.collection, target);
+
+      f.prop = p;
+      f.obj = newCollection(p.type);
+      stack.push(f);
+      return;
+    }
+
+    if (p.compound) {
+      stack.push(entity(p.type, Kind.entity, target));
+      return;
+    }
+
+    final Frame f = new Frame(Kind.holder, target);
+
+    f.type = p.type;
+    stack.push(f);
+  }
+
+  private void openMember(final Frame top,
+                          final QName tag) {
+    final Prop p = top.prop;
+
+    if (!p.memberEntity) {
+      // Simple members are properties
+      skip();
+      return;
+    }
+
+    final Collection<Object> coll = collection(top);
+
+    if (p.collectionTag == null) {
+      if (p.compound) {
+        throw new BedeworkDatabaseException(
+                "Compound collection members need a " +
+                        "collectionElementName: " + tag);
+      }
+
+      stack.push(entity(classFor(tag, p.memberType), Kind.reference,
+                        coll::add));
+      return;
+    }
+
+    if (!tag.equals(p.collectionTag)) {
+      unknown(tag);
+      skip();
+      return;
+    }
+
+    if (p.compound) {
+      stack.push(entity(p.memberType, Kind.entity, coll::add));
+      return;
+    }
+
+    final Frame f = new Frame(Kind.holder, coll::add);
+
+    f.type = p.memberType;
+    stack.push(f);
+  }
+
+  /* The class for an entity element - the declared type will do if
+     it has that element name */
+  private Class<?> classFor(final QName tag,
+                            final Class<?> declared) {
+    final Class<?> cl = classes.get(tag);
+
+    if (cl != null) {
+      return cl;
+    }
+
+    if ((declared != null) &&
+            DumpEntity.class.isAssignableFrom(declared) &&
+            tag.equals(plans.get(declared).elementTag)) {
+      return declared;
+    }
+
+    throw new BedeworkDatabaseException("Unknown entity element " + tag);
+  }
+
+  private void unknown(final QName tag) {
+    if (debug()) {
+      debug("Skipping " + tag + " - no setter");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Collection<Object> collection(final Frame f) {
+    return (Collection<Object>)f.obj;
+  }
+
+  private static Collection<Object> newCollection(final Class<?> type) {
+    if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+      try {
+        @SuppressWarnings("unchecked")
+        final Collection<Object> c =
+                (Collection<Object>)type.getDeclaredConstructor()
+                                        .newInstance();
+        return c;
+      } catch (final Throwable t) {
+        throw new BedeworkDatabaseException(t);
+      }
+    }
+
+    if (type.isAssignableFrom(TreeSet.class) &&
+            SortedSet.class.isAssignableFrom(type)) {
+      return new TreeSet<>();
+    }
+
+    if (Set.class.isAssignableFrom(type)) {
+      return new LinkedHashSet<>();
+    }
+
+    return new ArrayList<>();
+  }
+
+  private static Class<?> loadClass(final String name) {
+    try {
+      return Class.forName(name, false,
+                           EntityBuilder.class.getClassLoader());
+    } catch (final Throwable t) {
+      return String.class;
+    }
+  }
+
+  /* Turn the dumped string back into a value - the reverse of
+     DumpChars.toString */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  static Object convert(final String val,
+                        final Class<?> type) {
+    try {
+      if ((type == String.class) || (type == Object.class)) {
+        return val;
+      }
+
+      if ((type == Integer.class) || (type == int.class)) {
+        return Integer.valueOf(val);
+      }
+
+      if ((type == Long.class) || (type == long.class)) {
+        return Long.valueOf(val);
+      }
+
+      if ((type == Boolean.class) || (type == boolean.class)) {
+        return Boolean.valueOf(val);
+      }
+
+      if ((type == Short.class) || (type == short.class)) {
+        return Short.valueOf(val);
+      }
+
+      if ((type == Byte.class) || (type == byte.class)) {
+        return Byte.valueOf(val);
+      }
+
+      if ((type == Character.class) || (type == char.class)) {
+        return val.charAt(0);
+      }
+
+      if ((type == Double.class) || (type == double.class)) {
+        return Double.valueOf(val);
+      }
+
+      if ((type == Float.class) || (type == float.class)) {
+        return Float.valueOf(val);
+      }
+
+      if (type == char[].class) {
+        return val.toCharArray();
+      }
+
+      if (type == Timestamp.class) {
+        return Timestamp.valueOf(val);
+      }
+
+      if (type == java.sql.Date.class) {
+        return java.sql.Date.valueOf(val);
+      }
+
+      if (type == Time.class) {
+        return Time.valueOf(val);
+      }
+
+      if (type == java.util.Date.class) {
+        return date(val);
+      }
+
+      if (type == BigDecimal.class) {
+        return new BigDecimal(val);
+      }
+
+      if (type == BigInteger.class) {
+        return new BigInteger(val);
+      }
+
+      if (type.isEnum()) {
+        return Enum.valueOf((Class<Enum>)type, val);
+      }
+
+      return type.getConstructor(String.class).newInstance(val);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(
+              "Unable to restore " + type.getName() + " from \"" +
+                      val + "\": " + t);
+    }
+  }
+
+  /* Dumps have the Date.toString form. Also take an ISO instant,
+     which keeps the milliseconds */
+  private static java.util.Date date(final String val)
+          throws ParseException {
+    try {
+      return java.util.Date.from(Instant.parse(val));
+    } catch (final DateTimeParseException ignored) {
+      return new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy",
+                                  Locale.US).parse(val);
+    }
+  }
+
+  /* The public setter for a getter - the one taking the getter's
+     type if there is more than one */
+  private static Method setter(final Class<?> cl,
+                               final String getterName) {
+    final String name = "set" + getterName.substring(3);
+    Class<?> gtype = null;
+
+    try {
+      gtype = cl.getMethod(getterName).getReturnType();
+    } catch (final Throwable ignored) {
+    }
+
+    Method res = null;
+
+    for (final Method m: cl.getMethods()) {
+      if (!m.getName().equals(name) ||
+              (m.getParameterCount() != 1) ||
+              Modifier.isStatic(m.getModifiers())) {
+        continue;
+      }
+
+      if (m.getParameterTypes()[0] == gtype) {
+        return m;
+      }
+
+      if (res == null) {
+        res = m;
+      }
+    }
+
+    return res;
+  }
+
+  /* The class for a type used in cl, following type variables
+     bound by its superclasses */
+  private static Class<?> resolve(final Type t,
+                                  final Class<?> cl) {
+    if (t instanceof final Class<?> c) {
+      return c;
+    }
+
+    if (t instanceof final ParameterizedType pt) {
+      return resolve(pt.getRawType(), cl);
+    }
+
+    if (t instanceof final WildcardType wt) {
+      return resolve(wt.getUpperBounds()[0], cl);
+    }
+
+    if (t instanceof final TypeVariable<?> tv) {
+      final Type bound = bind(tv, cl);
+
+      if (bound != null) {
+        return resolve(bound, cl);
+      }
+
+      return resolve(tv.getBounds()[0], cl);
+    }
+
+    return Object.class;
+  }
+
+  private static Type bind(final TypeVariable<?> tv,
+                           final Class<?> cl) {
+    for (Class<?> c = cl; (c != null) && (c != Object.class);
+         c = c.getSuperclass()) {
+      if (!(c.getGenericSuperclass() instanceof
+              final ParameterizedType pt)) {
+        continue;
+      }
+
+      final TypeVariable<?>[] vars =
+              ((Class<?>)pt.getRawType()).getTypeParameters();
+
+      for (int i = 0; i < vars.length; i++) {
+        if (!vars[i].equals(tv)) {
+          continue;
+        }
+
+        final Type arg = pt.getActualTypeArguments()[i];
+
+        if (arg instanceof final TypeVariable<?> tv1) {
+          return bind(tv1, cl);
+        }
+
+        return arg;
+      }
+    }
+
+    return null;
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,373 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Support for deleting entities with a DELETE statement rather than
+ * loading and deleting them through the session.
+ *
+ * <p>That is only safe when hibernate has nothing to do on delete:
+ * no cascades, no collections and no beforeDeletion() override.
+ * Otherwise callers fall back to the load and delete path.</p>
+ */
+final class EntityDeletes {
+  /** Max ids in one IN list */
+  static final int maxInList = 500;
+
+  /** Max id/version pairs in one version checked delete */
+  static final int maxVersionedInStatement = 100;
+
+  private static final ClassValue<Boolean> hasDeletionHook =
+          new ClassValue<>() {
+            @Override
+            protected Boolean computeValue(final Class<?> cl) {
+              if (!VersionedDbEntity.class.isAssignableFrom(cl)) {
+                return false;
+              }
+
+              try {
+                return cl.getMethod("beforeDeletion")
+                         .getDeclaringClass() != VersionedDbEntity.class;
+              } catch (final NoSuchMethodException nsme) {
+                return true;
+              }
+            }
+          };
+
+  private EntityDeletes() {}
+
+  /**
+   * @param sess hibernate session
+   * @param cl mapped class
+   * @return the persister for the class
+   */
+  static EntityPersister persister(final Session sess,
+                                   final Class<?> cl) {
+    return ((SessionFactoryImplementor)sess.getSessionFactory())
+            .getMetamodel().entityPersister(cl);
+  }
+
+  /** Handles proxies.
+   *
+   * @param sess hibernate session
+   * @param o a mapped object
+   * @return the persister for the object
+   */
+  static EntityPersister persisterFor(final Session sess,
+                                      final Object o) {
+    return ((SessionImplementor)sess).getEntityPersister(null, o);
+  }
+
+  /**
+   * @param cl the class
+   * @param persister its persister
+   * @return true if a DELETE statement is equivalent to a session
+   *         delete for this class
+   */
+  static boolean canDeleteDirectly(final Class<?> cl,
+                                   final EntityPersister persister) {
+    return !persister.hasCascades() &&
+            !persister.hasCollections() &&
+            (persister.getIdentifierPropertyName() != null) &&
+            !hasDeletionHook.get(cl);
+  }
+
+  /**
+   * @param persister of the class
+   * @return name of the version property or null
+   */
+  static String versionName(final EntityPersister persister) {
+    if (!persister.isVersioned()) {
+      return null;
+    }
+
+    return persister.getPropertyNames()[persister.getVersionProperty()];
+  }
+
+  /** Evict any instance with the given id from the session. DELETE
+   * statements bypass the persistence context.
+   *
+   * @param sess hibernate session
+   * @param persister of the class
+   * @param id of the entity
+   */
+  static void evict(final Session sess,
+                    final EntityPersister persister,
+                    final Serializable id) {
+    final SessionImplementor si = (SessionImplementor)sess;
+    final Object o = si.getPersistenceContext()
+                       .getEntity(si.generateEntityKey(id, persister));
+
+    if (o != null) {
+      sess.evict(o);
+    }
+  }
+
+  /**
+   * @param sess hibernate session
+   * @param persister of the class
+   * @param id of the entity
+   * @param seq null or version to check
+   * @return number of rows deleted
+   */
+  static int deleteOne(final Session sess,
+                       final EntityPersister persister,
+                       final Serializable id,
+                       final Integer seq) {
+    final String versionName = versionName(persister);
+
+    evict(sess, persister, id);
+
+    String hql = "delete from " + persister.getEntityName() +
+            " where " + persister.getIdentifierPropertyName() + " = :id";
+
+    if ((seq != null) && (versionName != null)) {
+      hql += " and " + versionName + " = :seq";
+    }
+
+    final Query<?> dq = sess.createQuery(hql);
+    dq.setParameter("id", id);
+
+    if ((seq != null) && (versionName != null)) {
+      dq.setParameter("seq", seq);
+    }
+
+    return dq.executeUpdate();
+  }
+
+  /**
+   * @param sess hibernate session
+   * @param persister of the class
+   * @param id of the entity
+   * @return true if there is a row with that id
+   */
+  static boolean exists(final Session sess,
+                        final EntityPersister persister,
+                        final Serializable id) {
+    final Query<?> q = sess.createQuery(
+            "select count(*) from " + persister.getEntityName() +
+                    " where " + persister.getIdentifierPropertyName() +
+                    " = :id");
+    q.setParameter("id", id);
+
+    return ((Number)q.uniqueResult()).longValue() > 0;
+  }
+
+  /** Delete in chunks of maxInList ids.
+   *
+   * @param sess hibernate session
+   * @param persister of the class
+   * @param ids of the entities
+   * @return number of rows deleted
+   */
+  static int deleteMany(final Session sess,
+                        final EntityPersister persister,
+                        final Collection<? extends Serializable> ids) {
+    final String hql = "delete from " + persister.getEntityName() +
+            " where " + persister.getIdentifierPropertyName() +
+            " in (:ids)";
+    final List<Serializable> chunk = new ArrayList<>(
+            Math.min(ids.size(), maxInList));
+    int ct = 0;
+
+    for (final Serializable id: ids) {
+      evict(sess, persister, id);
+      chunk.add(id);
+
+      if (chunk.size() == maxInList) {
+        ct += deleteChunk(sess, hql, chunk);
+        chunk.clear();
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      ct += deleteChunk(sess, hql, chunk);
+    }
+
+    return ct;
+  }
+
+  /** Version checked delete of a number of entities of the same
+   * class - one statement per maxVersionedInStatement entities.
+   *
+   * @param sess hibernate session
+   * @param persister of the class
+   * @param ents the entities - all saved
+   * @return number of rows deleted
+   */
+  static int deleteVersioned(final Session sess,
+                             final EntityPersister persister,
+                             final List<? extends VersionedDbEntity<?, ?>> ents) {
+    final String idName = persister.getIdentifierPropertyName();
+    final String versionName = versionName(persister);
+    final String prefix = "delete from " + persister.getEntityName() +
+            " where ";
+    int ct = 0;
+
+    for (int start = 0; start < ents.size();
+         start += maxVersionedInStatement) {
+      final List<? extends VersionedDbEntity<?, ?>> chunk =
+              ents.subList(start,
+                           Math.min(ents.size(),
+                                    start + maxVersionedInStatement));
+      final StringBuilder hql = new StringBuilder(prefix);
+
+      for (int i = 0; i < chunk.size(); i++) {
+        if (i > 0) {
+          hql.append(" or ");
+        }
+
+        final VersionedDbEntity<?, ?> ent = chunk.get(i);
+        evict(sess, persister, (Serializable)ent.getId());
+
+        hql.append("(").append(idName).append(" = :id").append(i);
+        if ((versionName != null) && (ent.getSeq() != null)) {
+          hql.append(" and ").append(versionName)
+             .append(" = :seq").append(i);
+        }
+        hql.append(")");
+      }
+
+      final Query<?> dq = sess.createQuery(hql.toString());
+
+      for (int i = 0; i < chunk.size(); i++) {
+        final VersionedDbEntity<?, ?> ent = chunk.get(i);
+
+        dq.setParameter("id" + i, ent.getId());
+        if ((versionName != null) && (ent.getSeq() != null)) {
+          dq.setParameter("seq" + i, ent.getSeq());
+        }
+      }
+
+      ct += dq.executeUpdate();
+    }
+
+    return ct;
+  }
+
+  /** Split entities of a class which refers to itself into levels.
+   * Nothing in a level is referred to by an entity in the same or a
+   * later level, so deleting the levels in order never removes a row
+   * still referred to. Entities in a cycle end up in the last level.
+   *
+   * @param persister of the class
+   * @param selfRefs indexes of the properties referring to the class
+   * @param ents the entities - distinct ids
+   * @return the levels in delete order
+   */
+  static List<List<VersionedDbEntity<?, ?>>> deleteLevels(
+          final EntityPersister persister,
+          final int[] selfRefs,
+          final List<VersionedDbEntity<?, ?>> ents) {
+    final Map<Object, VersionedDbEntity<?, ?>> byId = new HashMap<>();
+    for (final VersionedDbEntity<?, ?> ent: ents) {
+      byId.put(ent.getId(), ent);
+    }
+
+    /* For each entity the ones in the set it refers to, and the
+       number in the set referring to it. */
+    final Map<Object, List<Object>> refersTo = new HashMap<>();
+    final Map<Object, Integer> referredBy = new HashMap<>();
+
+    for (final VersionedDbEntity<?, ?> ent: ents) {
+      final Object[] vals = persister.getPropertyValues(ent);
+      final List<Object> targets = new ArrayList<>();
+
+      for (final int i: selfRefs) {
+        final Object target = idOf(vals[i]);
+
+        if ((target != null) && !target.equals(ent.getId()) &&
+                byId.containsKey(target)) {
+          targets.add(target);
+          referredBy.merge(target, 1, Integer::sum);
+        }
+      }
+
+      refersTo.put(ent.getId(), targets);
+    }
+
+    final List<List<VersionedDbEntity<?, ?>>> res = new ArrayList<>();
+    List<VersionedDbEntity<?, ?>> remaining = ents;
+
+    while (!remaining.isEmpty()) {
+      final List<VersionedDbEntity<?, ?>> level = new ArrayList<>();
+      final List<VersionedDbEntity<?, ?>> rest = new ArrayList<>();
+
+      for (final VersionedDbEntity<?, ?> ent: remaining) {
+        if (referredBy.getOrDefault(ent.getId(), 0) == 0) {
+          level.add(ent);
+        } else {
+          rest.add(ent);
+        }
+      }
+
+      if (level.isEmpty()) {
+        // A cycle - leave it to the database
+        res.add(rest);
+        break;
+      }
+
+      for (final VersionedDbEntity<?, ?> ent: level) {
+        for (final Object target: refersTo.get(ent.getId())) {
+          referredBy.merge(target, -1, Integer::sum);
+        }
+      }
+
+      res.add(level);
+      remaining = rest;
+    }
+
+    return res;
+  }
+
+  /* The id of an associated entity without initializing a proxy */
+  private static Object idOf(final Object val) {
+    if (val instanceof final HibernateProxy hp) {
+      return hp.getHibernateLazyInitializer().getIdentifier();
+    }
+
+    if (val instanceof final UnversionedDbentity<?, ?> ent) {
+      return ent.getId();
+    }
+
+    return null;
+  }
+
+  private static int deleteChunk(final Session sess,
+                                 final String hql,
+                                 final List<Serializable> ids) {
+    final Query<?> dq = sess.createQuery(hql);
+    dq.setParameterList("ids", ids);
+
+    return dq.executeUpdate();
+  }
+}
@@ -0,0 +1,198 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Orders mapped entities by their many-to-one and one-to-one
+ * associations so that referenced entities come before the entities
+ * referring to them. That is the order for inserts - reverse it for
+ * deletes.
+ *
+ * <p>Classes involved in a cycle are left in the order given.
+ * References from a class to itself do not affect the order of the
+ * classes - see selfReferences.</p>
+ */
+final class EntityDependencies {
+  private EntityDependencies() {}
+
+  /**
+   * @param sf the session factory
+   * @param entityNames names of mapped entities
+   * @return the names ordered referenced first
+   */
+  static List<String> insertOrder(final SessionFactoryImplementor sf,
+                                  final Collection<String> entityNames) {
+    return insertOrder(sf, entityNames, null);
+  }
+
+  /**
+   * @param sf the session factory
+   * @param entityNames names of mapped entities
+   * @param cyclic null or gets the names of classes which could not
+   *               be ordered because of a cycle - those in it and
+   *               those referring to it
+   * @return the names ordered referenced first
+   */
+  static List<String> insertOrder(final SessionFactoryImplementor sf,
+                                  final Collection<String> entityNames,
+                                  final Set<String> cyclic) {
+    /* For each entity, the entities in the set it refers to */
+    final Map<String, Set<String>> refersTo = new LinkedHashMap<>();
+
+    for (final String name: entityNames) {
+      refersTo.put(name, new HashSet<>());
+    }
+
+    for (final String name: entityNames) {
+      final EntityPersister persister =
+              sf.getMetamodel().entityPersister(name);
+
+      for (final Type t: persister.getPropertyTypes()) {
+        if (!(t instanceof final EntityType et)) {
+          continue;
+        }
+
+        final String target = rootOrSelf(sf, et.getAssociatedEntityName(),
+                                         refersTo.keySet());
+        if ((target != null) && !target.equals(name)) {
+          refersTo.get(name).add(target);
+        }
+      }
+    }
+
+    /* Kahn's algorithm - count unresolved references */
+    final Map<String, Integer> pending = new HashMap<>();
+    final Map<String, List<String>> referredBy = new HashMap<>();
+
+    for (final Map.Entry<String, Set<String>> ent: refersTo.entrySet()) {
+      pending.put(ent.getKey(), ent.getValue().size());
+
+      for (final String target: ent.getValue()) {
+        referredBy.computeIfAbsent(target, k -> new ArrayList<>())
+                  .add(ent.getKey());
+      }
+    }
+
+    final List<String> res = new ArrayList<>(entityNames.size());
+    final List<String> ready = new ArrayList<>();
+
+    for (final String name: refersTo.keySet()) {
+      if (pending.get(name) == 0) {
+        ready.add(name);
+      }
+    }
+
+    while (!ready.isEmpty()) {
+      final String name = ready.remove(0);
+      res.add(name);
+
+      for (final String referrer:
+              referredBy.getOrDefault(name, Collections.emptyList())) {
+        final int ct = pending.get(referrer) - 1;
+        pending.put(referrer, ct);
+
+        if (ct == 0) {
+          ready.add(referrer);
+        }
+      }
+    }
+
+    /* Anything left is in a cycle */
+    for (final String name: refersTo.keySet()) {
+      if (!res.contains(name)) {
+        res.add(name);
+
+        if (cyclic != null) {
+          cyclic.add(name);
+        }
+      }
+    }
+
+    return res;
+  }
+
+  /** Entities of a class which refers to itself (or to its own
+   * hierarchy) must themselves be ordered.
+   *
+   * @param sf the session factory
+   * @param persister of the entity
+   * @return indexes of the properties referring to the same class
+   *         hierarchy - empty for none
+   */
+  static int[] selfReferences(final SessionFactoryImplementor sf,
+                              final EntityPersister persister) {
+    final String name = persister.getEntityName();
+    final Type[] types = persister.getPropertyTypes();
+    final int[] res = new int[types.length];
+    int ct = 0;
+
+    for (int i = 0; i < types.length; i++) {
+      if (!(types[i] instanceof final EntityType et)) {
+        continue;
+      }
+
+      final String target = et.getAssociatedEntityName();
+
+      if (target.equals(name) ||
+              persister.isSubclassEntityName(target) ||
+              sf.getMetamodel().entityPersister(target)
+                .isSubclassEntityName(name)) {
+        res[ct] = i;
+        ct++;
+      }
+    }
+
+    return Arrays.copyOf(res, ct);
+  }
+
+  /** An association may name a superclass of an entity in our set.
+   */
+  private static String rootOrSelf(final SessionFactoryImplementor sf,
+                                   final String target,
+                                   final Set<String> names) {
+    if (names.contains(target)) {
+      return target;
+    }
+
+    final EntityPersister tp = sf.getMetamodel().entityPersister(target);
+
+    for (final String name: names) {
+      if (tp.isSubclassEntityName(name)) {
+        return name;
+      }
+    }
+
+    return null;
+  }
+}
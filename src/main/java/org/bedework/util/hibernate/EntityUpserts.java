@@ -0,0 +1,163 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Native single statement insert-or-update of an entity.
+ *
+ * <p>Only done for simple mappings: the dialect implements
+ * UpsertDialect, the entity has a single table with no inheritance,
+ * no collections or cascades, a single column id which is already
+ * set and only single column properties. Otherwise upsert returns
+ * false and the caller falls back to merge.</p>
+ *
+ * <p>The version is written as it is in the object (seeded if null),
+ * so the statement is not version checked - last writer wins.
+ * Properties mapped update="false" are only written when the row is
+ * inserted.</p>
+ */
+final class EntityUpserts {
+  private EntityUpserts() {}
+
+  /**
+   * @param sess hibernate session
+   * @param obj entity to insert or update
+   * @return false if we cannot do this natively
+   */
+  static boolean upsert(final Session sess,
+                        final Object obj) {
+    final SessionImplementor si = (SessionImplementor)sess;
+    final SessionFactoryImplementor sf = si.getFactory();
+    final Dialect dialect = sf.getJdbcServices().getDialect();
+
+    if (!(dialect instanceof final UpsertDialect ud)) {
+      return false;
+    }
+
+    final EntityPersister persister = si.getEntityPersister(null, obj);
+
+    if (!(persister instanceof final AbstractEntityPersister aep) ||
+            persister.hasCollections() ||
+            persister.hasCascades() ||
+            persister.isInherited() ||
+            persister.getEntityMetamodel().hasSubclasses() ||
+            (persister.getIdentifierType().getColumnSpan(sf) != 1)) {
+      return false;
+    }
+
+    final Serializable id = persister.getIdentifier(obj, si);
+    if (id == null) {
+      return false;
+    }
+
+    final Object[] values = persister.getPropertyValues(obj);
+
+    if (persister.isVersioned()) {
+      final int vi = persister.getVersionProperty();
+
+      if (values[vi] == null) {
+        values[vi] = persister.getVersionType().seed(si);
+        persister.setPropertyValue(obj, vi, values[vi]);
+      }
+    }
+
+    final Type[] types = persister.getPropertyTypes();
+    final boolean[] insertable = persister.getPropertyInsertability();
+    final boolean[] updateability = persister.getPropertyUpdateability();
+    final List<String> cols = new ArrayList<>();
+    final List<Integer> props = new ArrayList<>();
+
+    for (int i = 0; i < types.length; i++) {
+      if (!insertable[i]) {
+        continue;
+      }
+
+      final String[] pcols = aep.getPropertyColumnNames(i);
+      if ((pcols.length != 1) || (pcols[0] == null)) {
+        // Component or formula
+        return false;
+      }
+
+      cols.add(pcols[0]);
+      props.add(i);
+    }
+
+    final String[] keyCols = aep.getIdentifierColumnNames();
+    final boolean[] updateable = new boolean[props.size()];
+    final int[] sqlTypes = new int[keyCols.length + props.size()];
+
+    sqlTypes[0] = persister.getIdentifierType().sqlTypes(sf)[0];
+
+    for (int i = 0; i < props.size(); i++) {
+      final int prop = props.get(i);
+
+      updateable[i] = updateability[prop];
+      sqlTypes[keyCols.length + i] = types[prop].sqlTypes(sf)[0];
+    }
+
+    final String sql = ud.getUpsertString(aep.getTableName(),
+                                          keyCols,
+                                          cols.toArray(new String[0]),
+                                          updateable,
+                                          sqlTypes);
+    final int[] order = ud.getUpsertParameterOrder(keyCols.length,
+                                                   updateable);
+
+    /* Our sql bypasses the persistence context */
+    EntityDeletes.evict(sess, persister, id);
+
+    sess.doWork(conn -> {
+      try (final PreparedStatement ps = conn.prepareStatement(sql)) {
+        for (int pi = 0; pi < order.length; pi++) {
+          final int col = order[pi];
+
+          if (col == 0) {
+            persister.getIdentifierType()
+                     .nullSafeSet(ps, id, pi + 1, si);
+          } else {
+            final int prop = props.get(col - 1);
+
+            types[prop].nullSafeSet(ps, values[prop], pi + 1, si);
+          }
+        }
+
+        ps.executeUpdate();
+      }
+    });
+
+    /* ... and the second level cache */
+    if (persister.hasCache()) {
+      sf.getCache().evictEntityData(persister.getEntityName(), id);
+    }
+
+    return true;
+  }
+}
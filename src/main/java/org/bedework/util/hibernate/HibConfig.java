@@ -14,8 +14,11 @@ import org.hibernate.cfg.Configuration;
 import java.io.File;
 import java.io.StringReader;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.function.Supplier;
 
 /** Get configuration from JMX bean
  * User: mike
@@ -23,24 +26,121 @@ import java.util.Properties;
  * Time: 00:17
  */
 public class HibConfig implements Logged {
-  private final HibernateConfigBase<?> config;
+  private final Supplier<List<String>> hibProps;
   private final ClassLoader classLoader;
-  
+
+  private volatile Snapshot snapshot;
+
+  /** An immutable snapshot of the parsed hibernate properties. Safe
+   * to share between threads.
+   */
+  public static final class Snapshot {
+    /* What we parsed - to spot changes */
+    private final List<String> source;
+    private final Properties props;
+    private final ClassLoader classLoader;
+
+    Snapshot(final List<String> source,
+             final Properties props,
+             final ClassLoader classLoader) {
+      this.source = source;
+      this.props = props;
+      this.classLoader = classLoader;
+    }
+
+    /**
+     * @return a copy of the hibernate properties
+     */
+    public Properties getProperties() {
+      final Properties p = new Properties();
+      p.putAll(props);
+
+      return p;
+    }
+
+    /** Each Configuration gets its own bootstrap registry which is
+     * closed along with the session factory built from it.
+     *
+     * @return a new Configuration with the properties applied
+     */
+    public Configuration newConfiguration() {
+      final BootstrapServiceRegistry bsr =
+              new BootstrapServiceRegistryBuilder()
+                      .applyClassLoader(HibConfig.class.getClassLoader())
+                      .applyClassLoader(classLoader)
+                      .build();
+      final Configuration hibCfg = new Configuration(bsr);
+
+      /* addProperties copies the values */
+      hibCfg.addProperties(props);
+
+      return hibCfg;
+    }
+  }
+
   public HibConfig(final HibernateConfigBase<?> config) {
-    this.config = config;
-    this.classLoader = config.getClass().getClassLoader();
+    this(config::getHibernateProperties,
+         config.getClass().getClassLoader());
   }
 
   public HibConfig(final HibernateConfigBase<?> config,
                    final ClassLoader classLoader) {
-    this.config = config;
+    this(config::getHibernateProperties, classLoader);
+  }
+
+  HibConfig(final Supplier<List<String>> hibProps,
+            final ClassLoader classLoader) {
+    this.hibProps = hibProps;
     this.classLoader = classLoader;
   }
 
+  /** The snapshot is built on first use and rebuilt if the
+   * hibernate properties in the configuration have changed since.
+   *
+   * @return the current snapshot
+   */
+  public Snapshot getSnapshot() {
+    final List<String> ps = hibProps.get();
+    final Snapshot s = snapshot;
+
+    if ((s != null) && Objects.equals(s.source, ps)) {
+      return s;
+    }
+
+    synchronized (this) {
+      final Snapshot cur = snapshot;
+
+      if ((cur != null) && Objects.equals(cur.source, ps)) {
+        return cur;
+      }
+
+      final List<String> copy;
+      if (ps == null) {
+        copy = null;
+      } else {
+        copy = new ArrayList<>(ps);
+      }
+
+      final Snapshot built = new Snapshot(copy,
+                                          loadProperties(copy),
+                                          classLoader);
+      snapshot = built;
+
+      return built;
+    }
+  }
+
+  /** Discard the snapshot so that the next call rebuilds it.
+   * Changes to the hibernate properties are picked up without this.
+   */
+  public void refresh() {
+    snapshot = null;
+  }
+
   /**
    * @return Configuration based on the properties
    */
-  public synchronized Configuration getHibConfiguration() {
+  public Configuration getHibConfiguration() {
     return getHibConfiguration("hibernate.cfg.xml");
   }
 
@@ -48,7 +148,7 @@ public class HibConfig implements Logged {
    * @param xmlCfgName name of config file - e.g "hibernate.cfg.xml"
    * @return Configuration based on the properties
    */
-  public synchronized Configuration getHibConfiguration(final String xmlCfgName) {
+  public Configuration getHibConfiguration(final String xmlCfgName) {
     final URL url = classLoader.getResource(xmlCfgName);
     if (url == null) {
       throw new RuntimeException("Unable to locate " + xmlCfgName);
@@ -71,17 +171,9 @@ public class HibConfig implements Logged {
   /**
    * @return Configuration based on the properties
    */
-  public synchronized Configuration getHibConfiguration(final File xmlCfg) {
+  public Configuration getHibConfiguration(final File xmlCfg) {
     try {
-      final BootstrapServiceRegistry bsr =
-              new BootstrapServiceRegistryBuilder().
-                      applyClassLoader(classLoader).
-                      build();
-      final Configuration hibCfg = new Configuration(bsr);
-
-      hibCfg.addProperties(getProps()).configure(xmlCfg);
-
-      return hibCfg;
+      return getSnapshot().newConfiguration().configure(xmlCfg);
     } catch (final Throwable t) {
       // Always bad.
       error(t);
@@ -93,18 +185,9 @@ public class HibConfig implements Logged {
   /**
    * @return Configuration based on the properties
    */
-  public synchronized Configuration getHibConfiguration(final URL xmlCfgUrl) {
+  public Configuration getHibConfiguration(final URL xmlCfgUrl) {
     try {
-      final BootstrapServiceRegistry bsr =
-              new BootstrapServiceRegistryBuilder()
-                      .applyClassLoader(this.getClass().getClassLoader())
-                      .applyClassLoader(classLoader)
-                      .build();
-      final Configuration hibCfg = new Configuration(bsr);
-
-      hibCfg.addProperties(getProps()).configure(xmlCfgUrl);
-
-      return hibCfg;
+      return getSnapshot().newConfiguration().configure(xmlCfgUrl);
     } catch (final Throwable t) {
       // Always bad.
       error(t);
@@ -113,19 +196,28 @@ public class HibConfig implements Logged {
     }
   }
 
-  private Properties getProps() {
+  /** Parse a list of "name=value" hibernate properties.
+   *
+   * @param ps possibly null list of properties
+   * @return parsed properties with the pool option applied
+   */
+  static Properties loadProperties(final List<String> ps) {
     try {
-      final StringBuilder sb = new StringBuilder();
+      final Properties hprops = new Properties();
 
-      final List<String> ps = config.getHibernateProperties();
+      if (ps == null) {
+        return hprops;
+      }
+
+      final StringBuilder sb = new StringBuilder();
 
       for (final String p: ps) {
         sb.append(p);
-        sb.append("\n");
+        sb.append('\n');
       }
 
-      final Properties hprops = new Properties();
       hprops.load(new StringReader(sb.toString()));
+      PooledConnectionProvider.applyTo(hprops);
 
       return hprops;
     } catch (final Throwable t) {
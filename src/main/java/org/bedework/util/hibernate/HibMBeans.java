@@ -0,0 +1,95 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.logging.BwLogger;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Registers the monitoring beans for this package with the platform
+ * MBean server. Registration failures are logged and otherwise
+ * ignored - monitoring must never stop the application.
+ */
+final class HibMBeans {
+  /** Domain for all our beans */
+  static final String domain = "org.bedework.util.hibernate";
+
+  private static final BwLogger logger = new BwLogger();
+
+  static {
+    logger.setLoggedClass(HibMBeans.class);
+  }
+
+  private HibMBeans() {}
+
+  /**
+   * @param type of bean, e.g. "SessionGovernor"
+   * @param name distinguishes beans of the same type
+   * @param mbean the bean
+   */
+  static void register(final String type,
+                       final String name,
+                       final Object mbean) {
+    try {
+      final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName on = objectName(type, name);
+
+      if (mbs.isRegistered(on)) {
+        return;
+      }
+
+      mbs.registerMBean(mbean, on);
+    } catch (final InstanceAlreadyExistsException ignored) {
+      // Lost a race - someone else registered it
+    } catch (final Throwable t) {
+      logger.warn("Unable to register mbean " + type + "/" + name +
+                          ": " + t.getMessage());
+    }
+  }
+
+  /**
+   * @param type of bean
+   * @param name of bean
+   */
+  static void unregister(final String type,
+                         final String name) {
+    try {
+      final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName on = objectName(type, name);
+
+      if (mbs.isRegistered(on)) {
+        mbs.unregisterMBean(on);
+      }
+    } catch (final Throwable t) {
+      logger.warn("Unable to unregister mbean " + type + "/" + name +
+                          ": " + t.getMessage());
+    }
+  }
+
+  private static ObjectName objectName(final String type,
+                                       final String name)
+          throws Exception {
+    return new ObjectName(domain + ":type=" + type +
+                                  ",name=" + ObjectName.quote(name));
+  }
+}
@@ -18,6 +18,7 @@
 */
 package org.bedework.util.hibernate;
 
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
@@ -27,6 +28,7 @@ import java.sql.Blob;
 import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /** Interface to do hibernate interactions.
  *
@@ -39,6 +41,27 @@ public interface HibSession extends Serializable {
    */
   void init(SessionFactory sessFactory);
 
+  /** Set the governor which watches the size of the persistence
+   * context. Defaults to SessionGovernor.getDefault().
+   *
+   * @param val governor or null for none
+   */
+  void setGovernor(SessionGovernor val);
+
+  /** Mark the session as one which streams entities through without
+   * holding on to them, e.g. an import. Only then may a governor
+   * with the flushEvict action evict entities.
+   *
+   * @param val true for a streaming session - default false
+   */
+  void setStreaming(boolean val);
+
+  /** Record each entity restored.
+   *
+   * @param val stats or null for none - the default
+   */
+  void setRestoreStats(DumpStats val);
+
   /**
    * @return Session
    */
@@ -170,6 +193,12 @@ public interface HibSession extends Serializable {
    */
   void setMaxResults(int val);
 
+  /** Set the JDBC fetch size for the query
+   *
+   * @param val      int rows per fetch
+   */
+  void setFetchSize(int val);
+
   /** Return the single object resulting from the query.
    *
    * @return Object          retrieved object or null
@@ -182,6 +211,13 @@ public interface HibSession extends Serializable {
    */
   List getList();
 
+  /** Return a forward only cursor over the results of the query. The
+   * caller must close it and should clear the session as it goes.
+   *
+   * @return ScrollableResults          cursor over the results
+   */
+  ScrollableResults scroll();
+
   /**
    * @return int number updated
    */
@@ -209,6 +245,31 @@ public interface HibSession extends Serializable {
    */
   void saveOrUpdate(Object obj);
 
+  /** Set the given properties of a versioned entity if, and only if,
+   * its version is still seq. The version is incremented. The entity
+   * is not loaded and any instance in this session is evicted.
+   *
+   * @param cl    Class of the entity
+   * @param id    its id
+   * @param seq   the expected version
+   * @param vals  property name to new value
+   * @return true if the entity was updated, false if the version
+   *         has changed or the entity is gone
+   */
+  boolean compareAndSet(Class<?> cl, Serializable id, int seq,
+                        Map<String, ?> vals);
+
+  /** Insert or update an entity with an assigned id in a single
+   * statement if the dialect implements UpsertDialect and the mapping
+   * is simple enough. Otherwise merge the object. The object is not
+   * associated with the session afterwards.
+   *
+   * <p>The native statement is not version checked.</p>
+   *
+   * @param obj entity
+   */
+  void upsert(Object obj);
+
   /** Return an object of the given class with the given id if it is
    * already associated with this session. This must be called for specific
    * key queries or we can get a NonUniqueObjectException later.
@@ -241,6 +302,27 @@ public interface HibSession extends Serializable {
    */
   void delete(Object obj);
 
+  /** Delete the entity with the given id without loading it. If the
+   * class has cascades, collections or a beforeDeletion() override
+   * this falls back to loading the entity and calling delete.
+   *
+   * @param cl    Class of the entity
+   * @param id    its id
+   * @param seq   null or the expected version. If the row has a
+   *              different version a stale state exception is thrown.
+   * @return true if the entity was deleted
+   */
+  boolean deleteById(Class<?> cl, Serializable id, Integer seq);
+
+  /** Delete the entities with the given ids without loading them.
+   * There is no version check. Falls back as for deleteById.
+   *
+   * @param cl    Class of the entities
+   * @param ids   their ids
+   * @return number deleted
+   */
+  int deleteByIds(Class<?> cl, Collection<? extends Serializable> ids);
+
   /** Save a new object with the given id. This should only be used for
    * restoring the db from a save.
    *
@@ -248,11 +330,13 @@ public interface HibSession extends Serializable {
    */
   void restore(Object obj);
 
-  /**
+  /** Carry out any queued deletions of sub-entities then flush
+   * the session.
    */
   void flush();
 
-  /**
+  /** Clear the session, dropping any queued deletions of
+   * sub-entities.
    */
   void clear();
 
@@ -23,10 +23,7 @@ import org.bedework.base.exc.persist.BedeworkDatabaseException;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
 
-import java.io.StringReader;
 import java.util.List;
-import java.util.Properties;
-import java.util.stream.Collectors;
 
 /** Convenience class to do the actual hibernate interaction. Intended for
  * one use only.
@@ -34,7 +31,24 @@ import java.util.stream.Collectors;
  * @author Mike Douglass douglm@rpi.edu
  */
 public class HibSessionFactory {
-  /**
+  private static final SessionWatchdog watchdog = new SessionWatchdog();
+
+  static {
+    HibMBeans.register("SessionWatchdog", "default", watchdog);
+  }
+
+  /** The watchdog tracks open sessions and transactions. It is
+   * disabled until enabled here or through JMX.
+   *
+   * @return the watchdog for sessions.
+   */
+  public static SessionWatchdog getWatchdog() {
+    return watchdog;
+  }
+
+  /** Setting org.bedework.hibernate.pool=true in the properties
+   * selects the built in PooledConnectionProvider.
+   *
    * @param hibProps possibly null list of hibernate properties
    * @return the SessionFactory
    */
@@ -47,13 +61,7 @@ public class HibSessionFactory {
       final Configuration conf = new Configuration();
 
       if (hibProps != null) {
-        final String sb = hibProps.stream().map(p -> p + "\n")
-                                  .collect(Collectors.joining());
-
-        final Properties hprops = new Properties();
-        hprops.load(new StringReader(sb));
-
-        conf.addProperties(hprops);
+        conf.addProperties(HibConfig.loadProperties(hibProps));
       }
 
       conf.configure();
@@ -29,11 +29,15 @@ import org.bedework.util.misc.Util;
 import org.hibernate.Hibernate;
 import org.hibernate.Query;
 import org.hibernate.ReplicationMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.StaleStateException;
 import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.persister.entity.EntityPersister;
 
 import java.io.InputStream;
 import java.io.Serializable;
@@ -41,8 +45,15 @@ import java.sql.Blob;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.OptimisticLockException;
 
@@ -61,6 +72,30 @@ public class HibSessionImpl implements Logged, HibSession {
   /** Exception from this session. */
   Throwable exc;
 
+  private transient SessionGovernor governor =
+          SessionGovernor.getDefault();
+
+  private transient DumpStats restoreStats;
+
+  /* True if the governor warned about this session */
+  private boolean governorWarned;
+
+  /* Governor may evict */
+  private boolean streaming;
+
+  /* Deleted subentities waiting for the next flush or commit, by
+     entity name then id */
+  private final Map<String, Map<Object, VersionedDbEntity<?, ?>>>
+          pendingDeletes = new LinkedHashMap<>();
+  private final Map<String, EntityPersister> pendingPersisters =
+          new HashMap<>();
+
+  /* Entity names in pendingDeletes we can delete with a statement */
+  private final Set<String> pendingDirect = new HashSet<>();
+
+  /* Non-null if the watchdog is tracking us */
+  private transient SessionWatchdog.Tracked tracked;
+
   private final SimpleDateFormat dateFormatter =
           new SimpleDateFormat("yyyy-MM-dd");
 
@@ -69,6 +104,7 @@ public class HibSessionImpl implements Logged, HibSession {
     try {
       sess = sessFactory.openSession();
       rolledBack = false;
+      tracked = HibSessionFactory.getWatchdog().opened(this);
     } catch (final Throwable t) {
       exc = t;
       tx = null;  // not even started. Should be null anyway
@@ -76,6 +112,21 @@ public class HibSessionImpl implements Logged, HibSession {
     }
   }
 
+  @Override
+  public void setGovernor(final SessionGovernor val) {
+    governor = val;
+  }
+
+  @Override
+  public void setStreaming(final boolean val) {
+    streaming = val;
+  }
+
+  @Override
+  public void setRestoreStats(final DumpStats val) {
+    restoreStats = val;
+  }
+
   @Override
   public Session getSession() {
     return sess;
@@ -84,7 +135,7 @@ public class HibSessionImpl implements Logged, HibSession {
   @Override
   public boolean isOpen() {
     try {
-      if (sess == null) {
+      if (abandoned() || (sess == null)) {
         return false;
       }
       return sess.isOpen();
@@ -101,7 +152,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void beginTransaction() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -116,6 +167,7 @@ public class HibSessionImpl implements Logged, HibSession {
       if (tx == null) {
         throw  new BedeworkDatabaseException("Transaction not started");
       }
+      HibSessionFactory.getWatchdog().transaction(tracked, true);
     } catch (final BedeworkException be) {
       exc = be;
       throw be;
@@ -132,7 +184,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void commit() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -147,10 +199,12 @@ public class HibSessionImpl implements Logged, HibSession {
       if ((tx != null) &&
               !rolledBack &&
               !tx.getRollbackOnly()) {
+        flushDeletes();
         tx.commit();
       }
 
       tx = null;
+      HibSessionFactory.getWatchdog().transaction(tracked, false);
     } catch (final Throwable t) {
       exc = t;
 
@@ -182,6 +236,7 @@ public class HibSessionImpl implements Logged, HibSession {
     if (getLogger().isDebugEnabled()) {
       getLogger().debug("Enter rollback");
     }
+    abandoned();
     try {
       if ((tx != null) &&
           !rolledBack) {
@@ -190,7 +245,9 @@ public class HibSessionImpl implements Logged, HibSession {
         }
         tx.rollback();
         tx = null;
+        HibSessionFactory.getWatchdog().transaction(tracked, false);
         sess.clear();
+        clearDeletes();
       }
     } catch (final Throwable t) {
       exc = t;
@@ -236,7 +293,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void evict(final Object val) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -250,7 +307,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void createQuery(final String s) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -264,7 +321,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void cacheableQuery() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -278,7 +335,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setString(final String parName, final String parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -292,7 +349,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setBool(final String parName, final boolean parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -306,7 +363,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setInt(final String parName, final int parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -320,7 +377,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setLong(final String parName, final long parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -334,7 +391,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setEntity(final String parName, final Object parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -349,7 +406,7 @@ public class HibSessionImpl implements Logged, HibSession {
   @Override
   public void setParameterList(final String parName,
                                final Collection<?> parVal) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -363,7 +420,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setFirstResult(final int val) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -377,7 +434,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void setMaxResults(final int val) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -389,15 +446,32 @@ public class HibSessionImpl implements Logged, HibSession {
     }
   }
 
+  @Override
+  public void setFetchSize(final int val) {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    try {
+      q.setFetchSize(val);
+    } catch (final Throwable t) {
+      handleException(t);
+    }
+  }
+
   @Override
   public Object getUnique() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
 
     try {
-      return q.uniqueResult();
+      final Object o = q.uniqueResult();
+      govern(null);
+
+      return o;
     } catch (final Throwable t) {
       handleException(t);
       return null;  // Don't get here
@@ -406,13 +480,14 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public List getList() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
 
     try {
       final List<?> l = q.list();
+      govern(null);
 
       if (l == null) {
         return new ArrayList<>();
@@ -425,9 +500,24 @@ public class HibSessionImpl implements Logged, HibSession {
     }
   }
 
+  @Override
+  public ScrollableResults scroll() {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    try {
+      return q.scroll(ScrollMode.FORWARD_ONLY);
+    } catch (final Throwable t) {
+      handleException(t);
+      return null;  // Don't get here
+    }
+  }
+
   @Override
   public int executeUpdate() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -446,7 +536,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void update(final Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -455,6 +545,7 @@ public class HibSessionImpl implements Logged, HibSession {
       beforeSave(obj);
       sess.update(obj);
       deleteSubs(obj);
+      govern(obj);
     } catch (final Throwable t) {
       handleException(t);
     }
@@ -462,7 +553,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public Object merge(Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -472,6 +563,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
       obj = sess.merge(obj);
       deleteSubs(obj);
+      govern(null);
 
       return obj;
     } catch (final Throwable t) {
@@ -482,7 +574,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void saveOrUpdate(final Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -492,21 +584,115 @@ public class HibSessionImpl implements Logged, HibSession {
 
       sess.saveOrUpdate(obj);
       deleteSubs(obj);
+      govern(obj);
     } catch (final Throwable t) {
       handleException(t);
     }
   }
 
+  @Override
+  public void upsert(final Object obj) {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    try {
+      beforeSave(obj);
+
+      if (!EntityUpserts.upsert(sess, obj)) {
+        sess.merge(obj);
+      }
+
+      deleteSubs(obj);
+      govern(obj);
+    } catch (final Throwable t) {
+      handleException(t, obj);
+    }
+  }
+
+  @Override
+  public boolean compareAndSet(final Class<?> cl,
+                               final Serializable id,
+                               final int seq,
+                               final Map<String, ?> vals) {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    try {
+      final EntityPersister persister = EntityDeletes.persister(sess, cl);
+      final String versionName = EntityDeletes.versionName(persister);
+
+      if (versionName == null) {
+        throw new BedeworkDatabaseException(
+                "compareAndSet: " + cl.getName() + " is not versioned");
+      }
+
+      if ((vals == null) || vals.isEmpty()) {
+        throw new BedeworkDatabaseException(
+                "compareAndSet: no values for " + cl.getName());
+      }
+
+      final List<String> propNames =
+              Arrays.asList(persister.getPropertyNames());
+      final StringBuilder hql = new StringBuilder("update ");
+      hql.append(persister.getEntityName());
+      hql.append(" set ");
+
+      int i = 0;
+      for (final String name: vals.keySet()) {
+        /* Only mapped names - they go into the query text */
+        if (!propNames.contains(name) || name.equals(versionName)) {
+          throw new BedeworkDatabaseException(
+                  "compareAndSet: cannot set " + name + " for " +
+                          cl.getName());
+        }
+
+        hql.append(name).append(" = :v").append(i).append(", ");
+        i++;
+      }
+
+      hql.append(versionName).append(" = :newSeq where ")
+         .append(persister.getIdentifierPropertyName())
+         .append(" = :id and ")
+         .append(versionName).append(" = :seq");
+
+      EntityDeletes.evict(sess, persister, id);
+
+      final Query<?> uq = sess.createQuery(hql.toString());
+
+      i = 0;
+      for (final Object val: vals.values()) {
+        uq.setParameter("v" + i, val);
+        i++;
+      }
+
+      uq.setParameter("newSeq", seq + 1);
+      uq.setParameter("id", id);
+      uq.setParameter("seq", seq);
+
+      return uq.executeUpdate() == 1;
+    } catch (final Throwable t) {
+      handleException(t);
+      return false;  // Don't get here
+    }
+  }
+
   @Override
   public Object get(final Class<?> cl,
                     final Serializable id) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
 
     try {
-      return sess.get(cl, id);
+      final Object o = sess.get(cl, id);
+      govern(null);
+
+      return o;
     } catch (final Throwable t) {
       handleException(t);
       return null;  // Don't get here
@@ -520,7 +706,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void save(final Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -529,6 +715,7 @@ public class HibSessionImpl implements Logged, HibSession {
       beforeSave(obj);
       sess.save(obj);
       deleteSubs(obj);
+      govern(obj);
     } catch (final Throwable t) {
       handleException(t);
     }
@@ -536,31 +723,122 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void delete(final Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
 
     try {
-      beforeDelete(obj);
+      doDelete(obj);
+    } catch (final Throwable t) {
+      handleException(t);
+    }
+  }
 
-      evict(obj);
-      sess.delete(sess.merge(obj));
-      deleteSubs(obj);
+  @Override
+  public boolean deleteById(final Class<?> cl,
+                            final Serializable id,
+                            final Integer seq) {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    try {
+      final EntityPersister persister = EntityDeletes.persister(sess, cl);
+
+      if (!EntityDeletes.canDeleteDirectly(cl, persister)) {
+        final Object o = sess.get(cl, id);
+        if (o == null) {
+          return false;
+        }
+
+        if ((seq != null) &&
+                (o instanceof final VersionedDbEntity<?, ?> ent) &&
+                !seq.equals(ent.getSeq())) {
+          throw new StaleStateException(
+                  "Version mismatch deleting " + cl.getName() +
+                          " with id " + id);
+        }
+
+        doDelete(o);
+        return true;
+      }
+
+      final int ct = EntityDeletes.deleteOne(sess, persister, id, seq);
+
+      /* Nothing deleted because of the version or because the row
+         has gone? Only the first is stale. */
+      if ((ct == 0) && (seq != null) &&
+              (EntityDeletes.versionName(persister) != null) &&
+              EntityDeletes.exists(sess, persister, id)) {
+        throw new StaleStateException(
+                "Row was updated or deleted by another transaction: " +
+                        cl.getName() + " with id " + id);
+      }
+
+      return ct > 0;
+    } catch (final Throwable t) {
+      handleException(t);
+      return false;  // Don't get here
+    }
+  }
+
+  @Override
+  public int deleteByIds(final Class<?> cl,
+                         final Collection<? extends Serializable> ids) {
+    if (abandoned() || (exc != null)) {
+      // Didn't hear me last time?
+      throw  new BedeworkDatabaseException(exc);
+    }
+
+    if (Util.isEmpty(ids)) {
+      return 0;
+    }
+
+    try {
+      final EntityPersister persister = EntityDeletes.persister(sess, cl);
+
+      if (EntityDeletes.canDeleteDirectly(cl, persister)) {
+        return EntityDeletes.deleteMany(sess, persister, ids);
+      }
+
+      int ct = 0;
+      for (final Serializable id: ids) {
+        final Object o = sess.get(cl, id);
+        if (o == null) {
+          continue;
+        }
+
+        doDelete(o);
+        ct++;
+      }
+
+      return ct;
     } catch (final Throwable t) {
       handleException(t);
+      return 0;  // Don't get here
     }
   }
 
   @Override
   public void restore(final Object obj) {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
 
     try {
-      sess.replicate(obj, ReplicationMode.IGNORE);
+      if (restoreStats == null) {
+        sess.replicate(obj, ReplicationMode.IGNORE);
+      } else {
+        final long start = System.nanoTime();
+
+        sess.replicate(obj, ReplicationMode.IGNORE);
+        restoreStats.record(obj.getClass(), System.nanoTime() - start, 0);
+      }
+
+      govern(obj);
     } catch (final Throwable t) {
       handleException(t);
     }
@@ -568,7 +846,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void flush() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -577,6 +855,7 @@ public class HibSessionImpl implements Logged, HibSession {
       getLogger().debug("About to flush");
     }
     try {
+      flushDeletes();
       sess.flush();
     } catch (final Throwable t) {
       handleException(t);
@@ -585,7 +864,7 @@ public class HibSessionImpl implements Logged, HibSession {
 
   @Override
   public void clear() {
-    if (exc != null) {
+    if (abandoned() || (exc != null)) {
       // Didn't hear me last time?
       throw  new BedeworkDatabaseException(exc);
     }
@@ -595,6 +874,7 @@ public class HibSessionImpl implements Logged, HibSession {
     }
     try {
       sess.clear();
+      clearDeletes();
     } catch (final Throwable t) {
       handleException(t);
     }
@@ -604,12 +884,17 @@ public class HibSessionImpl implements Logged, HibSession {
    */
   @Override
   public void close() {
+    abandoned();
+
     if (sess == null) {
       return;
     }
 
 //    throw  new BedeworkDatabaseException("XXXXXXXXXXXXXXXXXXXXXXXXXXXXX");/*
     try {
+      if (!rolledback()) {
+        flushDeletes();
+      }
       if (!rolledback() && sess.isDirty()) {
         sess.flush();
       }
@@ -627,6 +912,8 @@ public class HibSessionImpl implements Logged, HibSession {
           sess.close();
         } catch (final Throwable ignored) {}
       }
+      HibSessionFactory.getWatchdog().closed(tracked);
+      tracked = null;
     }
 
     sess = null;
@@ -636,6 +923,71 @@ public class HibSessionImpl implements Logged, HibSession {
 //    */
   }
 
+  /* Called on the watchdog thread once the session is abandoned.
+   * The owner may be blocked in a query so cancel that, then roll
+   * back and close to give the connection back.
+   */
+  void forceClose() {
+    final Session s = sess;
+
+    if (s == null) {
+      return;
+    }
+
+    try {
+      s.cancelQuery();
+    } catch (final Throwable ignored) {}
+
+    try {
+      final Transaction t = s.getTransaction();
+
+      if (t.isActive()) {
+        t.rollback();
+      }
+    } catch (final Throwable t) {
+      rollbackException(t);
+    } finally {
+      try {
+        s.close();
+      } catch (final Throwable ignored) {}
+    }
+  }
+
+  /* True if the watchdog abandoned this session. The watchdog has
+   * already rolled back and closed it - we tidy up here, on the
+   * owning thread, and set exc for the caller.
+   */
+  private boolean abandoned() {
+    final SessionWatchdog.Tracked t = tracked;
+
+    if ((t == null) || !t.abandoned) {
+      return false;
+    }
+
+    exc = new BedeworkDatabaseException("Session abandoned by watchdog");
+    rolledBack = true;
+
+    try {
+      if ((tx != null) && (sess != null) && sess.isOpen()) {
+        tx.rollback();
+      }
+    } catch (final Throwable t1) {
+      rollbackException(t1);
+    } finally {
+      tx = null;
+      if (sess != null) {
+        try {
+          sess.close();
+        } catch (final Throwable ignored) {}
+      }
+      sess = null;
+      HibSessionFactory.getWatchdog().closed(t);
+      tracked = null;
+    }
+
+    return true;
+  }
+
   private void handleException(final Throwable t) {
     handleException(t, null);
   }
@@ -666,6 +1018,8 @@ public class HibSessionImpl implements Logged, HibSession {
         sess.close();
       } catch (final Throwable ignored) {}
       sess = null;
+      HibSessionFactory.getWatchdog().closed(tracked);
+      tracked = null;
     }
 
     exc = t;
@@ -685,6 +1039,29 @@ public class HibSessionImpl implements Logged, HibSession {
     throw  new BedeworkDatabaseException(t);
   }
 
+  /* Let the governor look at the size of the persistence context.
+   * We only allow it to evict after writes, and never the object
+   * just written - the caller is not expecting objects it just
+   * fetched or merged to be detached.
+   */
+  private void govern(final Object written) {
+    if ((governor == null) || (sess == null)) {
+      return;
+    }
+
+    governorWarned = governor.govern(sess, written, streaming,
+                                     governorWarned);
+  }
+
+  /* Delete through the session - merge to get a persistent copy. */
+  private void doDelete(final Object obj) {
+    beforeDelete(obj);
+
+    sess.evict(obj);
+    sess.delete(sess.merge(obj));
+    deleteSubs(obj);
+  }
+
   private void beforeSave(final Object o) {
     if (!(o instanceof final VersionedDbEntity<?, ?> ent)) {
       return;
@@ -703,19 +1080,136 @@ public class HibSessionImpl implements Logged, HibSession {
     ent.beforeDeletion();
   }
 
+  /* Queue the deleted subentities. They are deleted at the next
+   * flush or commit so that deletions from many writes are grouped.
+   */
   private void deleteSubs(final Object o) {
     if (!(o instanceof final VersionedDbEntity<?, ?> ent)) {
       return;
     }
 
     final var subs = ent.getDeletedEntities();
-    if (subs == null) {
+    if (Util.isEmpty(subs)) {
       return;
     }
 
-    for (final var sub: subs) {
-      evict(sub);
-      delete(sub);
+    collectDeletions(subs, pendingDeletes, pendingPersisters,
+                     pendingDirect);
+  }
+
+  private void clearDeletes() {
+    pendingDeletes.clear();
+    pendingPersisters.clear();
+    pendingDirect.clear();
+  }
+
+  /* Delete the queued subentities, dropping duplicates. Entities
+   * hibernate has nothing to do for are deleted with one statement
+   * per entity (and per chunk), the rest go through doDelete - which
+   * may queue more. A class referring to itself is deleted in levels,
+   * referrers first.
+   */
+  private void flushDeletes() {
+    while (!pendingDeletes.isEmpty()) {
+      final Map<String, Map<Object, VersionedDbEntity<?, ?>>> byEntity =
+              new LinkedHashMap<>(pendingDeletes);
+      final Map<String, EntityPersister> persisters =
+              new HashMap<>(pendingPersisters);
+      final Set<String> direct = new HashSet<>(pendingDirect);
+      clearDeletes();
+
+      if (!direct.isEmpty()) {
+        /* Collection and reference changes must reach the db first */
+        sess.flush();
+      }
+
+      final SessionFactoryImplementor sf =
+              (SessionFactoryImplementor)sess.getSessionFactory();
+      final List<String> order = EntityDependencies.insertOrder(
+              sf, byEntity.keySet());
+      Collections.reverse(order);
+
+      for (final String name: order) {
+        deleteQueued(sf, name, byEntity.get(name),
+                     persisters.get(name), direct.contains(name));
+      }
+    }
+  }
+
+  private void deleteQueued(final SessionFactoryImplementor sf,
+                            final String name,
+                            final Map<Object, VersionedDbEntity<?, ?>> byId,
+                            final EntityPersister persister,
+                            final boolean direct) {
+    final List<VersionedDbEntity<?, ?>> ents =
+            new ArrayList<>(byId.values());
+    final int[] selfRefs =
+            EntityDependencies.selfReferences(sf, persister);
+
+    final List<List<VersionedDbEntity<?, ?>>> levels;
+    if (selfRefs.length == 0) {
+      levels = Collections.singletonList(ents);
+    } else {
+      levels = EntityDeletes.deleteLevels(persister, selfRefs, ents);
+    }
+
+    if (!direct) {
+      for (final List<VersionedDbEntity<?, ?>> level: levels) {
+        for (final VersionedDbEntity<?, ?> sub: level) {
+          doDelete(sub);
+        }
+      }
+      return;
+    }
+
+    int ct = 0;
+    for (final List<VersionedDbEntity<?, ?>> level: levels) {
+      ct += EntityDeletes.deleteVersioned(sess, persister, level);
+    }
+
+    if (ct != ents.size()) {
+      throw new StaleStateException(
+              "Deleted " + ct + " of " + ents.size() + " " + name +
+                      " - rows were updated or deleted by another" +
+                      " transaction");
+    }
+  }
+
+  private void collectDeletions(
+          final Collection<VersionedDbEntity<?, ?>> subs,
+          final Map<String, Map<Object, VersionedDbEntity<?, ?>>> byEntity,
+          final Map<String, EntityPersister> persisters,
+          final Set<String> direct) {
+    for (final VersionedDbEntity<?, ?> sub: subs) {
+      if (sub.unsaved()) {
+        // Never reached the db
+        sess.evict(sub);
+        continue;
+      }
+
+      final EntityPersister persister =
+              EntityDeletes.persisterFor(sess, sub);
+      final String name = persister.getEntityName();
+
+      if (persisters.putIfAbsent(name, persister) == null) {
+        if (EntityDeletes.canDeleteDirectly(persister.getMappedClass(),
+                                            persister)) {
+          direct.add(name);
+        }
+      }
+
+      /* The same entity may be listed more than once */
+      if (byEntity.computeIfAbsent(name, k -> new LinkedHashMap<>())
+                  .putIfAbsent(sub.getId(), sub) != null) {
+        continue;
+      }
+
+      if (direct.contains(name) &&
+              !Util.isEmpty(sub.getDeletedEntities())) {
+        // doDelete would have handled these
+        collectDeletions(sub.getDeletedEntities(),
+                         byEntity, persisters, direct);
+      }
     }
   }
 
@@ -0,0 +1,49 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Put this on an UnversionedDbentity subclass to have equals and
+ * hashCode based on the entity class and id instead of compareTo and
+ * an overridden hashCode. It is inherited by subclasses.
+ *
+ * <p>Entities with an id are equal if they are of the same class and
+ * have equal ids. An entity without an id is only equal to itself.
+ * The hash comes from the entity class alone, so it does not change
+ * when a new entity in a hash set or map is saved. All entities of a
+ * class share a hash, which makes large hashed collections of one
+ * class slower to search.</p>
+ *
+ * <p>The class compared is the entity class, not that of a hibernate
+ * proxy. A proxy for a superclass is not equal to a subclass
+ * instance with the same id.</p>
+ *
+ * @author Mike Douglass
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Inherited
+public @interface IdEquality {
+}
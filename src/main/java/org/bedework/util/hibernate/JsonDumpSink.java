@@ -0,0 +1,339 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** Writes the dump as JSON, straight to the writer.
+ *
+ * <p>The structure follows the xml. An element becomes a member named
+ * by its tag whose value is an object, a collection becomes an array
+ * and a property a string member. Inside an array each member is
+ * wrapped in an object named by its tag, as the xml would wrap it in
+ * an element. A dump from DbDump looks like</p>
+ * <pre>
+ *   {"dump":[
+ *   {"event":{"uid":"...","organizer":{"organizer":{...}}}},
+ *   ...
+ *   ]}
+ * </pre>
+ * <p>with each top level entity on its own line.</p>
+ */
+public class JsonDumpSink implements DumpSink {
+  private final Writer wtr;
+
+  /* One entry per open object or array */
+  private boolean[] isArray = new boolean[16];
+  private boolean[] wrapped = new boolean[16];
+  private boolean[] hasMembers = new boolean[16];
+  private int depth;
+
+  private final DumpChars chars = new DumpChars();
+
+  /* Tags as quoted names with the colon */
+  private final Map<QName, String> names = new HashMap<>();
+
+  /**
+   * @param wtr to write to - should be buffered
+   */
+  public JsonDumpSink(final Writer wtr) {
+    this.wtr = wtr;
+  }
+
+  @Override
+  public void openTag(final QName tag) {
+    open(tag, false);
+  }
+
+  @Override
+  public void closeTag(final QName tag) {
+    close('}');
+  }
+
+  @Override
+  public void openCollection(final QName tag) {
+    open(tag, true);
+  }
+
+  @Override
+  public void closeCollection(final QName tag) {
+    close(']');
+  }
+
+  @Override
+  public void property(final QName tag, final String val) {
+    try {
+      final boolean wrap = startMember();
+
+      if (wrap) {
+        wtr.write('{');
+      }
+
+      wtr.write(name(tag));
+      string(val);
+
+      if (wrap) {
+        wtr.write('}');
+      }
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void value(final QName tag, final Object val) {
+    if (val instanceof final String s) {
+      property(tag, s);
+      return;
+    }
+
+    try {
+      final boolean wrap = startMember();
+
+      if (wrap) {
+        wtr.write('{');
+      }
+
+      wtr.write(name(tag));
+
+      if (val instanceof final char[] cs) {
+        string(cs);
+      } else if (chars.format(val)) {
+        // Nothing to escape in these
+        wtr.write('"');
+        wtr.write(chars.buf, 0, chars.len);
+        wtr.write('"');
+      } else {
+        string(DumpChars.toString(val));
+      }
+
+      if (wrap) {
+        wtr.write('}');
+      }
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void flush() {
+    try {
+      if (depth == 0) {
+        wtr.write('\n');
+      }
+      wtr.flush();
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private void open(final QName tag,
+                    final boolean array) {
+    try {
+      final boolean wrap = startMember();
+
+      if (wrap) {
+        wtr.write('{');
+      }
+
+      wtr.write(name(tag));
+      wtr.write(array ? '[' : '{');
+
+      push(array, wrap);
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  private void close(final char ch) {
+    if (depth == 0) {
+      throw new BedeworkDatabaseException("Unbalanced close in json dump");
+    }
+
+    depth--;
+
+    try {
+      if (isArray[depth] && (depth == 0)) {
+        wtr.write('\n');
+      }
+
+      wtr.write(ch);
+
+      if (wrapped[depth]) {
+        wtr.write('}');
+      }
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  /* Write any separator. Returns true if the member needs wrapping
+   * in an object - at the top or in an array.
+   */
+  private boolean startMember() throws IOException {
+    if (depth == 0) {
+      return true;
+    }
+
+    final int cur = depth - 1;
+
+    if (hasMembers[cur]) {
+      wtr.write(',');
+    }
+    hasMembers[cur] = true;
+
+    if (!isArray[cur]) {
+      return false;
+    }
+
+    if (depth == 1) {
+      // One top level entity per line
+      wtr.write('\n');
+    }
+
+    return true;
+  }
+
+  private void push(final boolean array,
+                    final boolean wrap) {
+    if (depth == isArray.length) {
+      final int len = depth * 2;
+      isArray = Arrays.copyOf(isArray, len);
+      wrapped = Arrays.copyOf(wrapped, len);
+      hasMembers = Arrays.copyOf(hasMembers, len);
+    }
+
+    isArray[depth] = array;
+    wrapped[depth] = wrap;
+    hasMembers[depth] = false;
+    depth++;
+  }
+
+  private String name(final QName tag) {
+    String n = names.get(tag);
+
+    if (n == null) {
+      final StringBuilder sb = new StringBuilder();
+      escape(sb, tag.getLocalPart());
+      sb.append(':');
+      n = sb.toString();
+      names.put(tag, n);
+    }
+
+    return n;
+  }
+
+  /* Write a quoted string, copying unescaped runs straight through */
+  private void string(final String val) throws IOException {
+    wtr.write('"');
+
+    int start = 0;
+    final int len = val.length();
+
+    for (int i = 0; i < len; i++) {
+      final char ch = val.charAt(i);
+
+      if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+        continue;
+      }
+
+      if (i > start) {
+        wtr.write(val, start, i - start);
+      }
+      start = i + 1;
+
+      wtr.write(escaped(ch));
+    }
+
+    if (len > start) {
+      wtr.write(val, start, len - start);
+    }
+
+    wtr.write('"');
+  }
+
+  private void string(final char[] val) throws IOException {
+    wtr.write('"');
+
+    int start = 0;
+
+    for (int i = 0; i < val.length; i++) {
+      final char ch = val[i];
+
+      if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+        continue;
+      }
+
+      if (i > start) {
+        wtr.write(val, start, i - start);
+      }
+      start = i + 1;
+
+      wtr.write(escaped(ch));
+    }
+
+    if (val.length > start) {
+      wtr.write(val, start, val.length - start);
+    }
+
+    wtr.write('"');
+  }
+
+  private static void escape(final StringBuilder sb,
+                             final String val) {
+    sb.append('"');
+
+    for (int i = 0; i < val.length(); i++) {
+      final char ch = val.charAt(i);
+
+      if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+        sb.append(ch);
+      } else {
+        sb.append(escaped(ch));
+      }
+    }
+
+    sb.append('"');
+  }
+
+  private static String escaped(final char ch) {
+    return switch (ch) {
+      case '"' -> "\\\"";
+      case '\\' -> "\\\\";
+      case '\n' -> "\\n";
+      case '\r' -> "\\r";
+      case '\t' -> "\\t";
+      case '\b' -> "\\b";
+      case '\f' -> "\\f";
+      default -> String.format("\\u%04x", (int)ch);
+    };
+  }
+}
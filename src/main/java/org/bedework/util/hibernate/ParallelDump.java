@@ -0,0 +1,521 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.CacheMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Dumps the database in parts using several sessions in parallel.
+ *
+ * <p>Each root DumpEntity class is split into ranges of ids of
+ * roughly rowsPerPart entities (classes without a numeric id are one
+ * part). Each part is dumped by a worker in its own session into its
+ * own file in the output directory, wrapped in a dump element as for
+ * DbDump, in the format set. When all parts are done an index is written listing them in
+ * restore order.</p>
+ *
+ * <p>On PostgreSQL all the workers read from a snapshot exported by
+ * the coordinating transaction so the parts are consistent with each
+ * other. On other databases each part is consistent only within
+ * itself.</p>
+ */
+public class ParallelDump implements Logged {
+  /** Name of the index in the output directory */
+  public static final String indexName = "dump-index.properties";
+
+  private final SessionFactory sessFactory;
+  private final int threads;
+  private final File dir;
+
+  private DumpFormat format = DumpFormat.xml;
+  private boolean dedupe;
+  private DumpStats stats;
+  private DumpDigest digest;
+  private int rowsPerPart = 100000;
+  private int fetchSize = 500;
+  private int clearInterval = 1000;
+
+  private final AtomicLong dumped = new AtomicLong();
+
+  /* Set by a failing worker so we stop submitting */
+  private volatile Throwable failure;
+
+  private static class Part {
+    final int num;
+    final String entity;
+    final String idName;
+    final Long lo;     // null for the whole class
+    final Long hi;     // inclusive
+    final boolean intId;
+    long count;
+
+    Part(final int num,
+         final String entity,
+         final String idName,
+         final Long lo,
+         final Long hi,
+         final boolean intId) {
+      this.num = num;
+      this.entity = entity;
+      this.idName = idName;
+      this.lo = lo;
+      this.hi = hi;
+      this.intId = intId;
+    }
+
+    String fileName(final DumpFormat format) {
+      return String.format("%05d-%s%s", num, entity, format.getSuffix());
+    }
+  }
+
+  /**
+   * @param sessFactory to read from
+   * @param threads number of workers
+   * @param dir output directory - created if needed
+   */
+  public ParallelDump(final SessionFactory sessFactory,
+                      final int threads,
+                      final File dir) {
+    this.sessFactory = sessFactory;
+    this.threads = threads;
+    this.dir = dir;
+  }
+
+  /**
+   * @param val format for the parts - default xml
+   */
+  public void setFormat(final DumpFormat val) {
+    format = val;
+  }
+
+  /**
+   * @param val true to dump repeated references as back references
+   *            within each part. See DumpContext.
+   */
+  public void setDedupe(final boolean val) {
+    dedupe = val;
+  }
+
+  /**
+   * @param val null or records progress
+   */
+  public void setStats(final DumpStats val) {
+    stats = val;
+  }
+
+  /** Compute the class hashes as we dump. The digest does not get
+   * entity hashes - use DbDump for those. Cannot be used with
+   * de-duplication.
+   *
+   * @param val null or digest to update
+   */
+  public void setDigest(final DumpDigest val) {
+    digest = val;
+  }
+
+  /**
+   * @param val approximate number of entities per part
+   */
+  public void setRowsPerPart(final int val) {
+    rowsPerPart = val;
+  }
+
+  /**
+   * @param val rows fetched per round trip
+   */
+  public void setFetchSize(final int val) {
+    fetchSize = val;
+  }
+
+  /**
+   * @param val clear the session after this many entities
+   */
+  public void setClearInterval(final int val) {
+    clearInterval = val;
+  }
+
+  /**
+   * @return number of entities dumped so far
+   */
+  public long getDumped() {
+    return dumped.get();
+  }
+
+  /** Dump everything.
+   */
+  public void dump() {
+    if (dedupe && (digest != null)) {
+      throw new BedeworkDatabaseException(
+              "A digest cannot be made of a de-duplicated dump");
+    }
+
+    final long start = System.currentTimeMillis();
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new BedeworkDatabaseException("Unable to create " + dir);
+    }
+
+    /* The coordinator holds its transaction open for the snapshot */
+    final HibSessionImpl coord = openSession();
+    final ExecutorService exec = Executors.newFixedThreadPool(threads);
+
+    try {
+      coord.beginTransaction();
+
+      if (stats != null) {
+        stats.start();
+      }
+
+      final String snapshot = exportSnapshot(coord);
+      final List<Part> parts = plan(coord);
+      final List<Future<?>> futures = new ArrayList<>();
+
+      info("Dumping " + parts.size() + " parts with " + threads +
+                   " threads" +
+                   ((snapshot == null) ? "" : " from snapshot " + snapshot));
+
+      for (final Part p: parts) {
+        futures.add(exec.submit(() -> dumpPart(p, snapshot)));
+      }
+
+      for (final Future<?> f: futures) {
+        try {
+          f.get();
+        } catch (final Throwable t) {
+          for (final Future<?> f1: futures) {
+            f1.cancel(true);
+          }
+
+          throw new BedeworkDatabaseException(t);
+        }
+      }
+
+      writeIndex(parts, snapshot);
+
+      coord.commit();
+    } catch (final Throwable t) {
+      if (coord.isOpen()) {
+        try {
+          coord.rollback();
+        } catch (final Throwable ignored) {}
+      }
+
+      if (t instanceof final BedeworkDatabaseException bde) {
+        throw bde;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    } finally {
+      exec.shutdownNow();
+
+      if (stats != null) {
+        stats.finish();
+      }
+
+      if (coord.isOpen()) {
+        coord.close();
+      }
+    }
+
+    info("Dumped " + dumped.get() + " entities in " +
+                 (System.currentTimeMillis() - start) + " millis");
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private HibSessionImpl openSession() {
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+    sess.getSession().setDefaultReadOnly(true);
+    sess.getSession().setCacheMode(CacheMode.IGNORE);
+
+    return sess;
+  }
+
+  private List<Part> plan(final HibSessionImpl sess) {
+    final SessionFactoryImplementor sf =
+            (SessionFactoryImplementor)sessFactory;
+    final List<Part> parts = new ArrayList<>();
+    long total = 0;
+
+    for (final String name: DbDump.getEntityNames(sessFactory)) {
+      final EntityPersister persister =
+              sf.getMetamodel().entityPersister(name);
+      final String idName = persister.getIdentifierPropertyName();
+      final Class<?> idClass =
+              persister.getIdentifierType().getReturnedClass();
+
+      if ((idName == null) ||
+              ((idClass != Long.class) && (idClass != Integer.class))) {
+        parts.add(new Part(parts.size(), name, null, null, null, false));
+
+        if (stats != null) {
+          sess.createQuery("select count(e) from " + name + " e");
+          total += ((Number)sess.getUnique()).longValue();
+        }
+        continue;
+      }
+
+      sess.createQuery("select count(e), min(e." + idName +
+                               "), max(e." + idName + ") from " +
+                               name + " e");
+      final Object[] res = (Object[])sess.getUnique();
+      final long count = ((Number)res[0]).longValue();
+      total += count;
+
+      if (count == 0) {
+        continue;
+      }
+
+      final long min = ((Number)res[1]).longValue();
+      final long max = ((Number)res[2]).longValue();
+      final long nparts = Math.max(1, (count + rowsPerPart - 1) /
+              rowsPerPart);
+      final long width = Math.max(1, (max - min + nparts) / nparts);
+
+      long lo = min;
+      while (true) {
+        final long hi = Math.min(lo + width - 1, max);
+
+        parts.add(new Part(parts.size(), name, idName, lo, hi,
+                           idClass == Integer.class));
+
+        if (hi >= max) {
+          break;
+        }
+
+        lo = hi + 1;
+      }
+    }
+
+    if (stats != null) {
+      stats.setExpectedEntities(total);
+    }
+
+    return parts;
+  }
+
+  private void dumpPart(final Part p,
+                        final String snapshot) {
+    if (failure != null) {
+      return;
+    }
+
+    final HibSessionImpl sess = openSession();
+    final DumpDigest partDigest;
+
+    if (digest == null) {
+      partDigest = null;
+    } else {
+      partDigest = new DumpDigest();
+    }
+
+    try {
+      sess.beginTransaction();
+
+      if (snapshot != null) {
+        useSnapshot(sess, snapshot);
+      }
+
+      if (p.lo == null) {
+        sess.createQuery(DbDump.getQuery(sessFactory, p.entity, null));
+      } else {
+        sess.createQuery(DbDump.getQuery(
+                sessFactory, p.entity,
+                "e." + p.idName + " between :lo and :hi"));
+
+        if (p.intId) {
+          sess.setInt("lo", p.lo.intValue());
+          sess.setInt("hi", p.hi.intValue());
+        } else {
+          sess.setLong("lo", p.lo);
+          sess.setLong("hi", p.hi);
+        }
+      }
+
+      try (final OutputStream out =
+                   new FileOutputStream(new File(dir, p.fileName(format)))) {
+        DumpSink sink;
+        DumpStats.CountingOutputStream counted = null;
+
+        if (stats == null) {
+          sink = format.newSink(out);
+        } else {
+          counted = stats.count(out);
+          sink = format.newSink(counted);
+        }
+
+        if (partDigest != null) {
+          sink = partDigest.tee(sink);
+        }
+
+        final DumpContext ctx = new DumpContext(sink, dedupe);
+        ctx.setStats(stats);
+        ctx.setCounted(counted);
+        ctx.setDigest(partDigest);
+
+        sink.openCollection(DbDump.dumpTag);
+
+        p.count = DbDump.dumpResults(sess, ctx,
+                                     fetchSize, clearInterval);
+
+        sink.closeCollection(DbDump.dumpTag);
+        sink.flush();
+      }
+
+      sess.commit();
+      sess.close();
+
+      dumped.addAndGet(p.count);
+
+      if (partDigest != null) {
+        synchronized (digest) {
+          digest.merge(partDigest);
+        }
+      }
+
+      if (debug()) {
+        debug("Dumped " + p.count + " to " + p.fileName(format));
+      }
+    } catch (final Throwable t) {
+      /* The session closes itself on database exceptions */
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+          sess.close();
+        } catch (final Throwable ignored) {}
+      }
+
+      failure = t;
+
+      if (t instanceof final RuntimeException re) {
+        throw re;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* Only PostgreSQL can share a snapshot between transactions */
+  private String exportSnapshot(final HibSessionImpl sess) {
+    final Dialect dialect = ((SessionFactoryImplementor)sessFactory)
+            .getJdbcServices().getDialect();
+
+    if (!(dialect instanceof PostgreSQL81Dialect)) {
+      return null;
+    }
+
+    return sess.getSession().doReturningWork(conn -> {
+      try (final Statement st = conn.createStatement()) {
+        st.execute("set transaction isolation level repeatable read");
+
+        try (final ResultSet rs =
+                     st.executeQuery("select pg_export_snapshot()")) {
+          rs.next();
+          return rs.getString(1);
+        }
+      }
+    });
+  }
+
+  private void useSnapshot(final HibSessionImpl sess,
+                           final String snapshot) {
+    if (!snapshot.matches("[0-9A-Fa-f-]+")) {
+      throw new BedeworkDatabaseException("Bad snapshot id " + snapshot);
+    }
+
+    sess.getSession().doWork(conn -> {
+      try (final Statement st = conn.createStatement()) {
+        st.execute("set transaction isolation level repeatable read");
+        st.execute("set transaction snapshot '" + snapshot + "'");
+      }
+    });
+  }
+
+  private void writeIndex(final List<Part> parts,
+                          final String snapshot) throws Throwable {
+    final Properties index = new Properties();
+
+    index.setProperty("parts", String.valueOf(parts.size()));
+    index.setProperty("format", format.name());
+
+    if (snapshot != null) {
+      index.setProperty("snapshot", snapshot);
+    }
+
+    for (final Part p: parts) {
+      final String pfx = "part." + p.num + ".";
+
+      index.setProperty(pfx + "file", p.fileName(format));
+      index.setProperty(pfx + "entity", p.entity);
+      index.setProperty(pfx + "count", String.valueOf(p.count));
+
+      if (p.lo != null) {
+        index.setProperty(pfx + "lo", String.valueOf(p.lo));
+        index.setProperty(pfx + "hi", String.valueOf(p.hi));
+      }
+    }
+
+    try (final Writer wtr = new FileWriter(new File(dir, indexName))) {
+      index.store(wtr, "Dump index - parts in restore order");
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
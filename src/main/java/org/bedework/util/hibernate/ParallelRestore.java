@@ -0,0 +1,409 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Restores entities into the database using several sessions in
+ * parallel.
+ *
+ * <p>Classes are restored one after the other, referenced classes
+ * first. The entities of a class are split into batches and each
+ * batch is restored with HibSession.restore() in its own session and
+ * transaction on one of the worker threads. Set
+ * hibernate.jdbc.batch_size so that the inserts for a batch are sent
+ * as JDBC batches.</p>
+ *
+ * <p>Classes which refer to themselves or are involved in a cycle
+ * of references are restored one batch at a time, in source order,
+ * on the calling thread - their entities may refer to entities in
+ * earlier batches.</p>
+ *
+ * <p>If a checkpoint file is given the committed batches are
+ * recorded in it. Running again with the same file and source skips
+ * those batches. Batches after the checkpoint may have been partly
+ * committed; restore ignores rows which already exist so they are
+ * simply repeated.</p>
+ */
+public class ParallelRestore implements Logged {
+  private final SessionFactory sessFactory;
+  private final int threads;
+  private final int batchSize;
+  private final File checkpointFile;
+
+  private final Properties checkpoints = new Properties();
+
+  /* Completed batch numbers above the checkpoint for the current class */
+  private final TreeSet<Integer> completed = new TreeSet<>();
+
+  private DumpStats stats;
+
+  private final AtomicLong restored = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private volatile String currentEntity;
+
+  /* Set by a failing worker so we stop reading */
+  private volatile Throwable failure;
+  private volatile long startTime;
+
+  /**
+   * @param sessFactory for the worker sessions
+   * @param threads number of workers
+   * @param batchSize entities per transaction
+   * @param checkpointFile null or file to record progress in
+   */
+  public ParallelRestore(final SessionFactory sessFactory,
+                         final int threads,
+                         final int batchSize,
+                         final File checkpointFile) {
+    this.sessFactory = sessFactory;
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.checkpointFile = checkpointFile;
+  }
+
+  /**
+   * @param val null or records progress. To count bytes read wrap the
+   *            stream the source reads with DumpStats.count().
+   */
+  public void setStats(final DumpStats val) {
+    stats = val;
+  }
+
+  /** Restore everything from the source.
+   *
+   * @param src of entities
+   */
+  public void restore(final RestoreSource src) {
+    failure = null;
+    restored.set(0);
+    batches.set(0);
+    loadCheckpoints();
+
+    final SessionFactoryImplementor sf =
+            (SessionFactoryImplementor)sessFactory;
+    final Map<String, Class<?>> classes = new HashMap<>();
+
+    for (final Class<?> cl: src.getClasses()) {
+      classes.put(sf.getMetamodel().entityPersister(cl).getEntityName(),
+                  cl);
+    }
+
+    final ExecutorService exec = Executors.newFixedThreadPool(threads);
+    startTime = System.currentTimeMillis();
+
+    if (stats != null) {
+      stats.start();
+    }
+
+    final Set<String> serial = new HashSet<>();
+
+    try {
+      for (final String name:
+              EntityDependencies.insertOrder(sf, classes.keySet(),
+                                             serial)) {
+        if (Boolean.parseBoolean(checkpoints.getProperty(name + ".done"))) {
+          info("Skipping completed " + name);
+          continue;
+        }
+
+        if (EntityDependencies.selfReferences(
+                sf, sf.getMetamodel().entityPersister(name)).length > 0) {
+          serial.add(name);
+        }
+
+        restoreClass(exec, name, src.entities(classes.get(name)),
+                     serial.contains(name));
+      }
+    } finally {
+      exec.shutdownNow();
+
+      if (stats != null) {
+        stats.finish();
+      }
+    }
+
+    info("Restored " + restored.get() + " entities in " +
+                 (System.currentTimeMillis() - startTime) + " millis");
+  }
+
+  /**
+   * @return number of entities restored so far
+   */
+  public long getRestored() {
+    return restored.get();
+  }
+
+  /**
+   * @return number of batches committed so far
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * @return entity currently being restored
+   */
+  public String getCurrentEntity() {
+    return currentEntity;
+  }
+
+  /**
+   * @return entities restored per second since the start
+   */
+  public double getEntitiesPerSecond() {
+    final long millis = System.currentTimeMillis() - startTime;
+
+    if ((startTime == 0) || (millis == 0)) {
+      return 0;
+    }
+
+    return restored.get() * 1000.0 / millis;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  /* If serial each batch is committed before the next is read */
+  private void restoreClass(final ExecutorService exec,
+                            final String name,
+                            final Iterator<?> it,
+                            final boolean serial) {
+    currentEntity = name;
+    completed.clear();
+
+    final int done = Integer.parseInt(
+            checkpoints.getProperty(name, "-1"));
+    final Semaphore inFlight = new Semaphore(threads * 2);
+    final List<Future<?>> futures = new ArrayList<>();
+    int batchNum = 0;
+    List<Object> batch = new ArrayList<>(batchSize);
+
+    info("Restoring " + name);
+
+    while (it.hasNext() && (failure == null)) {
+      batch.add(it.next());
+
+      if (batch.size() < batchSize) {
+        continue;
+      }
+
+      if (batchNum > done) {
+        if (serial) {
+          restoreBatch(batch);
+          batchCommitted(name, batchNum, batch.size());
+        } else {
+          futures.add(submit(exec, inFlight, name, batchNum, batch));
+        }
+      }
+
+      batchNum++;
+      batch = new ArrayList<>(batchSize);
+    }
+
+    if (!batch.isEmpty() && (batchNum > done) && (failure == null)) {
+      if (serial) {
+        restoreBatch(batch);
+        batchCommitted(name, batchNum, batch.size());
+      } else {
+        futures.add(submit(exec, inFlight, name, batchNum, batch));
+      }
+    }
+
+    for (final Future<?> f: futures) {
+      try {
+        f.get();
+      } catch (final Throwable t) {
+        for (final Future<?> f1: futures) {
+          f1.cancel(true);
+        }
+
+        throw new BedeworkDatabaseException(t);
+      }
+    }
+
+    synchronized (this) {
+      checkpoints.setProperty(name + ".done", "true");
+      saveCheckpoints();
+    }
+  }
+
+  private Future<?> submit(final ExecutorService exec,
+                           final Semaphore inFlight,
+                           final String name,
+                           final int batchNum,
+                           final List<Object> batch) {
+    /* Bound the number of batches held in memory */
+    try {
+      inFlight.acquire();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new BedeworkDatabaseException(ie);
+    }
+
+    return exec.submit(() -> {
+      try {
+        restoreBatch(batch);
+        batchCommitted(name, batchNum, batch.size());
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  private void restoreBatch(final List<Object> batch) {
+    final HibSessionImpl sess = new HibSessionImpl();
+
+    sess.init(sessFactory);
+    sess.setGovernor(null);
+    sess.setRestoreStats(stats);
+
+    try {
+      sess.beginTransaction();
+
+      for (final Object o: batch) {
+        sess.restore(o);
+      }
+
+      /* Most of the insert time is here with JDBC batching */
+      final long start = System.nanoTime();
+
+      sess.flush();
+      sess.commit();
+
+      if (stats != null) {
+        stats.spread(batch, System.nanoTime() - start);
+      }
+
+      sess.close();
+    } catch (final Throwable t) {
+      /* The session closes itself on database exceptions */
+      if (sess.isOpen()) {
+        try {
+          sess.rollback();
+          sess.close();
+        } catch (final Throwable ignored) {}
+      }
+
+      failure = t;
+
+      if (t instanceof final RuntimeException re) {
+        throw re;
+      }
+
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  private synchronized void batchCommitted(final String name,
+                                           final int batchNum,
+                                           final int size) {
+    restored.addAndGet(size);
+    batches.incrementAndGet();
+
+    /* Advance the checkpoint over contiguous completed batches */
+    int done = Integer.parseInt(checkpoints.getProperty(name, "-1"));
+    completed.add(batchNum);
+
+    while (!completed.isEmpty() && (completed.first() == done + 1)) {
+      done = completed.pollFirst();
+    }
+
+    checkpoints.setProperty(name, String.valueOf(done));
+    saveCheckpoints();
+  }
+
+  private void loadCheckpoints() {
+    checkpoints.clear();
+
+    if ((checkpointFile == null) || !checkpointFile.exists()) {
+      return;
+    }
+
+    try (final Reader rdr = new FileReader(checkpointFile)) {
+      checkpoints.load(rdr);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* Write to a temp file and rename so we never leave a partial file */
+  private void saveCheckpoints() {
+    if (checkpointFile == null) {
+      return;
+    }
+
+    try {
+      final File tmp = new File(checkpointFile.getPath() + ".tmp");
+
+      try (final Writer wtr = new FileWriter(tmp)) {
+        checkpoints.store(wtr, "Restore checkpoints");
+      }
+
+      Files.move(tmp.toPath(), checkpointFile.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,268 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+
+/** Hibernate connection provider backed by our ConnectionPool. The
+ * pool statistics are registered with JMX under the pool name.
+ *
+ * <p>Enable by setting the hibernate property
+ * org.bedework.hibernate.pool=true (see HibSessionFactory and
+ * HibConfig) or by naming this class as the connection
+ * provider_class. The standard hibernate.connection properties
+ * (driver_class, url, username, password, autocommit, isolation)
+ * are used along with the org.bedework.hibernate.pool properties
+ * below.</p>
+ */
+public class PooledConnectionProvider
+        implements Logged, ConnectionProvider, Configurable, Stoppable {
+  private static final long serialVersionUID = 1L;
+
+  /** Set true to use this provider */
+  public static final String poolEnabled = "org.bedework.hibernate.pool";
+
+  /** Name used for JMX - defaults to the url */
+  public static final String poolName = "org.bedework.hibernate.pool.name";
+
+  /** Max connections handed out - default 20 */
+  public static final String poolMaxSize =
+          "org.bedework.hibernate.pool.maxSize";
+
+  /** Max connections kept idle - default maxSize */
+  public static final String poolMaxIdle =
+          "org.bedework.hibernate.pool.maxIdle";
+
+  /** Millis to wait for a connection - default 30000 */
+  public static final String poolTimeout =
+          "org.bedework.hibernate.pool.timeoutMillis";
+
+  /** Validate connections idle for this many millis - default 30000 */
+  public static final String poolValidateAfter =
+          "org.bedework.hibernate.pool.validateAfterMillis";
+
+  /** Close connections older than this many millis - default
+   * 1800000, 0 for no limit */
+  public static final String poolMaxAge =
+          "org.bedework.hibernate.pool.maxAgeMillis";
+
+  private transient ConnectionPool pool;
+
+  /** If the properties ask for the built in pool, set the hibernate
+   * provider class to this class.
+   *
+   * @param props hibernate properties - updated
+   */
+  public static void applyTo(final Properties props) {
+    if (!Boolean.parseBoolean(props.getProperty(poolEnabled))) {
+      return;
+    }
+
+    props.setProperty(AvailableSettings.CONNECTION_PROVIDER,
+                      PooledConnectionProvider.class.getName());
+  }
+
+  /**
+   * @return the pool - null until configured
+   */
+  public ConnectionPool getPool() {
+    return pool;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void configure(final Map props) {
+    final String driver = str(props, AvailableSettings.DRIVER, null);
+    final String url = str(props, AvailableSettings.URL, null);
+
+    if (url == null) {
+      throw new HibernateException("No " + AvailableSettings.URL +
+                                           " for pooled connection provider");
+    }
+
+    final Driver drv;
+    if (driver == null) {
+      drv = null;
+    } else {
+      drv = loadDriver(driver);
+    }
+
+    final Properties connProps = new Properties();
+    final String user = str(props, AvailableSettings.USER, null);
+    if (user != null) {
+      connProps.setProperty("user", user);
+    }
+
+    final String pw = str(props, AvailableSettings.PASS, null);
+    if (pw != null) {
+      connProps.setProperty("password", pw);
+    }
+
+    final String iso = str(props, AvailableSettings.ISOLATION, null);
+    final Integer isolation;
+    if (iso == null) {
+      isolation = null;
+    } else {
+      isolation = Integer.valueOf(iso);
+    }
+
+    final int maxSize = Integer.parseInt(
+            str(props, poolMaxSize, "20"));
+
+    pool = new ConnectionPool(
+            str(props, poolName, url),
+            drv,
+            url,
+            connProps,
+            maxSize,
+            Integer.parseInt(str(props, poolMaxIdle,
+                                 String.valueOf(maxSize))),
+            Long.parseLong(str(props, poolTimeout, "30000")),
+            Long.parseLong(str(props, poolValidateAfter, "30000")),
+            Long.parseLong(str(props, poolMaxAge, "1800000")),
+            Boolean.parseBoolean(str(props,
+                                     AvailableSettings.AUTOCOMMIT,
+                                     "false")),
+            isolation);
+
+    HibMBeans.register("ConnectionPool", pool.getName(), pool);
+
+    if (debug()) {
+      debug("Configured pool " + pool.getName() +
+                    " with max size " + maxSize);
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return pool.getConnection();
+  }
+
+  @Override
+  public void closeConnection(final Connection conn) throws SQLException {
+    pool.release(conn);
+  }
+
+  @Override
+  public boolean supportsAggressiveRelease() {
+    return false;
+  }
+
+  @Override
+  public void stop() {
+    if (pool == null) {
+      return;
+    }
+
+    pool.close();
+    HibMBeans.unregister("ConnectionPool", pool.getName());
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public boolean isUnwrappableAs(final Class unwrapType) {
+    return ConnectionProvider.class.equals(unwrapType) ||
+            PooledConnectionProvider.class.isAssignableFrom(unwrapType) ||
+            ConnectionPool.class.isAssignableFrom(unwrapType);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T unwrap(final Class<T> unwrapType) {
+    if (ConnectionProvider.class.equals(unwrapType) ||
+            PooledConnectionProvider.class.isAssignableFrom(unwrapType)) {
+      return (T)this;
+    }
+
+    if (ConnectionPool.class.isAssignableFrom(unwrapType)) {
+      return (T)pool;
+    }
+
+    throw new UnknownUnwrapTypeException(unwrapType);
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  @SuppressWarnings("rawtypes")
+  private static String str(final Map props,
+                            final String name,
+                            final String def) {
+    final Object o = props.get(name);
+
+    if (o == null) {
+      return def;
+    }
+
+    return o.toString().trim();
+  }
+
+  /* We instantiate the driver ourselves - the DriverManager refuses
+   * drivers not visible to our class loader.
+   */
+  private Driver loadDriver(final String driver) {
+    Class<?> cl;
+    try {
+      cl = Class.forName(driver, true,
+                         Thread.currentThread().getContextClassLoader());
+    } catch (final Throwable ignored) {
+      cl = null;
+    }
+
+    try {
+      if (cl == null) {
+        cl = Class.forName(driver);
+      }
+
+      return (Driver)cl.getDeclaredConstructor().newInstance();
+    } catch (final Throwable t) {
+      throw new HibernateException("Unable to load driver " + driver, t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
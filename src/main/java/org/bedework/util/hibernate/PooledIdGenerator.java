@@ -0,0 +1,170 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.DerbyDialect;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.engine.jdbc.env.spi.JdbcEnvironment;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/** An id generator which fetches a block of ids from a sequence (or
+ * a table if the dialect has no sequences) and hands them out from
+ * memory, so that inserts need no id round trip and hibernate can
+ * batch them (set hibernate.jdbc.batch_size).
+ *
+ * <p>Use it in a mapping as:</p>
+ * <pre>
+ *   &lt;generator class="org.bedework.util.hibernate.PooledIdGenerator"&gt;
+ *     &lt;param name="sequence_name"&gt;bw_event_seq&lt;/param&gt;
+ *   &lt;/generator&gt;
+ * </pre>
+ *
+ * <p>Defaults to the pooled-lo optimizer with blocks of 50 ids, or
+ * 100 for H2 and Derby where a larger block costs nothing but a
+ * bigger gap after a restart. Both can be overridden with the
+ * increment_size and optimizer parameters. The sequence must be
+ * created with the same increment.</p>
+ *
+ * <p>Each node allocates its own blocks so ids from different nodes
+ * interleave but never collide. Usage is available through JMX, one
+ * bean per entity hierarchy named for the root entity and the session
+ * factory. PooledIdGeneratorIntegrator registers the beans when the
+ * factory is built and removes them when it is closed.</p>
+ */
+public class PooledIdGenerator extends SequenceStyleGenerator
+        implements PooledIdGeneratorMBean {
+  /** Default block size */
+  public static final int defaultBlockSize = 50;
+
+  /** Block size for the embedded databases */
+  public static final int embeddedBlockSize = 100;
+
+  private final LongAdder idsGenerated = new LongAdder();
+
+  /* Name we are registered under - null if not registered */
+  private String mbeanName;
+
+  @Override
+  public void configure(final Type type,
+                        final Properties params,
+                        final ServiceRegistry serviceRegistry)
+          throws MappingException {
+    final Dialect dialect = serviceRegistry
+            .getService(JdbcEnvironment.class).getDialect();
+
+    if (!params.containsKey(INCREMENT_PARAM)) {
+      final int blockSize;
+      if ((dialect instanceof H2Dialect) ||
+              (dialect instanceof DerbyDialect)) {
+        blockSize = embeddedBlockSize;
+      } else {
+        blockSize = defaultBlockSize;
+      }
+
+      params.setProperty(INCREMENT_PARAM, String.valueOf(blockSize));
+    }
+
+    if (!params.containsKey(OPT_PARAM)) {
+      params.setProperty(OPT_PARAM,
+                         StandardOptimizerDescriptor.POOLED_LO
+                                 .getExternalName());
+    }
+
+    super.configure(type, params, serviceRegistry);
+  }
+
+  @Override
+  public Serializable generate(final SharedSessionContractImplementor session,
+                               final Object object)
+          throws HibernateException {
+    final Serializable id = super.generate(session, object);
+    idsGenerated.increment();
+
+    return id;
+  }
+
+  /** Subclasses share the generator of the root entity so this may
+   * be called more than once - only the first call registers.
+   *
+   * @param name for the bean
+   */
+  synchronized void register(final String name) {
+    if (mbeanName != null) {
+      return;
+    }
+
+    mbeanName = name;
+    HibMBeans.register("PooledIdGenerator", name, this);
+  }
+
+  synchronized void unregister() {
+    if (mbeanName == null) {
+      return;
+    }
+
+    HibMBeans.unregister("PooledIdGenerator", mbeanName);
+    mbeanName = null;
+  }
+
+  /* ==============================================================
+   *                   MBean methods
+   * ============================================================== */
+
+  @Override
+  public String getStructureName() {
+    return getDatabaseStructure().getName();
+  }
+
+  @Override
+  public int getBlockSize() {
+    return getDatabaseStructure().getIncrementSize();
+  }
+
+  @Override
+  public long getIdsGenerated() {
+    return idsGenerated.sum();
+  }
+
+  @Override
+  public long getBlocksFetched() {
+    return getDatabaseStructure().getTimesAccessed();
+  }
+
+  @Override
+  public double getIdsPerBlock() {
+    final long blocks = getBlocksFetched();
+
+    if (blocks == 0) {
+      return 0;
+    }
+
+    return (double)getIdsGenerated() / blocks;
+  }
+}
@@ -0,0 +1,87 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Ties the JMX beans of any PooledIdGenerator to the life of its
+ * session factory. Hibernate finds this through
+ * META-INF/services/org.hibernate.integrator.spi.Integrator.
+ *
+ * <p>Integrators run before the generators exist so we register an
+ * observer which does the work once the factory is built.</p>
+ */
+public class PooledIdGeneratorIntegrator implements Integrator {
+  @Override
+  public void integrate(final Metadata metadata,
+                        final SessionFactoryImplementor sf,
+                        final SessionFactoryServiceRegistry serviceRegistry) {
+    sf.addObserver(new Observer());
+  }
+
+  @Override
+  public void disintegrate(final SessionFactoryImplementor sf,
+                           final SessionFactoryServiceRegistry serviceRegistry) {
+    // The observer unregisters
+  }
+
+  /* Beans are named root-entity@factory-uuid so that a factory built
+   * before the old one is closed does not collide with it.
+   */
+  static class Observer implements SessionFactoryObserver {
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<PooledIdGenerator> generators =
+            new ArrayList<>();
+
+    @Override
+    public void sessionFactoryCreated(final SessionFactory factory) {
+      final SessionFactoryImplementor sf =
+              (SessionFactoryImplementor)factory;
+
+      for (final EntityPersister persister:
+              sf.getMetamodel().entityPersisters().values()) {
+        if (persister.getIdentifierGenerator()
+                instanceof final PooledIdGenerator gen) {
+          gen.register(persister.getRootEntityName() + "@" +
+                               sf.getUuid());
+          generators.add(gen);
+        }
+      }
+    }
+
+    @Override
+    public void sessionFactoryClosed(final SessionFactory factory) {
+      for (final PooledIdGenerator gen: generators) {
+        gen.unregister();
+      }
+
+      generators.clear();
+    }
+  }
+}
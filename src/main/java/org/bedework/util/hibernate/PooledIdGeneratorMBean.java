@@ -0,0 +1,49 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+/** JMX interface for the pooled id generator.
+ *
+ */
+public interface PooledIdGeneratorMBean {
+  /**
+   * @return name of the sequence or table
+   */
+  String getStructureName();
+
+  /**
+   * @return number of ids allocated per block
+   */
+  int getBlockSize();
+
+  /**
+   * @return number of ids handed out
+   */
+  long getIdsGenerated();
+
+  /**
+   * @return number of blocks fetched from the database
+   */
+  long getBlocksFetched();
+
+  /**
+   * @return ids handed out per block fetched
+   */
+  double getIdsPerBlock();
+}
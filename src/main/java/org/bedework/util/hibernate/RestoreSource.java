@@ -0,0 +1,40 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/** Supplies the entities for ParallelRestore, one mapped class at a
+ * time. The entities for a class must come back in the same order
+ * on every call so that an interrupted restore can be resumed.
+ */
+public interface RestoreSource {
+  /**
+   * @return the mapped classes we have entities for
+   */
+  Collection<Class<?>> getClasses();
+
+  /** Called once per class, in dependency order.
+   *
+   * @param cl a class from getClasses()
+   * @return the entities of that class
+   */
+  Iterator<?> entities(Class<?> cl);
+}
@@ -0,0 +1,437 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.CascadeStyle;
+import org.hibernate.engine.spi.CascadingActions;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.Type;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Keeps an eye on the size of the hibernate persistence context
+ * (the first level cache) of each session.
+ *
+ * <p>Flush cost grows with the number of managed entities. Once a
+ * session passes one of the thresholds we either warn (once per
+ * session) or flush and evict the entities the session manages.</p>
+ *
+ * <p>flushEvict keeps the entity just written and the entities it
+ * refers to directly attached, everything else is evicted. Entities
+ * whose evict would cascade to one we keep are kept too. Any other
+ * entity the caller modifies after it has been evicted will not be
+ * saved, so flushEvict only applies to sessions marked as streaming
+ * with HibSession.setStreaming(), e.g. imports. For other sessions it
+ * warns as for the warn action.</p>
+ *
+ * <p>The byte size is an estimate - the entity count multiplied by
+ * the configured average entity size.</p>
+ *
+ * <p>The thresholds and high water marks are available through JMX.</p>
+ */
+public class SessionGovernor implements Logged, SessionGovernorMBean {
+  /** What we do when a threshold is passed */
+  public enum Action {
+    /** Just track the high water marks */
+    none,
+
+    /** Log a warning once per session */
+    warn,
+
+    /** Flush then evict managed entities not referenced by the
+     * entity just written. Only for streaming sessions - others are
+     * warned about. */
+    flushEvict
+  }
+
+  private static final SessionGovernor defaultGovernor =
+          new SessionGovernor("default");
+
+  static {
+    HibMBeans.register("SessionGovernor", "default",
+                       defaultGovernor);
+  }
+
+  private final String name;
+
+  private volatile Action action = Action.warn;
+  private volatile int maxEntities = 10000;
+  private volatile long maxEstimatedBytes;
+  private volatile int estimatedEntityBytes = 1024;
+
+  private final AtomicLong entitiesHighWater = new AtomicLong();
+  private final AtomicLong estimatedBytesHighWater = new AtomicLong();
+  private final AtomicLong warnings = new AtomicLong();
+  private final AtomicLong flushEvicts = new AtomicLong();
+
+  /**
+   * @param name for logging and JMX
+   */
+  public SessionGovernor(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the governor used by sessions unless told otherwise
+   */
+  public static SessionGovernor getDefault() {
+    return defaultGovernor;
+  }
+
+  /** Register this governor with JMX. The default governor is
+   * always registered.
+   */
+  public void register() {
+    HibMBeans.register("SessionGovernor", name, this);
+  }
+
+  /**
+   * @param val action to take when a threshold is passed
+   */
+  public void setActionValue(final Action val) {
+    action = val;
+  }
+
+  /**
+   * @return action to take when a threshold is passed
+   */
+  public Action getActionValue() {
+    return action;
+  }
+
+  /* ==============================================================
+   *                   MBean methods
+   * ============================================================== */
+
+  @Override
+  public void setAction(final String val) {
+    action = Action.valueOf(val);
+  }
+
+  @Override
+  public String getAction() {
+    return action.name();
+  }
+
+  @Override
+  public void setMaxEntities(final int val) {
+    maxEntities = val;
+  }
+
+  @Override
+  public int getMaxEntities() {
+    return maxEntities;
+  }
+
+  @Override
+  public void setMaxEstimatedBytes(final long val) {
+    maxEstimatedBytes = val;
+  }
+
+  @Override
+  public long getMaxEstimatedBytes() {
+    return maxEstimatedBytes;
+  }
+
+  @Override
+  public void setEstimatedEntityBytes(final int val) {
+    estimatedEntityBytes = val;
+  }
+
+  @Override
+  public int getEstimatedEntityBytes() {
+    return estimatedEntityBytes;
+  }
+
+  @Override
+  public long getEntitiesHighWater() {
+    return entitiesHighWater.get();
+  }
+
+  @Override
+  public long getEstimatedBytesHighWater() {
+    return estimatedBytesHighWater.get();
+  }
+
+  @Override
+  public long getWarnings() {
+    return warnings.get();
+  }
+
+  @Override
+  public long getFlushEvicts() {
+    return flushEvicts.get();
+  }
+
+  @Override
+  public void reset() {
+    entitiesHighWater.set(0);
+    estimatedBytesHighWater.set(0);
+    warnings.set(0);
+    flushEvicts.set(0);
+  }
+
+  /* ==============================================================
+   *                   Package methods
+   * ============================================================== */
+
+  /** Called by the session after operations which may add to the
+   * persistence context.
+   *
+   * @param sess the open hibernate session
+   * @param written the entity just written or null. We only flush
+   *                and evict after a write.
+   * @param streaming true if the session was marked as streaming
+   * @param warned true if we already warned for this session
+   * @return true if we have now warned for this session
+   */
+  boolean govern(final Session sess,
+                 final Object written,
+                 final boolean streaming,
+                 final boolean warned) {
+    final int count = sess.getStatistics().getEntityCount();
+    final long bytes = (long)count * estimatedEntityBytes;
+
+    if (count > entitiesHighWater.get()) {
+      entitiesHighWater.accumulateAndGet(count, Math::max);
+    }
+
+    if (bytes > estimatedBytesHighWater.get()) {
+      estimatedBytesHighWater.accumulateAndGet(bytes, Math::max);
+    }
+
+    final int maxEnt = maxEntities;
+    final long maxBytes = maxEstimatedBytes;
+
+    if (((maxEnt <= 0) || (count <= maxEnt)) &&
+            ((maxBytes <= 0) || (bytes <= maxBytes))) {
+      return warned;
+    }
+
+    Action act = action;
+
+    if ((act == Action.flushEvict) && !streaming) {
+      act = Action.warn;
+    }
+
+    switch (act) {
+      case none:
+        return warned;
+
+      case warn:
+        if (!warned) {
+          warnings.incrementAndGet();
+          warn("Governor " + name + ": session is managing " +
+                       count + " entities (estimated " +
+                       bytes + " bytes). Consider clearing it.");
+        }
+        return true;
+
+      case flushEvict:
+        if (written == null) {
+          return warned;
+        }
+
+        sess.flush();
+        final int evicted = evictUnreferenced(sess, written);
+        flushEvicts.incrementAndGet();
+
+        if (debug()) {
+          debug("Governor " + name + ": flushed and evicted " +
+                        evicted + " of " + count + " entities");
+        }
+        return warned;
+    }
+
+    return warned;
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  /* Evict everything apart from the written entity and the entities
+   * it refers to directly, and anything whose evict would cascade to
+   * those. Evicting may cascade, so entities can disappear from the
+   * persistence context as we go.
+   */
+  private int evictUnreferenced(final Session sess,
+                                final Object written) {
+    final SessionImplementor si = (SessionImplementor)sess;
+    final PersistenceContext pc = si.getPersistenceContext();
+
+    final Set<Object> keep =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    keep.add(written);
+
+    if (sess.contains(written)) {
+      addReferenced(si.getEntityPersister(null, written),
+                    written, keep);
+    }
+
+    final Object[] keys = sess.getStatistics().getEntityKeys().toArray();
+
+    keepCascading(si, pc, keys, keep);
+
+    int evicted = 0;
+
+    for (final Object key: keys) {
+      final Object ent = pc.getEntity((EntityKey)key);
+
+      if ((ent == null) || keep.contains(ent) || !sess.contains(ent)) {
+        continue;
+      }
+
+      sess.evict(ent);
+      evicted++;
+    }
+
+    return evicted;
+  }
+
+  /* Add to keep the entities whose evict cascades, directly or
+   * through others, to one we keep. Repeat until nothing is added.
+   */
+  private static void keepCascading(final SessionImplementor si,
+                                    final PersistenceContext pc,
+                                    final Object[] keys,
+                                    final Set<Object> keep) {
+    final Set<Object> reached =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    boolean added;
+
+    do {
+      added = false;
+
+      for (final Object key: keys) {
+        final Object ent = pc.getEntity((EntityKey)key);
+
+        if ((ent == null) || keep.contains(ent)) {
+          continue;
+        }
+
+        final EntityPersister persister =
+                si.getEntityPersister(null, ent);
+
+        if (!persister.hasCascades()) {
+          continue;
+        }
+
+        reached.clear();
+        addReferenced(persister, ent, reached, true);
+
+        for (final Object o: reached) {
+          if (keep.contains(o)) {
+            keep.add(ent);
+            added = true;
+            break;
+          }
+        }
+      }
+    } while (added);
+  }
+
+  private static void addReferenced(final EntityPersister persister,
+                                    final Object written,
+                                    final Set<Object> keep) {
+    addReferenced(persister, written, keep, false);
+  }
+
+  /* The entities ent refers to - only through properties which
+   * cascade evict if evictCascades */
+  private static void addReferenced(final EntityPersister persister,
+                                    final Object ent,
+                                    final Set<Object> keep,
+                                    final boolean evictCascades) {
+    final Type[] types = persister.getPropertyTypes();
+    final Object[] values = persister.getPropertyValues(ent);
+    final CascadeStyle[] cascades = persister.getPropertyCascadeStyles();
+
+    for (int i = 0; i < types.length; i++) {
+      final Object val = values[i];
+
+      if (val == null) {
+        continue;
+      }
+
+      if (evictCascades &&
+              !cascades[i].doCascade(CascadingActions.EVICT)) {
+        continue;
+      }
+
+      if (types[i].isEntityType()) {
+        addEntity(val, keep);
+      } else if (types[i].isCollectionType()) {
+        if (val instanceof final Collection<?> c) {
+          for (final Object o: c) {
+            addEntity(o, keep);
+          }
+        } else if (val instanceof final Map<?, ?> m) {
+          for (final Object o: m.values()) {
+            addEntity(o, keep);
+          }
+        }
+      }
+    }
+  }
+
+  /* The persistence context holds the implementation, not a proxy. */
+  private static void addEntity(final Object val,
+                                final Set<Object> keep) {
+    if (val instanceof final HibernateProxy hp) {
+      final LazyInitializer li = hp.getHibernateLazyInitializer();
+
+      if (!li.isUninitialized()) {
+        keep.add(li.getImplementation());
+      }
+      return;
+    }
+
+    keep.add(val);
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
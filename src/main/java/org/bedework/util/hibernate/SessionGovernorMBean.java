@@ -0,0 +1,90 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+/** JMX interface for the persistence context governor.
+ *
+ */
+public interface SessionGovernorMBean {
+  /** One of "none", "warn" or "flushEvict"
+   *
+   * @param val action to take when a threshold is passed
+   */
+  void setAction(String val);
+
+  /**
+   * @return action to take when a threshold is passed
+   */
+  String getAction();
+
+  /**
+   * @param val max managed entities before we act - 0 for no limit
+   */
+  void setMaxEntities(int val);
+
+  /**
+   * @return max managed entities before we act
+   */
+  int getMaxEntities();
+
+  /**
+   * @param val max estimated bytes before we act - 0 for no limit
+   */
+  void setMaxEstimatedBytes(long val);
+
+  /**
+   * @return max estimated bytes before we act
+   */
+  long getMaxEstimatedBytes();
+
+  /**
+   * @param val estimated size of a managed entity in bytes
+   */
+  void setEstimatedEntityBytes(int val);
+
+  /**
+   * @return estimated size of a managed entity in bytes
+   */
+  int getEstimatedEntityBytes();
+
+  /**
+   * @return highest managed entity count seen in any session
+   */
+  long getEntitiesHighWater();
+
+  /**
+   * @return highest estimated size seen in any session
+   */
+  long getEstimatedBytesHighWater();
+
+  /**
+   * @return number of sessions which passed a threshold
+   */
+  long getWarnings();
+
+  /**
+   * @return number of times we flushed and evicted
+   */
+  long getFlushEvicts();
+
+  /** Reset the high water marks and counts
+   *
+   */
+  void reset();
+}
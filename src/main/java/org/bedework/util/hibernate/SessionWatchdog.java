@@ -0,0 +1,336 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Tracks open sessions and transactions so that we can find those
+ * which are never closed or which keep a transaction open, holding on
+ * to a pooled connection.
+ *
+ * <p>When disabled (the default) the cost to a session is a single
+ * volatile read. When enabled it is a map insert and removal, plus a
+ * stack capture for 1 in stackSampleRate sessions.</p>
+ *
+ * <p>A daemon thread checks the tracked sessions once a minute,
+ * logging any over a threshold once. With forceClose set those
+ * sessions are marked as abandoned, then any running query is
+ * cancelled and the session is rolled back and closed, giving its
+ * connection back to the pool. A leaked session is never used again
+ * so we cannot wait for the owner. If the owner does use it again it
+ * gets an exception.</p>
+ *
+ * <p>Only a weak reference to the session is held. A session which
+ * is garbage collected without being closed is reported and dropped.
+ * </p>
+ */
+public class SessionWatchdog implements Logged, SessionWatchdogMBean {
+  private volatile boolean enabled;
+  private volatile long maxSessionAgeSeconds = 600;
+  private volatile long maxTransactionAgeSeconds = 120;
+  private volatile int stackSampleRate = 100;
+  private volatile boolean forceClose;
+
+  private final ConcurrentHashMap<Long, Tracked> tracked =
+          new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong reported = new AtomicLong();
+  private final AtomicLong forceClosed = new AtomicLong();
+
+  private ScheduledExecutorService checker;
+
+  /** Tracking information for an open session.
+   */
+  static final class Tracked {
+    final long id;
+    final WeakReference<HibSessionImpl> sess;
+    final long openedAt;
+    final String threadName;
+
+    /* Only set for sampled sessions */
+    final Throwable allocation;
+
+    volatile long txStartedAt;
+    volatile boolean reported;
+
+    /* Set by the watchdog - seen by the owner on its next call */
+    volatile boolean abandoned;
+
+    Tracked(final long id,
+            final HibSessionImpl sess,
+            final Throwable allocation) {
+      this.id = id;
+      this.sess = new WeakReference<>(sess);
+      this.allocation = allocation;
+      openedAt = System.currentTimeMillis();
+      threadName = Thread.currentThread().getName();
+    }
+  }
+
+  /* ==============================================================
+   *                   MBean methods
+   * ============================================================== */
+
+  @Override
+  public synchronized void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (val && (checker == null)) {
+      checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "HibSessionWatchdog");
+        t.setDaemon(true);
+        return t;
+      });
+      checker.scheduleWithFixedDelay(this::check, 60, 60,
+                                     TimeUnit.SECONDS);
+    } else if (!val && (checker != null)) {
+      checker.shutdownNow();
+      checker = null;
+      tracked.clear();
+    }
+  }
+
+  @Override
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setMaxSessionAgeSeconds(final long val) {
+    maxSessionAgeSeconds = val;
+  }
+
+  @Override
+  public long getMaxSessionAgeSeconds() {
+    return maxSessionAgeSeconds;
+  }
+
+  @Override
+  public void setMaxTransactionAgeSeconds(final long val) {
+    maxTransactionAgeSeconds = val;
+  }
+
+  @Override
+  public long getMaxTransactionAgeSeconds() {
+    return maxTransactionAgeSeconds;
+  }
+
+  @Override
+  public void setStackSampleRate(final int val) {
+    stackSampleRate = val;
+  }
+
+  @Override
+  public int getStackSampleRate() {
+    return stackSampleRate;
+  }
+
+  @Override
+  public void setForceClose(final boolean val) {
+    forceClose = val;
+  }
+
+  @Override
+  public boolean getForceClose() {
+    return forceClose;
+  }
+
+  @Override
+  public int getOpenSessions() {
+    return tracked.size();
+  }
+
+  @Override
+  public int getOpenTransactions() {
+    int ct = 0;
+
+    for (final Tracked t: tracked.values()) {
+      if (t.txStartedAt != 0) {
+        ct++;
+      }
+    }
+
+    return ct;
+  }
+
+  @Override
+  public long getReported() {
+    return reported.get();
+  }
+
+  @Override
+  public long getForceClosed() {
+    return forceClosed.get();
+  }
+
+  @Override
+  public List<String> check() {
+    final List<String> res = new ArrayList<>();
+    final long now = System.currentTimeMillis();
+    final long maxSess = maxSessionAgeSeconds * 1000;
+    final long maxTx = maxTransactionAgeSeconds * 1000;
+
+    for (final Tracked t: tracked.values()) {
+      if (t.sess.get() == null) {
+        /* Dropped without a close */
+        tracked.remove(t.id);
+        reported.incrementAndGet();
+        final String msg = "Session " + t.id +
+                " opened by thread " + t.threadName +
+                " was never closed";
+        res.add(msg);
+        warn(msg);
+        continue;
+      }
+
+      final long sessAge = now - t.openedAt;
+      final long txStarted = t.txStartedAt;
+      final long txAge;
+
+      if (txStarted == 0) {
+        txAge = 0;
+      } else {
+        txAge = now - txStarted;
+      }
+
+      if (((maxSess <= 0) || (sessAge <= maxSess)) &&
+              ((maxTx <= 0) || (txAge <= maxTx))) {
+        continue;
+      }
+
+      final String msg = "Session " + t.id +
+              " opened by thread " + t.threadName +
+              " open for " + (sessAge / 1000) + "s" +
+              ((txStarted == 0) ? "" :
+               ", transaction open for " + (txAge / 1000) + "s");
+
+      res.add(msg);
+
+      if (!t.reported) {
+        t.reported = true;
+        reported.incrementAndGet();
+
+        if (t.allocation == null) {
+          warn(msg);
+        } else {
+          final StringWriter sw = new StringWriter();
+          t.allocation.printStackTrace(new PrintWriter(sw));
+          warn(msg + "\n" + sw);
+        }
+      }
+
+      if (forceClose && !t.abandoned) {
+        t.abandoned = true;
+        forceClosed.incrementAndGet();
+
+        final HibSessionImpl sess = t.sess.get();
+
+        if (sess != null) {
+          sess.forceClose();
+        }
+
+        tracked.remove(t.id);
+        warn("Abandoned session " + t.id + ": rolled back and closed");
+      }
+    }
+
+    return res;
+  }
+
+  /* ==============================================================
+   *                   Package methods
+   * ============================================================== */
+
+  /** Called when a session is opened.
+   *
+   * @param sess the session
+   * @return tracking object or null if not enabled
+   */
+  Tracked opened(final HibSessionImpl sess) {
+    if (!enabled) {
+      return null;
+    }
+
+    final long id = nextId.incrementAndGet();
+    final int rate = stackSampleRate;
+    final Throwable allocation;
+
+    if ((rate > 0) && ((id % rate) == 0)) {
+      allocation = new Throwable("Session " + id + " allocated here");
+    } else {
+      allocation = null;
+    }
+
+    final Tracked t = new Tracked(id, sess, allocation);
+    tracked.put(id, t);
+
+    return t;
+  }
+
+  /**
+   * @param t tracking object - may be null
+   */
+  void closed(final Tracked t) {
+    if (t != null) {
+      tracked.remove(t.id);
+    }
+  }
+
+  /**
+   * @param t tracking object - may be null
+   * @param started true for transaction started
+   */
+  void transaction(final Tracked t,
+                   final boolean started) {
+    if (t != null) {
+      if (started) {
+        t.txStartedAt = System.currentTimeMillis();
+      } else {
+        t.txStartedAt = 0;
+      }
+    }
+  }
+
+  /* ==============================================================
+   *                   Logged methods
+   * ============================================================== */
+
+  private final BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,105 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.List;
+
+/** JMX interface for the session leak watchdog.
+ *
+ */
+public interface SessionWatchdogMBean {
+  /**
+   * @param val true to track sessions
+   */
+  void setEnabled(boolean val);
+
+  /**
+   * @return true if tracking sessions
+   */
+  boolean getEnabled();
+
+  /**
+   * @param val sessions open longer than this are reported
+   */
+  void setMaxSessionAgeSeconds(long val);
+
+  /**
+   * @return sessions open longer than this are reported
+   */
+  long getMaxSessionAgeSeconds();
+
+  /**
+   * @param val transactions open longer than this are reported
+   */
+  void setMaxTransactionAgeSeconds(long val);
+
+  /**
+   * @return transactions open longer than this are reported
+   */
+  long getMaxTransactionAgeSeconds();
+
+  /**
+   * @param val capture the allocation stack for 1 in val sessions.
+   *            0 for never, 1 for always.
+   */
+  void setStackSampleRate(int val);
+
+  /**
+   * @return the stack sample rate
+   */
+  int getStackSampleRate();
+
+  /** Sessions are not closed by the watchdog thread. They are
+   * marked and the owner rolls back and closes on its next call.
+   *
+   * @param val true to force close sessions over the threshold
+   */
+  void setForceClose(boolean val);
+
+  /**
+   * @return true if we force close sessions over the threshold
+   */
+  boolean getForceClose();
+
+  /**
+   * @return number of sessions we are tracking
+   */
+  int getOpenSessions();
+
+  /**
+   * @return number of those with an open transaction
+   */
+  int getOpenTransactions();
+
+  /**
+   * @return number of sessions reported as over a threshold
+   */
+  long getReported();
+
+  /**
+   * @return number of sessions we force closed
+   */
+  long getForceClosed();
+
+  /** Run a check now rather than waiting for the next one.
+   *
+   * @return a line for each session over a threshold
+   */
+  List<String> check();
+}
@@ -18,10 +18,12 @@
 */
 package org.bedework.util.hibernate;
 
+import org.hibernate.proxy.HibernateProxyHelper;
+
 import java.io.Serializable;
 
 /** Base type for a database entity. We require an id and the subclasses must
- * implement hashcode and compareTo.
+ * implement hashcode and compareTo, unless annotated with IdEquality.
  *
  * @author Mike Douglass
  * @version 1.0
@@ -31,6 +33,15 @@ import java.io.Serializable;
  */
 public class UnversionedDbentity<K, T> extends DumpEntity<T>
         implements Comparable<T>, Serializable {
+  /* Classes annotated with IdEquality */
+  private static final ClassValue<Boolean> idEquality =
+          new ClassValue<>() {
+            @Override
+            protected Boolean computeValue(final Class<?> cl) {
+              return cl.isAnnotationPresent(IdEquality.class);
+            }
+          };
+
   private K id;
 
   /**
@@ -92,10 +103,17 @@ public class UnversionedDbentity<K, T> extends DumpEntity<T>
   @Override
   @NoWrap
   public int hashCode() {
-    throw new RuntimeException("hashcode must be implemented for a db object");
+    final Class<?> cl = entityClass(this);
+
+    if (!idEquality.get(cl)) {
+      throw new RuntimeException("hashcode must be implemented for a db object");
+    }
+
+    /* Not the id - it must not change when the entity is saved */
+    return cl.getName().hashCode();
   }
 
-  /* We always use the compareTo method
+  /* We use the compareTo method unless annotated with IdEquality
    */
   @SuppressWarnings("unchecked")
   @Override
@@ -104,6 +122,24 @@ public class UnversionedDbentity<K, T> extends DumpEntity<T>
       return true;
     }
 
-    return compareTo((T)obj) == 0;
+    final Class<?> cl = entityClass(this);
+
+    if (!idEquality.get(cl)) {
+      return compareTo((T)obj) == 0;
+    }
+
+    if (!(obj instanceof final UnversionedDbentity<?, ?> that) ||
+            (entityClass(that) != cl)) {
+      return false;
+    }
+
+    final K k = getId();
+
+    return (k != null) && k.equals(that.getId());
+  }
+
+  /* The class of the entity without initializing a proxy */
+  private static Class<?> entityClass(final Object o) {
+    return HibernateProxyHelper.getClassWithoutInitializingProxy(o);
   }
 }
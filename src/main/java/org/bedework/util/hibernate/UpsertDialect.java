@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+/** Implemented by dialects which can insert or update a row in a
+ * single statement (MERGE, ON CONFLICT etc). Used by
+ * HibSession.upsert.
+ *
+ * <p>Columns are numbered with the key columns first: 0 to
+ * keyCount - 1 are the key columns, keyCount onwards the value
+ * columns. All columns are inserted, only the value columns flagged
+ * as updateable are set when the row exists.</p>
+ */
+public interface UpsertDialect {
+  /**
+   * @param table name
+   * @param keyColumns the primary key columns
+   * @param valueColumns the other columns
+   * @param updateable true for each value column we may update
+   * @param sqlTypes java.sql.Types code for each column - key
+   *                 columns first - for dialects which must cast
+   *                 the parameter markers
+   * @return sql with parameter markers for the column values
+   */
+  String getUpsertString(String table,
+                         String[] keyColumns,
+                         String[] valueColumns,
+                         boolean[] updateable,
+                         int[] sqlTypes);
+
+  /**
+   * @param keyCount number of key columns
+   * @param updateable true for each value column we may update
+   * @return for each parameter marker in order, the column number
+   */
+  default int[] getUpsertParameterOrder(final int keyCount,
+                                        final boolean[] updateable) {
+    /* Order for a MERGE with the key in the on clause, then the
+     * update set, then the insert values
+     */
+    final int ncols = keyCount + updateable.length;
+    int nupdate = 0;
+
+    for (final boolean u: updateable) {
+      if (u) {
+        nupdate++;
+      }
+    }
+
+    final int[] order = new int[keyCount + nupdate + ncols];
+    int pi = 0;
+
+    /* on clause */
+    for (int i = 0; i < keyCount; i++) {
+      order[pi++] = i;
+    }
+
+    /* update set */
+    for (int i = 0; i < updateable.length; i++) {
+      if (updateable[i]) {
+        order[pi++] = keyCount + i;
+      }
+    }
+
+    /* insert values */
+    for (int i = 0; i < ncols; i++) {
+      order[pi++] = i;
+    }
+
+    return order;
+  }
+}
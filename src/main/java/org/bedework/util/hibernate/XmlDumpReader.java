@@ -0,0 +1,115 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import java.io.InputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/** Reads an xml dump with StAX and replays it into a sink, e.g. an
+ * EntityBuilder to rebuild the entities. Only the current element is
+ * held in memory so dumps of any size can be read.
+ *
+ * <p>An element holding only text is passed on as a property, any
+ * other element is opened and closed. An empty element is opened and
+ * closed if the sink says it is an element there, so entities and
+ * compound values with no values set are not lost. Dumps written
+ * through XmlEmit, which wraps values in CDATA, are read the same
+ * way.</p>
+ */
+public class XmlDumpReader {
+  private final XMLStreamReader rdr;
+
+  /**
+   * @param in to read from. Not closed.
+   */
+  public XmlDumpReader(final InputStream in) {
+    final XMLInputFactory factory = XMLInputFactory.newFactory();
+
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                        false);
+
+    try {
+      rdr = factory.createXMLStreamReader(in);
+    } catch (final XMLStreamException xse) {
+      throw new BedeworkDatabaseException(xse);
+    }
+  }
+
+  /** Read the whole stream.
+   *
+   * @param sink receives the content
+   */
+  public void replay(final DumpSink sink) {
+    /* An element is only opened once we see a child element. Until
+       then it may turn out to be a property. */
+    QName pending = null;
+    final StringBuilder text = new StringBuilder();
+
+    try {
+      while (rdr.hasNext()) {
+        switch (rdr.next()) {
+          case XMLStreamConstants.START_ELEMENT -> {
+            if (pending != null) {
+              sink.openTag(pending);
+            }
+
+            pending = rdr.getName();
+            text.setLength(0);
+          }
+          case XMLStreamConstants.CHARACTERS,
+                  XMLStreamConstants.CDATA,
+                  XMLStreamConstants.SPACE -> {
+            if (pending != null) {
+              text.append(rdr.getTextCharacters(), rdr.getTextStart(),
+                          rdr.getTextLength());
+            }
+          }
+          case XMLStreamConstants.END_ELEMENT -> {
+            if (pending != null) {
+              if (text.toString().isBlank() && sink.isElement(pending)) {
+                /* An entity with no values */
+                sink.openTag(pending);
+                sink.closeTag(pending);
+              } else {
+                sink.property(pending, text.toString());
+              }
+              pending = null;
+            } else {
+              sink.closeTag(rdr.getName());
+            }
+          }
+          default -> {}
+        }
+      }
+
+      sink.flush();
+    } catch (final XMLStreamException xse) {
+      throw new BedeworkDatabaseException(xse);
+    }
+  }
+}
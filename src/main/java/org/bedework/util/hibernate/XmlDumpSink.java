@@ -0,0 +1,230 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.xml.XmlEmit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/** Writes the dump as xml.
+ *
+ * <p>Given an XmlEmit we write through it. Given a Writer we write the
+ * xml ourselves: values are escaped in one pass straight to the
+ * writer and numbers and dates are formatted into a reused buffer, so
+ * a property costs no allocation.</p>
+ */
+public class XmlDumpSink implements DumpSink {
+  private final XmlEmit xml;
+  private final Writer wtr;
+
+  private final DumpChars chars;
+
+  /* Open and close tags for the writer */
+  private final Map<QName, String[]> tags;
+
+  /**
+   * @param xml emitter already set up for output
+   */
+  public XmlDumpSink(final XmlEmit xml) {
+    this.xml = xml;
+    wtr = null;
+    chars = null;
+    tags = null;
+  }
+
+  /**
+   * @param wtr to write to - should be buffered
+   */
+  public XmlDumpSink(final Writer wtr) {
+    xml = null;
+    this.wtr = wtr;
+    chars = new DumpChars();
+    tags = new HashMap<>();
+  }
+
+  @Override
+  public void openTag(final QName tag) {
+    if (xml != null) {
+      xml.openTag(tag);
+      return;
+    }
+
+    try {
+      wtr.write(tags(tag)[0]);
+      wtr.write('\n');
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void closeTag(final QName tag) {
+    if (xml != null) {
+      xml.closeTag(tag);
+      return;
+    }
+
+    try {
+      wtr.write(tags(tag)[1]);
+      wtr.write('\n');
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void property(final QName tag, final String val) {
+    if (xml == null) {
+      value(tag, val);
+      return;
+    }
+
+    /* One pass for both characters */
+    for (int i = 0; i < val.length(); i++) {
+      final char ch = val.charAt(i);
+
+      if ((ch == '&') || (ch == '<')) {
+        xml.cdataProperty(tag, val);
+        return;
+      }
+    }
+
+    xml.property(tag, val);
+  }
+
+  @Override
+  public void value(final QName tag, final Object val) {
+    if (xml != null) {
+      property(tag, DumpChars.toString(val));
+      return;
+    }
+
+    try {
+      final String[] t = tags(tag);
+
+      wtr.write(t[0]);
+
+      if (val instanceof final String s) {
+        escape(s);
+      } else if (val instanceof final char[] cs) {
+        escape(cs);
+      } else if (chars.format(val)) {
+        // Nothing to escape in these
+        wtr.write(chars.buf, 0, chars.len);
+      } else {
+        escape(DumpChars.toString(val));
+      }
+
+      wtr.write(t[1]);
+      wtr.write('\n');
+    } catch (final IOException ie) {
+      throw new BedeworkDatabaseException(ie);
+    }
+  }
+
+  @Override
+  public void flush() {
+    if (wtr == null) {
+      return;
+    }
+
+    try {
+      wtr.flush();
+    } catch (final Throwable t) {
+      throw new BedeworkDatabaseException(t);
+    }
+  }
+
+  /* ==============================================================
+   *                   Private methods
+   * ============================================================== */
+
+  private String[] tags(final QName tag) {
+    String[] t = tags.get(tag);
+
+    if (t == null) {
+      t = new String[]{"<" + tag.getLocalPart() + ">",
+                       "</" + tag.getLocalPart() + ">"};
+      tags.put(tag, t);
+    }
+
+    return t;
+  }
+
+  /* Copy unescaped runs straight through */
+  private void escape(final String val) throws IOException {
+    int start = 0;
+    final int len = val.length();
+
+    for (int i = 0; i < len; i++) {
+      final String esc = escaped(val.charAt(i));
+
+      if (esc == null) {
+        continue;
+      }
+
+      if (i > start) {
+        wtr.write(val, start, i - start);
+      }
+      wtr.write(esc);
+      start = i + 1;
+    }
+
+    if (len > start) {
+      wtr.write(val, start, len - start);
+    }
+  }
+
+  private void escape(final char[] val) throws IOException {
+    int start = 0;
+
+    for (int i = 0; i < val.length; i++) {
+      final String esc = escaped(val[i]);
+
+      if (esc == null) {
+        continue;
+      }
+
+      if (i > start) {
+        wtr.write(val, start, i - start);
+      }
+      wtr.write(esc);
+      start = i + 1;
+    }
+
+    if (val.length > start) {
+      wtr.write(val, start, val.length - start);
+    }
+  }
+
+  private static String escaped(final char ch) {
+    return switch (ch) {
+      case '&' -> "&amp;";
+      case '<' -> "&lt;";
+      case '>' -> "&gt;";
+      default -> null;
+    };
+  }
+}
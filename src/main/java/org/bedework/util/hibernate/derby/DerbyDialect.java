@@ -42,6 +42,8 @@
  */
 package org.bedework.util.hibernate.derby;
 
+import org.bedework.util.hibernate.UpsertDialect;
+
 import java.sql.Types;
 
 /**
@@ -52,7 +54,8 @@ import java.sql.Types;
  *
  * @author Simon Johnston
  */
-public class DerbyDialect extends org.hibernate.dialect.DerbyDialect {
+public class DerbyDialect extends org.hibernate.dialect.DerbyDialect
+        implements UpsertDialect {
 
 	/**
 	 *
@@ -62,4 +65,81 @@ public class DerbyDialect extends org.hibernate.dialect.DerbyDialect {
     registerColumnType( Types.BLOB, "blob" );
     registerColumnType( Types.CLOB, "clob" );
 	}
+
+  /* Derby (10.11 and later) needs a source table for MERGE so we use
+   * the one row dummy table:
+   *
+   * MERGE INTO t USING SYSIBM.SYSDUMMY1 ON t.k = CAST(? AS type)
+   *   WHEN MATCHED THEN UPDATE SET c = CAST(? AS type)...
+   *   WHEN NOT MATCHED THEN INSERT (k, c...)
+   *     VALUES (CAST(? AS type), ...)
+   *
+   * Derby will not always type a bare parameter marker in a MERGE
+   * so every marker is cast to its column type.
+   */
+  @Override
+  public String getUpsertString(final String table,
+                                final String[] keyColumns,
+                                final String[] valueColumns,
+                                final boolean[] updateable,
+                                final int[] sqlTypes) {
+    final StringBuilder sb = new StringBuilder("merge into ");
+    sb.append(table).append(" using SYSIBM.SYSDUMMY1 on ");
+
+    for (int i = 0; i < keyColumns.length; i++) {
+      if (i > 0) {
+        sb.append(" and ");
+      }
+      sb.append(table).append(".").append(keyColumns[i])
+        .append(" = ").append(marker(sqlTypes[i]));
+    }
+
+    String sep = " when matched then update set ";
+
+    for (int i = 0; i < valueColumns.length; i++) {
+      if (!updateable[i]) {
+        continue;
+      }
+      sb.append(sep).append(valueColumns[i]).append(" = ")
+        .append(marker(sqlTypes[keyColumns.length + i]));
+      sep = ", ";
+    }
+
+    sb.append(" when not matched then insert (")
+      .append(String.join(", ", keyColumns));
+
+    for (final String col: valueColumns) {
+      sb.append(", ").append(col);
+    }
+
+    sb.append(") values (");
+
+    for (int i = 0; i < keyColumns.length + valueColumns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(marker(sqlTypes[i]));
+    }
+
+    return sb.append(")").toString();
+  }
+
+  /* The cast must not truncate so variable length types get the
+   * largest Derby allows rather than the hibernate default length.
+   */
+  private String marker(final int sqlType) {
+    final String type = switch (sqlType) {
+      case Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR,
+              Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR ->
+              "varchar(32672)";
+      case Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY ->
+              "varchar(32672) for bit data";
+      case Types.CLOB, Types.NCLOB -> "clob";
+      case Types.BLOB -> "blob";
+      case Types.DECIMAL, Types.NUMERIC -> "decimal(31,15)";
+      default -> getCastTypeName(sqlType);
+    };
+
+    return "cast(? as " + type + ")";
+  }
 }
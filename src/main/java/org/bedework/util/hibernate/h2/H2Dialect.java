@@ -18,6 +18,8 @@
 */
 package org.bedework.util.hibernate.h2;
 
+import org.bedework.util.hibernate.UpsertDialect;
+
 import org.hibernate.dialect.function.StandardSQLFunction;
 import org.hibernate.type.IntegerType;
 
@@ -28,7 +30,8 @@ import java.sql.Types;
  * referred to in http://opensource.atlassian.com/projects/hibernate/browse/HHH-3401
  *
  */
-public class H2Dialect extends org.hibernate.dialect.H2Dialect {
+public class H2Dialect extends org.hibernate.dialect.H2Dialect
+        implements UpsertDialect {
   /**
    *
    */
@@ -41,4 +44,60 @@ public class H2Dialect extends org.hibernate.dialect.H2Dialect {
     registerFunction("quarter",
                      new StandardSQLFunction("quarter", IntegerType.INSTANCE));
   }
+
+  /* The MERGE ... KEY form sets every column on update, so use the
+   * standard form which lets us leave out update=false columns:
+   *
+   * MERGE INTO t USING (SELECT 1) ON (t.k = ?)
+   *   WHEN MATCHED THEN UPDATE SET c = ?...
+   *   WHEN NOT MATCHED THEN INSERT (k, c...) VALUES (?, ?...)
+   *
+   * H2 types the parameter markers from the values so no casts.
+   */
+  @Override
+  public String getUpsertString(final String table,
+                                final String[] keyColumns,
+                                final String[] valueColumns,
+                                final boolean[] updateable,
+                                final int[] sqlTypes) {
+    final StringBuilder sb = new StringBuilder("merge into ");
+    sb.append(table).append(" using (select 1) on (");
+
+    for (int i = 0; i < keyColumns.length; i++) {
+      if (i > 0) {
+        sb.append(" and ");
+      }
+      sb.append(table).append(".").append(keyColumns[i]).append(" = ?");
+    }
+
+    sb.append(")");
+
+    String sep = " when matched then update set ";
+
+    for (int i = 0; i < valueColumns.length; i++) {
+      if (!updateable[i]) {
+        continue;
+      }
+      sb.append(sep).append(valueColumns[i]).append(" = ?");
+      sep = ", ";
+    }
+
+    sb.append(" when not matched then insert (")
+      .append(String.join(", ", keyColumns));
+
+    for (final String col: valueColumns) {
+      sb.append(", ").append(col);
+    }
+
+    sb.append(") values (");
+
+    for (int i = 0; i < keyColumns.length + valueColumns.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append("?");
+    }
+
+    return sb.append(")").toString();
+  }
 }
@@ -0,0 +1,181 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryDumpTest {
+  private static final QName entTag = new QName("ent");
+  private static final QName nameTag = new QName("name");
+
+  private static List<String> replay(final byte[] dump) {
+    final RecordingSink sink = new RecordingSink();
+
+    new BinaryDumpReader(new ByteArrayInputStream(dump)).replay(sink);
+
+    return sink.calls;
+  }
+
+  @Test
+  public void roundTripsStringsAndValues() {
+    final String unicode = "caf\u00e9 \u20ac \ud83d\ude00";
+    final char[] big = new char[5000];
+    Arrays.fill(big, '\u00e9');
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    sink.openTag(entTag);
+    sink.property(nameTag, unicode);
+    sink.value(nameTag, 12345L);
+    sink.value(nameTag, -7);
+    sink.value(nameTag, true);
+    sink.value(nameTag, big);
+    sink.value(nameTag, new String(big));
+    sink.closeTag(entTag);
+    sink.flush();
+
+    final String bigs = new String(big);
+
+    assertEquals(List.of("open ent",
+                         "name=" + unicode,
+                         "name=12345",
+                         "name=-7",
+                         "name=true",
+                         "name=" + bigs,
+                         "name=" + bigs,
+                         "close ent"),
+                 replay(out.toByteArray()));
+  }
+
+  @Test
+  public void valuesAreBinaryAndReadBackAsWritten() {
+    final Object[] vals = {
+            Integer.MIN_VALUE, (short)-3, (byte)7,
+            Long.MAX_VALUE, Long.MIN_VALUE, 0L,
+            false, true,
+            -0.0d, Double.NaN, 1.5e300, 3.25f,
+            '\u20ac',
+            Timestamp.valueOf("2023-11-14 22:13:20.123456789"),
+            Timestamp.valueOf("1500-03-01 00:00:00"),
+            java.sql.Date.valueOf("1969-12-31"),
+            new Date(1_700_000_000_123L)
+    };
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    final List<String> expected = new ArrayList<>();
+    for (final Object val: vals) {
+      sink.value(nameTag, val);
+      expected.add("name=" + DumpChars.toString(val));
+    }
+    sink.flush();
+
+    assertEquals(expected, replay(out.toByteArray()));
+
+    /* The record type, tag id and value type then the value */
+    final ByteArrayOutputStream one = new ByteArrayOutputStream();
+    final BinaryDumpSink oneSink = new BinaryDumpSink(one);
+    oneSink.property(nameTag, "x");
+    final int start = one.size();
+
+    oneSink.value(nameTag, 1_000_000L);
+    assertEquals(3 + 3, one.size() - start);
+
+    oneSink.value(nameTag, true);
+    assertEquals(3 + 3 + 3, one.size() - start);
+  }
+
+  @Test
+  public void valueRecordNeedsVersion3() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    sink.value(nameTag, 1);
+    sink.flush();
+
+    final byte[] dump = out.toByteArray();
+    dump[BinaryDumpSink.magic.length] = 2;
+
+    assertThrows(BedeworkDatabaseException.class, () -> replay(dump));
+  }
+
+  @Test
+  public void tagsAreDefinedOnce() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    /* More than 127 tags so the ids need two byte varints */
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      sink.property(new QName("t" + i), "v");
+      expected.add("t" + i + "=v");
+    }
+
+    final int once = out.size();
+
+    for (int i = 0; i < 300; i++) {
+      sink.property(new QName("t" + i), "v");
+      expected.add("t" + i + "=v");
+    }
+    sink.flush();
+
+    /* Record type, 1 or 2 byte id, length and value */
+    assertTrue(out.size() - once <= 300 * 5);
+    assertEquals(expected, replay(out.toByteArray()));
+  }
+
+  @Test
+  public void rejectsBadInput() {
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> replay("<dump/>".getBytes()));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    sink.openTag(entTag);
+    sink.property(nameTag, "x");
+    sink.flush();
+
+    /* Never closed */
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> replay(out.toByteArray()));
+
+    /* Cut off in the middle of a value */
+    final byte[] cut = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+    assertThrows(BedeworkDatabaseException.class, () -> replay(cut));
+  }
+}
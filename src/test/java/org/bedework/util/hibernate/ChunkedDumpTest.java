@@ -0,0 +1,168 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedDumpTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static SessionFactory sf;
+
+  private static final int numItems = 10;
+
+  private static final List<Long> ids = new ArrayList<>();
+
+  private static final String entity = TestItem.class.getName();
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("chunkedDump");
+
+    for (int i = 0; i < numItems; i++) {
+      final TestItem item = new TestItem("item" + i);
+      HibTestSupport.save(sf, item);
+      ids.add(item.getId());
+    }
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static int items(final InputStream in) throws Exception {
+    try (in) {
+      final String xml = new String(in.readAllBytes(),
+                                    StandardCharsets.UTF_8);
+      int ct = 0;
+      int pos = xml.indexOf("<item>");
+
+      while (pos >= 0) {
+        ct++;
+        pos = xml.indexOf("<item>", pos + 1);
+      }
+
+      return ct;
+    }
+  }
+
+  private static Properties manifest(final File file) throws Exception {
+    final Properties mf = new Properties();
+
+    try (final Reader rdr = new FileReader(file.getPath() + ".manifest")) {
+      mf.load(rdr);
+    }
+
+    return mf;
+  }
+
+  private static ChunkedDump dumper(final File file) {
+    final ChunkedDump dump = new ChunkedDump(sf, file);
+    dump.setChunkEntities(3);
+
+    return dump;
+  }
+
+  @Test
+  public void chunksAreIndependentGzipMembers() throws Exception {
+    final File file = new File(tmp.getRoot(), "dump.gz");
+    final ChunkedDump dump = dumper(file);
+
+    dump.dump();
+
+    assertEquals(numItems, dump.getDumped());
+
+    final Properties mf = manifest(file);
+    assertEquals("true", mf.getProperty("complete"));
+    assertEquals("4", mf.getProperty("chunks"));
+    assertEquals(entity, mf.getProperty("chunk.1.entity"));
+
+    /* The whole file is one gzip stream of all the chunks */
+    assertEquals(numItems,
+                 items(new GZIPInputStream(new FileInputStream(file))));
+
+    assertEquals(3, items(ChunkedDump.openChunk(file, 1)));
+    assertEquals(1, items(ChunkedDump.openChunk(file, 3)));
+  }
+
+  @Test
+  public void resumesAfterLastRecordedChunk() throws Exception {
+    final File file = new File(tmp.getRoot(), "resume.gz");
+
+    dumper(file).dump();
+
+    /* Make it look as if we died while writing the third chunk */
+    final Properties mf = manifest(file);
+    final String offset = mf.getProperty("chunk.2.start");
+
+    mf.remove("complete");
+    mf.remove(entity + ".done");
+    mf.remove("chunk.2.start");
+    mf.remove("chunk.2.entity");
+    mf.remove("chunk.2.count");
+    mf.remove("chunk.3.start");
+    mf.remove("chunk.3.entity");
+    mf.remove("chunk.3.count");
+    mf.setProperty("chunks", "2");
+    mf.setProperty("offset", offset);
+    mf.setProperty(entity + ".lastId", String.valueOf(ids.get(5)));
+
+    try (final Writer wtr = new FileWriter(file.getPath() +
+                                                   ".manifest")) {
+      mf.store(wtr, null);
+    }
+
+    /* Partly written chunk */
+    try (final OutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[]{31, -117, 8, 0, 1, 2, 3});
+    }
+
+    final ChunkedDump dump = dumper(file);
+    dump.dump();
+
+    assertEquals(numItems - 6, dump.getDumped());
+    assertEquals("4", manifest(file).getProperty("chunks"));
+    assertEquals(numItems,
+                 items(new GZIPInputStream(new FileInputStream(file))));
+  }
+}
@@ -0,0 +1,133 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class CompareAndSetTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("compareAndSet");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static Map<String, Object> vals(final String name,
+                                          final int count) {
+    final Map<String, Object> vals = new LinkedHashMap<>();
+    vals.put("name", name);
+    vals.put("count", count);
+
+    return vals;
+  }
+
+  @Test
+  public void updatesWhenVersionMatches() {
+    final TestItem item = new TestItem("cas");
+    HibTestSupport.save(sf, item);
+    final int seq = item.getSeq();
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      /* Loaded copy is evicted */
+      sess.get(TestItem.class, item.getId());
+
+      assertTrue(sess.compareAndSet(TestItem.class, item.getId(), seq,
+                                    vals("cas2", 5)));
+
+      final TestItem t = (TestItem)sess.get(TestItem.class,
+                                            item.getId());
+      assertEquals("cas2", t.getName());
+      assertEquals(5, t.getCount());
+      assertEquals(seq + 1, (int)t.getSeq());
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+
+  @Test
+  public void failsWhenVersionChanged() {
+    final TestItem item = new TestItem("stale");
+    HibTestSupport.save(sf, item);
+    final int seq = item.getSeq();
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      assertTrue(sess.compareAndSet(TestItem.class, item.getId(), seq,
+                                    vals("first", 1)));
+      assertFalse(sess.compareAndSet(TestItem.class, item.getId(), seq,
+                                     vals("second", 2)));
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    final TestItem t = HibTestSupport.load(sf, item.getId());
+    assertEquals("first", t.getName());
+    assertEquals(1, t.getCount());
+  }
+
+  @Test
+  public void rejectsUnmappedAndVersionProperties() {
+    final TestItem item = new TestItem("bad");
+    HibTestSupport.save(sf, item);
+
+    for (final String name: new String[]{"nosuch", "seq",
+                                         "count = 1, name"}) {
+      final Map<String, Object> vals = new LinkedHashMap<>();
+      vals.put(name, 1);
+
+      final HibSession sess = HibTestSupport.openSession(sf);
+      try {
+        sess.beginTransaction();
+
+        assertThrows(BedeworkDatabaseException.class,
+                     () -> sess.compareAndSet(TestItem.class,
+                                              item.getId(),
+                                              item.getSeq(), vals));
+      } finally {
+        sess.close();
+      }
+    }
+  }
+}
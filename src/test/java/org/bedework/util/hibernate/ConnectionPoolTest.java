@@ -0,0 +1,282 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+  /* State of a fake connection */
+  private static class ConnState {
+    boolean autocommit = true;
+    boolean readOnly;
+    int isolation = Connection.TRANSACTION_READ_COMMITTED;
+    int rollbacks;
+    boolean closed;
+  }
+
+  /* Hands out fake connections which only record their state */
+  private static class FakeDriver implements Driver {
+    final List<ConnState> connections = new ArrayList<>();
+
+    @Override
+    public Connection connect(final String url,
+                              final Properties info) {
+      final ConnState st = new ConnState();
+      connections.add(st);
+
+      return (Connection)Proxy.newProxyInstance(
+              getClass().getClassLoader(),
+              new Class<?>[]{Connection.class},
+              (proxy, m, args) -> switch (m.getName()) {
+                case "getAutoCommit" -> st.autocommit;
+                case "setAutoCommit" -> {
+                  st.autocommit = (Boolean)args[0];
+                  yield null;
+                }
+                case "isReadOnly" -> st.readOnly;
+                case "setReadOnly" -> {
+                  st.readOnly = (Boolean)args[0];
+                  yield null;
+                }
+                case "getTransactionIsolation" -> st.isolation;
+                case "setTransactionIsolation" -> {
+                  st.isolation = (Integer)args[0];
+                  yield null;
+                }
+                case "rollback" -> {
+                  st.rollbacks++;
+                  yield null;
+                }
+                case "close" -> {
+                  st.closed = true;
+                  yield null;
+                }
+                case "isClosed" -> st.closed;
+                case "isValid" -> !st.closed;
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "FakeConnection";
+                default -> null;
+              });
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+      return true;
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url,
+                                                final Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+
+  private final FakeDriver driver = new FakeDriver();
+
+  private ConnectionPool pool(final int maxSize,
+                              final long maxAgeMillis,
+                              final boolean autocommit) {
+    return new ConnectionPool("test", driver, "jdbc:fake",
+                              new Properties(),
+                              maxSize, maxSize,
+                              10, 30000, maxAgeMillis,
+                              autocommit, null);
+  }
+
+  @Test
+  public void releaseRollsBackAndResetsSettings() throws Exception {
+    final ConnectionPool pool = pool(2, 0, false);
+
+    final Connection conn = pool.getConnection();
+    final ConnState st = driver.connections.get(0);
+    assertFalse(st.autocommit);
+
+    conn.setReadOnly(true);
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    pool.release(conn);
+
+    assertEquals(1, st.rollbacks);
+    assertFalse(st.readOnly);
+    assertFalse(st.autocommit);
+    assertEquals(Connection.TRANSACTION_READ_COMMITTED, st.isolation);
+    assertFalse(st.closed);
+
+    assertSame(conn, pool.getConnection());
+    assertEquals(1, pool.getCreated());
+  }
+
+  @Test
+  public void rollsBackBeforeRestoringAutocommit() throws Exception {
+    final ConnectionPool pool = pool(2, 0, true);
+
+    final Connection conn = pool.getConnection();
+    final ConnState st = driver.connections.get(0);
+
+    conn.setAutoCommit(false);
+    pool.release(conn);
+
+    assertEquals(1, st.rollbacks);
+    assertTrue(st.autocommit);
+
+    /* No transaction to roll back with autocommit on */
+    pool.release(pool.getConnection());
+    assertEquals(1, st.rollbacks);
+  }
+
+  @Test
+  public void retiresOldConnections() throws Exception {
+    final ConnectionPool pool = pool(2, 50, false);
+
+    final Connection conn = pool.getConnection();
+    pool.release(conn);
+    assertEquals(1, pool.getIdle());
+
+    Thread.sleep(60);
+
+    final Connection conn2 = pool.getConnection();
+    assertNotSame(conn, conn2);
+    assertTrue(driver.connections.get(0).closed);
+    assertEquals(1, pool.getExpired());
+
+    Thread.sleep(60);
+
+    /* Too old when returned */
+    pool.release(conn2);
+    assertEquals(0, pool.getIdle());
+    assertTrue(driver.connections.get(1).closed);
+    assertEquals(2, pool.getExpired());
+  }
+
+  @Test
+  public void timesOutWhenExhausted() throws Exception {
+    final ConnectionPool pool = pool(1, 0, false);
+
+    final Connection conn = pool.getConnection();
+
+    assertThrows(SQLTimeoutException.class, pool::getConnection);
+    assertEquals(1, pool.getTimeouts());
+
+    pool.release(conn);
+    assertEquals(0, pool.getActive());
+    assertSame(conn, pool.getConnection());
+  }
+
+  @Test
+  public void foreignConnectionIsClosed() throws Exception {
+    final ConnectionPool pool = pool(2, 0, false);
+    final ConnectionPool other = pool(2, 0, false);
+
+    final Connection conn = other.getConnection();
+    pool.getConnection();
+
+    pool.release(conn);
+    assertTrue(driver.connections.get(0).closed);
+    assertEquals(0, pool.getIdle());
+  }
+
+  @Test
+  public void releasingTwiceIsIgnored() throws Exception {
+    final ConnectionPool pool = pool(1, 0, false);
+
+    final Connection conn = pool.getConnection();
+    pool.release(conn);
+    pool.release(conn);
+
+    assertEquals(0, pool.getActive());
+    assertEquals(1, pool.getIdle());
+    assertFalse(driver.connections.get(0).closed);
+
+    /* Still only one permit */
+    assertSame(conn, pool.getConnection());
+    assertEquals(1, pool.getActive());
+    assertThrows(SQLTimeoutException.class, pool::getConnection);
+  }
+
+  @Test
+  public void idleNeverExceedsMaxIdle() throws Exception {
+    final ConnectionPool pool =
+            new ConnectionPool("test", driver, "jdbc:fake",
+                               new Properties(),
+                               8, 2,
+                               10, 30000, 0,
+                               false, null);
+
+    final List<Connection> conns = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      conns.add(pool.getConnection());
+    }
+
+    final List<Thread> threads = new ArrayList<>();
+    for (final Connection conn: conns) {
+      threads.add(new Thread(() -> pool.release(conn)));
+    }
+
+    for (final Thread t: threads) {
+      t.start();
+    }
+
+    for (final Thread t: threads) {
+      t.join();
+    }
+
+    assertEquals(0, pool.getActive());
+    assertEquals(2, pool.getIdle());
+    assertEquals(6, pool.getDestroyed());
+  }
+}
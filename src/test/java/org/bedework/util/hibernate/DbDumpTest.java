@@ -0,0 +1,112 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DbDumpTest {
+  private static SessionFactory sf;
+
+  private static final int numItems = 7;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("dbDump");
+
+    final TestItem parent = new TestItem("parent");
+    HibTestSupport.save(sf, parent);
+
+    for (int i = 1; i < numItems; i++) {
+      final TestItem item = new TestItem("item" + i);
+      item.setParent(parent);
+      HibTestSupport.save(sf, item);
+    }
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  @Test
+  public void dumpsEveryEntityInIdOrder() {
+    final DbDump dump = new DbDump(sf);
+    final RecordingSink sink = new RecordingSink();
+
+    /* Clear well inside the results */
+    dump.setClearInterval(2);
+    dump.setFetchSize(3);
+    dump.dump(sink);
+
+    assertEquals(numItems, dump.getDumped());
+    assertEquals("open dump", sink.calls.get(0));
+    assertEquals("close dump", sink.calls.get(sink.calls.size() - 1));
+
+    final List<String> names = new ArrayList<>();
+    for (final String call: sink.calls) {
+      if (call.startsWith("name=")) {
+        names.add(call);
+      }
+    }
+
+    assertEquals(numItems, names.size());
+    assertEquals("name=parent", names.get(0));
+    assertEquals("name=item" + (numItems - 1), names.get(numItems - 1));
+  }
+
+  @Test
+  public void dumpsToStream() {
+    final DbDump dump = new DbDump(sf);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    dump.setFormat(DumpFormat.xml);
+    dump.dump(out);
+
+    final String xml = out.toString(StandardCharsets.UTF_8);
+
+    assertTrue(xml, xml.contains("<dump>"));
+    assertTrue(xml, xml.contains("<name>item3</name>"));
+    assertTrue(xml, xml.trim().endsWith("</dump>"));
+  }
+
+  @Test
+  public void digestNeedsFullReferences() {
+    final DbDump dump = new DbDump(sf);
+
+    dump.setDedupe(true);
+    dump.setDigest(new DumpDigest());
+
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> dump.dump(new RecordingSink()));
+  }
+}
@@ -0,0 +1,137 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkStaleStateException;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DeleteByIdTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("deleteById");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  @Test
+  public void deletesWithoutLoading() {
+    final TestItem item = new TestItem("byId");
+    HibTestSupport.save(sf, item);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      /* A loaded copy must not survive the delete statement */
+      assertNotNull(sess.get(TestItem.class, item.getId()));
+
+      assertTrue(sess.deleteById(TestItem.class, item.getId(),
+                                 item.getSeq()));
+      assertNull(sess.get(TestItem.class, item.getId()));
+      assertFalse(sess.deleteById(TestItem.class, item.getId(), null));
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    assertNull(HibTestSupport.load(sf, item.getId()));
+  }
+
+  @Test
+  public void versionMismatchIsStale() {
+    final TestItem item = new TestItem("stale");
+    HibTestSupport.save(sf, item);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      assertThrows(BedeworkStaleStateException.class,
+                   () -> sess.deleteById(TestItem.class, item.getId(),
+                                         item.getSeq() + 1));
+    } finally {
+      sess.close();
+    }
+
+    assertNotNull(HibTestSupport.load(sf, item.getId()));
+  }
+
+  @Test
+  public void missingRowWithVersionIsNotStale() {
+    final TestItem item = new TestItem("missing");
+    HibTestSupport.save(sf, item);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      assertTrue(sess.deleteById(TestItem.class, item.getId(),
+                                 item.getSeq()));
+      assertFalse(sess.deleteById(TestItem.class, item.getId(),
+                                  item.getSeq()));
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+
+  @Test
+  public void deletesManyIds() {
+    final TestItem a = new TestItem("many-a");
+    final TestItem b = new TestItem("many-b");
+    final TestItem c = new TestItem("many-c");
+    HibTestSupport.save(sf, a, b, c);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+
+      assertEquals(2, sess.deleteByIds(TestItem.class,
+                                       Arrays.asList(a.getId(),
+                                                     b.getId())));
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    assertNull(HibTestSupport.load(sf, a.getId()));
+    assertNull(HibTestSupport.load(sf, b.getId()));
+    assertNotNull(HibTestSupport.load(sf, c.getId()));
+  }
+}
@@ -0,0 +1,222 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DeleteSubsTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("deleteSubs");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  /* Only getPropertyValues is used - the parent is property 0 */
+  private static EntityPersister persister() {
+    return (EntityPersister)Proxy.newProxyInstance(
+            DeleteSubsTest.class.getClassLoader(),
+            new Class<?>[]{EntityPersister.class},
+            (proxy, m, args) -> {
+              if (m.getName().equals("getPropertyValues")) {
+                return new Object[]{((TestItem)args[0]).getParent()};
+              }
+
+              throw new UnsupportedOperationException(m.getName());
+            });
+  }
+
+  private static TestItem item(final long id,
+                               final TestItem parent) {
+    final TestItem item = new TestItem("item" + id);
+    item.setId(id);
+    item.setParent(parent);
+
+    return item;
+  }
+
+  @Test
+  public void levelsPutReferrersFirst() {
+    final TestItem root = item(1, null);
+    final TestItem mid = item(2, root);
+    final TestItem leaf = item(3, mid);
+    final TestItem other = item(4, null);
+    final TestItem outside = item(5, null);
+    final TestItem refersOutside = item(6, outside);
+
+    final List<VersionedDbEntity<?, ?>> ents =
+            Arrays.asList(root, mid, leaf, other, refersOutside);
+
+    final List<List<VersionedDbEntity<?, ?>>> levels =
+            EntityDeletes.deleteLevels(persister(), new int[]{0}, ents);
+
+    assertEquals(3, levels.size());
+    assertEquals(Arrays.asList(leaf, other, refersOutside),
+                 levels.get(0));
+    assertEquals(List.of(mid), levels.get(1));
+    assertEquals(List.of(root), levels.get(2));
+  }
+
+  @Test
+  public void cycleEndsUpInOneLevel() {
+    final TestItem a = item(1, null);
+    final TestItem b = item(2, a);
+    final TestItem c = item(3, b);
+    a.setParent(b);
+
+    final List<List<VersionedDbEntity<?, ?>>> levels =
+            EntityDeletes.deleteLevels(persister(), new int[]{0},
+                                       Arrays.asList(a, b, c));
+
+    assertEquals(2, levels.size());
+    assertEquals(List.of(c), levels.get(0));
+    assertEquals(Arrays.asList(a, b), levels.get(1));
+  }
+
+  @Test
+  public void deletesSelfReferencingAndDuplicateSubs() {
+    final TestItem owner = new TestItem("owner");
+    final TestItem parent = new TestItem("parent");
+    final TestItem child = new TestItem("child");
+    child.setParent(parent);
+
+    final List<TestItem> many = new ArrayList<>();
+    TestItem prev = child;
+    for (int i = 0; i < EntityDeletes.maxVersionedInStatement + 5;
+         i++) {
+      final TestItem t = new TestItem("chain" + i);
+      t.setParent(prev);
+      many.add(t);
+      prev = t;
+    }
+
+    HibTestSupport.save(sf, owner, parent, child);
+    HibTestSupport.save(sf, many.toArray(new TestItem[0]));
+
+    /* Parent first and listed twice */
+    owner.addDeleted(parent);
+    owner.addDeleted(child);
+    owner.addDeleted(parent);
+    for (final TestItem t: many) {
+      owner.addDeleted(t);
+    }
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+      owner.setCount(1);
+      sess.update(owner);
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    assertNull(HibTestSupport.load(sf, parent.getId()));
+    assertNull(HibTestSupport.load(sf, child.getId()));
+    for (final TestItem t: many) {
+      assertNull(HibTestSupport.load(sf, t.getId()));
+    }
+    assertNotNull(HibTestSupport.load(sf, owner.getId()));
+  }
+
+  @Test
+  public void deletesQueuedUntilFlush() {
+    final TestItem a = new TestItem("queued-a");
+    final TestItem b = new TestItem("queued-b");
+    final TestItem subA = new TestItem("queued-subA");
+    final TestItem subB = new TestItem("queued-subB");
+    HibTestSupport.save(sf, a, b, subA, subB);
+
+    a.addDeleted(subA);
+    b.addDeleted(subB);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+      sess.update(a);
+      sess.update(b);
+
+      assertEquals(2, count(sess, subA, subB));
+
+      sess.flush();
+      assertEquals(0, count(sess, subA, subB));
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    assertNull(HibTestSupport.load(sf, subA.getId()));
+    assertNull(HibTestSupport.load(sf, subB.getId()));
+    assertNotNull(HibTestSupport.load(sf, a.getId()));
+  }
+
+  @Test
+  public void rollbackDropsQueuedDeletes() {
+    final TestItem owner = new TestItem("dropped");
+    final TestItem sub = new TestItem("dropped-sub");
+    HibTestSupport.save(sf, owner, sub);
+
+    owner.addDeleted(sub);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+      sess.update(owner);
+      sess.rollback();
+    } finally {
+      sess.close();
+    }
+
+    assertNotNull(HibTestSupport.load(sf, sub.getId()));
+  }
+
+  private static long count(final HibSession sess,
+                            final TestItem... items) {
+    final List<Long> ids = new ArrayList<>();
+    for (final TestItem item: items) {
+      ids.add(item.getId());
+    }
+
+    final Query<?> q = sess.getSession().createQuery(
+            "select count(*) from TestItem where id in (:ids)");
+    q.setParameterList("ids", ids);
+
+    return ((Number)q.uniqueResult()).longValue();
+  }
+}
@@ -0,0 +1,146 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.namespace.QName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaDumpTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static SessionFactory sf;
+
+  private static final List<TestItem> items = new ArrayList<>();
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("deltaDump");
+
+    for (int i = 0; i < 5; i++) {
+      final TestItem item = new TestItem("item" + i);
+      HibTestSupport.save(sf, item);
+      items.add(item);
+    }
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static long generation(final File dir) throws Exception {
+    final Properties mf = new Properties();
+
+    try (final Reader rdr = new FileReader(
+            new File(dir, DeltaDump.manifestName))) {
+      mf.load(rdr);
+    }
+
+    return Long.parseLong(mf.getProperty("generation"));
+  }
+
+  private static void change(final TestItem update,
+                             final TestItem delete,
+                             final TestItem add) {
+    final HibSession sess = HibTestSupport.openSession(sf);
+
+    try {
+      sess.beginTransaction();
+
+      final TestItem u = (TestItem)sess.get(TestItem.class,
+                                            update.getId());
+      u.setCount(u.getCount() + 1);
+      sess.update(u);
+
+      sess.delete(sess.get(TestItem.class, delete.getId()));
+      sess.save(add);
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+
+  /* Fails when the delta has been written, before the state switch */
+  private static class FailingSink extends RecordingSink {
+    @Override
+    public void closeCollection(final QName tag) {
+      throw new IllegalStateException("disk full");
+    }
+  }
+
+  @Test
+  public void mergesStateWithCurrentVersions() throws Exception {
+    final File dir = tmp.newFolder("state");
+
+    final DeltaDump first = new DeltaDump(sf, dir);
+    first.dump(new RecordingSink());
+
+    assertEquals(items.size(), first.getDumped());
+    assertEquals(0, first.getDeleted());
+    assertEquals(1, generation(dir));
+
+    /* Nothing changed */
+    final DeltaDump same = new DeltaDump(sf, dir);
+    same.dump(new RecordingSink());
+
+    assertEquals(0, same.getDumped());
+    assertEquals(2, generation(dir));
+    assertFalse("old generation kept", new File(dir, "1").exists());
+
+    final TestItem added = new TestItem("added");
+    change(items.get(1), items.get(3), added);
+
+    /* A failed run leaves the last state in force */
+    assertThrows(RuntimeException.class,
+                 () -> new DeltaDump(sf, dir).dump(new FailingSink()));
+    assertEquals(2, generation(dir));
+    assertFalse(new File(dir, "3").exists());
+
+    final RecordingSink sink = new RecordingSink();
+    final DeltaDump delta = new DeltaDump(sf, dir);
+    delta.dump(sink);
+
+    assertEquals(2, delta.getDumped());
+    assertEquals(1, delta.getDeleted());
+    assertTrue(sink.calls.contains("name=item1"));
+    assertTrue(sink.calls.contains("name=added"));
+    assertTrue(sink.calls.contains("id=" + items.get(3).getId()));
+    assertEquals(3, generation(dir));
+  }
+}
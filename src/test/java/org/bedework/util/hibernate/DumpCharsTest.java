@@ -0,0 +1,139 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.sql.Timestamp;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DumpCharsTest {
+  private static final QName cTag = new QName("c");
+  private static final QName qTag = new QName("q");
+  private static final QName bTag = new QName("b");
+
+  private static final Character[] awkward = {
+          '<', '&', '"', '\\', '\u00e9', '\u20ac'
+  };
+
+  private static String format(final Object val) {
+    final DumpChars chars = new DumpChars();
+
+    assertTrue(String.valueOf(val), chars.format(val));
+
+    return new String(chars.buf, 0, chars.len);
+  }
+
+  @Test
+  public void fastPathMatchesValueOf() {
+    final Object[] vals = {
+            0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            (short)-12, (byte)7,
+            Long.MAX_VALUE, Long.MIN_VALUE + 1, -42L,
+            true, false,
+            Timestamp.valueOf("2024-02-29 23:59:58.0"),
+            Timestamp.valueOf("2024-01-02 03:04:05.000120"),
+            Timestamp.valueOf("2024-01-02 03:04:05.123456789"),
+            java.sql.Date.valueOf("1999-12-31")
+    };
+
+    for (final Object val: vals) {
+      assertEquals(String.valueOf(val), format(val));
+    }
+  }
+
+  @Test
+  public void slowPathTypesRejected() {
+    final DumpChars chars = new DumpChars();
+
+    assertFalse(chars.format(Long.MIN_VALUE));
+    assertFalse(chars.format(java.sql.Date.valueOf("0999-01-01")));
+    assertFalse(chars.format(3.5));
+
+    for (final Character ch: awkward) {
+      assertFalse(String.valueOf(ch), chars.format(ch));
+    }
+  }
+
+  @Test
+  public void xmlEscapesCharacters() {
+    final StringWriter sw = new StringWriter();
+    final XmlDumpSink sink = new XmlDumpSink(sw);
+
+    for (final Character ch: awkward) {
+      sink.value(cTag, ch);
+    }
+    sink.flush();
+
+    assertEquals("<c>&lt;</c>\n" +
+                 "<c>&amp;</c>\n" +
+                 "<c>\"</c>\n" +
+                 "<c>\\</c>\n" +
+                 "<c>\u00e9</c>\n" +
+                 "<c>\u20ac</c>\n",
+                 sw.toString());
+  }
+
+  @Test
+  public void jsonEscapesCharacters() {
+    final StringWriter sw = new StringWriter();
+    final JsonDumpSink sink = new JsonDumpSink(sw);
+
+    sink.openTag(cTag);
+    sink.value(qTag, '"');
+    sink.value(bTag, '\\');
+    sink.closeTag(cTag);
+    sink.flush();
+
+    assertEquals("{\"c\":{\"q\":\"\\\"\",\"b\":\"\\\\\"}}\n",
+                 sw.toString());
+  }
+
+  @Test
+  public void binaryEncodesCharacters() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(out);
+
+    sink.openTag(cTag);
+    for (final Character ch: awkward) {
+      sink.value(cTag, ch);
+    }
+    sink.closeTag(cTag);
+    sink.flush();
+
+    final RecordingSink rec = new RecordingSink();
+    new BinaryDumpReader(new ByteArrayInputStream(out.toByteArray()))
+            .replay(rec);
+
+    assertEquals(List.of("open c",
+                         "c=<", "c=&", "c=\"", "c=\\",
+                         "c=\u00e9", "c=\u20ac",
+                         "close c"),
+                 rec.calls);
+  }
+}
@@ -0,0 +1,238 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DumpContextTest {
+  /** Referred to by the holders */
+  @Dump(elementName = "person", keyFields = {"account"})
+  public static class Person extends DumpEntity<Person> {
+    private final String account;
+
+    Person(final String account) {
+      this.account = account;
+    }
+
+    /**
+     * @return account
+     */
+    public String getAccount() {
+      return account;
+    }
+
+    /**
+     * @return not in the key so only in a full dump
+     */
+    public String getEmail() {
+      return account + "@example.org";
+    }
+  }
+
+  /** Refers to people */
+  @Dump(elementName = "holder")
+  public static class Holder extends DumpEntity<Holder> {
+    private final Person owner;
+    private final Person creator;
+
+    Holder(final Person owner,
+           final Person creator) {
+      this.owner = owner;
+      this.creator = creator;
+    }
+
+    /**
+     * @return owner
+     */
+    public Person getOwner() {
+      return owner;
+    }
+
+    /**
+     * @return creator
+     */
+    public Person getCreator() {
+      return creator;
+    }
+  }
+
+  /** Dumps its next node in line */
+  @Dump(elementName = "node")
+  public static class Node extends DumpEntity<Node> {
+    private final String name;
+    Node next;
+
+    Node(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return next
+     */
+    @Dump(compound = true)
+    public Node getNext() {
+      return next;
+    }
+  }
+
+  private static void dump(final DumpContext ctx,
+                           final DumpEntity<?> ent) {
+    ent.dump(ctx, DumpEntity.DumpType.def, false);
+  }
+
+  @Test
+  public void repeatedReferencesDumpedInFull() {
+    final RecordingSink sink = new RecordingSink();
+    final Person p = new Person("p");
+
+    dump(new DumpContext(sink), new Holder(p, p));
+
+    /* Properties are dumped in name order */
+    assertEquals(List.of("open holder",
+                         "open creator", "open person", "account=p",
+                         "close person", "close creator",
+                         "open owner", "open person", "account=p",
+                         "close person", "close owner",
+                         "close holder"),
+                 sink.calls);
+  }
+
+  @Test
+  public void repeatedReferencesDeduped() {
+    final RecordingSink sink = new RecordingSink();
+    final DumpContext ctx = new DumpContext(sink, true);
+    final Person p = new Person("p");
+    final Person q = new Person("q");
+
+    dump(ctx, new Holder(p, p));
+    dump(ctx, new Holder(q, p));
+
+    assertEquals(List.of("open holder",
+                         "open creator", "open person", "refId=0",
+                         "account=p", "close person", "close creator",
+                         "open owner", "open person", "backRef=0",
+                         "close person", "close owner",
+                         "close holder",
+                         "open holder",
+                         "open creator", "open person", "backRef=0",
+                         "close person", "close creator",
+                         "open owner", "open person", "refId=1",
+                         "account=q", "close person", "close owner",
+                         "close holder"),
+                 sink.calls);
+  }
+
+  @Test
+  public void fullDumpsNotDeduped() {
+    final RecordingSink sink = new RecordingSink();
+    final DumpContext ctx = new DumpContext(sink, true);
+    final Person p = new Person("p");
+
+    dump(ctx, p);
+    dump(ctx, p);
+
+    final List<String> once = List.of("open person",
+                                      "account=p",
+                                      "email=p@example.org",
+                                      "close person");
+    assertEquals(once, sink.calls.subList(0, 4));
+    assertEquals(once, sink.calls.subList(4, 8));
+  }
+
+  @Test
+  public void clearForgetsReferences() {
+    final RecordingSink sink = new RecordingSink();
+    final DumpContext ctx = new DumpContext(sink, true);
+    final Person p = new Person("p");
+
+    dump(ctx, new Holder(p, null));
+    ctx.clear();
+    sink.calls.clear();
+    dump(ctx, new Holder(p, null));
+
+    /* Dumped in full again but numbers are not reused */
+    assertEquals(List.of("open holder",
+                         "open owner", "open person", "refId=1",
+                         "account=p", "close person", "close owner",
+                         "close holder"),
+                 sink.calls);
+  }
+
+  @Test
+  public void cycleReported() {
+    final Node a = new Node("a");
+    final Node b = new Node("b");
+    a.next = b;
+    b.next = a;
+
+    final DumpContext ctx = new DumpContext(new RecordingSink());
+
+    final BedeworkDatabaseException e =
+            assertThrows(BedeworkDatabaseException.class,
+                         () -> dump(ctx, a));
+
+    final String nodeCl = Node.class.getName();
+    assertTrue(e.getMessage(),
+               e.getMessage().contains(nodeCl + " -> " +
+                                               nodeCl + " -> " +
+                                               nodeCl));
+
+    /* The failed dump left nothing entered */
+    b.next = null;
+    dump(ctx, a);
+  }
+
+  @Test
+  public void sharedNonCyclicValuesAllowed() {
+    final Node a = new Node("a");
+    final Node b = new Node("b");
+    final Node c = new Node("c");
+    a.next = c;
+    b.next = c;
+
+    final RecordingSink sink = new RecordingSink();
+    final DumpContext ctx = new DumpContext(sink);
+
+    dump(ctx, a);
+    dump(ctx, b);
+
+    assertEquals(List.of("open node", "name=a",
+                         "open next", "name=c", "close next",
+                         "close node",
+                         "open node", "name=b",
+                         "open next", "name=c", "close next",
+                         "close node"),
+                 sink.calls);
+  }
+}
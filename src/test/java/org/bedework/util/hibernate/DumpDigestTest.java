@@ -0,0 +1,120 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.hibernate.DumpEntityTest.Box;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DumpDigestTest {
+  /** Holds boxes as compound values */
+  @Dump(elementName = "shelf")
+  public static class Shelf extends DumpEntity<Shelf> {
+    private final List<Box> boxes;
+
+    Shelf(final Box... boxes) {
+      this.boxes = List.of(boxes);
+    }
+
+    /**
+     * @return boxes
+     */
+    @Dump(compound = true, collectionElementName = "member")
+    public List<Box> getBoxes() {
+      return boxes;
+    }
+  }
+
+  private static String hash(final DumpEntity<?> ent) {
+    final DumpDigest d = new DumpDigest();
+    final DumpContext ctx = new DumpContext(d.tee(null));
+
+    ctx.setDigest(d);
+    ent.dump(ctx, DumpEntity.DumpType.def, false);
+
+    return d.getClasses().get(ent.getClass().getName()).getHash();
+  }
+
+  @Test
+  public void collectionOrderIgnored() {
+    assertEquals(hash(new Box("b", List.of("x", "y", "z"))),
+                 hash(new Box("b", List.of("z", "x", "y"))));
+  }
+
+  @Test
+  public void collectionContentCounts() {
+    final String h = hash(new Box("b", List.of("x", "y")));
+
+    assertNotEquals(h, hash(new Box("b", List.of("x", "x"))));
+    assertNotEquals(h, hash(new Box("b", List.of("x"))));
+    assertNotEquals(h, hash(new Box("b", List.of("x", "y", "y"))));
+    assertNotEquals(h, hash(new Box("c", List.of("x", "y"))));
+  }
+
+  @Test
+  public void nestedCollectionOrderIgnored() {
+    final String h = hash(new Shelf(new Box("a", List.of("1", "2")),
+                                    new Box("b", List.of("3", "4"))));
+
+    assertEquals(h, hash(new Shelf(new Box("b", List.of("4", "3")),
+                                   new Box("a", List.of("2", "1")))));
+
+    /* Same values in other members */
+    assertNotEquals(h, hash(new Shelf(new Box("a", List.of("1", "3")),
+                                      new Box("b", List.of("2", "4")))));
+  }
+
+  @Test
+  public void entityOrderIgnored() {
+    final Box a = new Box("a", List.of("x"));
+    final Box b = new Box("b", List.of("y"));
+
+    final DumpDigest d1 = new DumpDigest();
+    final DumpContext ctx1 = new DumpContext(d1.tee(null));
+    ctx1.setDigest(d1);
+    a.dump(ctx1, DumpEntity.DumpType.def, false);
+    b.dump(ctx1, DumpEntity.DumpType.def, false);
+
+    /* In two parts the other way round */
+    final DumpDigest d2 = new DumpDigest();
+    final DumpContext ctx2 = new DumpContext(d2.tee(null));
+    ctx2.setDigest(d2);
+    b.dump(ctx2, DumpEntity.DumpType.def, false);
+
+    final DumpDigest d3 = new DumpDigest();
+    final DumpContext ctx3 = new DumpContext(d3.tee(null));
+    ctx3.setDigest(d3);
+    a.dump(ctx3, DumpEntity.DumpType.def, false);
+
+    d2.merge(d3);
+
+    final DumpDigest.ClassDigest cd1 =
+            d1.getClasses().get(Box.class.getName());
+    final DumpDigest.ClassDigest cd2 =
+            d2.getClasses().get(Box.class.getName());
+
+    assertEquals(2, cd2.getCount());
+    assertEquals(cd1.getHash(), cd2.getHash());
+  }
+}
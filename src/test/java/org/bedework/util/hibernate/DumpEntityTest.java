@@ -0,0 +1,112 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+
+public class DumpEntityTest {
+  /** Dumped by the tests */
+  @Dump(elementName = "box")
+  public static class Box extends DumpEntity<Box> {
+    private final String name;
+    private final List<String> tags;
+    boolean fail;
+
+    Box(final String name,
+        final List<String> tags) {
+      this.name = name;
+      this.tags = tags;
+    }
+
+    /**
+     * @return name
+     */
+    public String getName() {
+      if (fail) {
+        throw new IllegalStateException("failed");
+      }
+
+      return name;
+    }
+
+    /**
+     * @return tags
+     */
+    public List<String> getTags() {
+      return tags;
+    }
+  }
+
+  @Test
+  public void collectionMembersTaggedByClass() {
+    final RecordingSink sink = new RecordingSink();
+
+    new Box("b", List.of("x", "y")).dump(sink);
+
+    assertEquals(List.of("open box",
+                         "name=b",
+                         "open tags",
+                         "java.lang.String=x",
+                         "java.lang.String=y",
+                         "close tags",
+                         "close box"),
+                 sink.calls);
+  }
+
+  @Test
+  public void contextUsableAfterFailure() {
+    final RecordingSink sink = new RecordingSink();
+    final DumpContext ctx = new DumpContext(sink);
+    final Box box = new Box("b", List.of());
+
+    box.fail = true;
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> box.dump(ctx, DumpEntity.DumpType.def, false));
+
+    /* Would report a cycle if the failed dump were still entered */
+    box.fail = false;
+    sink.calls.clear();
+    box.dump(ctx, DumpEntity.DumpType.def, false);
+
+    assertEquals(List.of("open box", "name=b", "close box"),
+                 sink.calls);
+  }
+
+  @Test
+  public void loggerNotDumped() {
+    final RecordingSink sink = new RecordingSink();
+    final Box box = new Box("b", List.of());
+
+    /* Make sure the logger has been set up */
+    box.getLogger();
+    box.dump(new DumpContext(sink), DumpEntity.DumpType.def, false);
+
+    for (final String call: sink.calls) {
+      assertFalse(call, call.startsWith("logger="));
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class DumpPlanTest {
+  /* Package private so the getters are only reachable through the
+   * lookup we are given.
+   */
+  static class Base extends DumpEntity<Base> {
+    /**
+     * @return inherited value
+     */
+    public String getInherited() {
+      return "base";
+    }
+
+    /**
+     * @return skipped through the class NoDump list
+     */
+    public String getSkipped() {
+      return "skipped";
+    }
+  }
+
+  @Dump(elementName = "widget", keyFields = {"key"},
+        firstFields = {"zeta"})
+  @NoDump({"skipped"})
+  static class Widget extends Base {
+    /**
+     * @return key
+     */
+    public String getKey() {
+      return "k1";
+    }
+
+    /**
+     * @return a primitive
+     */
+    public int getCount() {
+      return 42;
+    }
+
+    /**
+     * @return dumped first
+     */
+    public String getZeta() {
+      return "z";
+    }
+
+    /**
+     * @return members
+     */
+    @Dump(elementName = "parts", collectionElementName = "part",
+          compound = true)
+    public List<String> getItems() {
+      return List.of("a");
+    }
+
+    /**
+     * @return never dumped
+     */
+    @NoDump
+    public String getHidden() {
+      return "hidden";
+    }
+
+    /**
+     * @return fails
+     */
+    @NoDump
+    public String getBroken() {
+      throw new IllegalStateException("broken");
+    }
+  }
+
+  /** No key fields so it can't be dumped as a reference */
+  public static class Keyless extends DumpEntity<Keyless> {
+  }
+
+  /** Not dumped */
+  @NoDump
+  public static class Suppressed extends DumpEntity<Suppressed> {
+  }
+
+  private static List<String> names(final DumpPlan plan) {
+    final List<String> res = new ArrayList<>();
+
+    for (final DumpPlan.Accessor acc: plan.accessors) {
+      res.add(acc.methodName);
+    }
+
+    return res;
+  }
+
+  private static DumpPlan.Accessor accessor(final DumpPlan plan,
+                                            final String methodName) {
+    for (final DumpPlan.Accessor acc: plan.accessors) {
+      if (acc.methodName.equals(methodName)) {
+        return acc;
+      }
+    }
+
+    return null;
+  }
+
+  @Test
+  public void firstFieldsThenByName() {
+    final DumpPlan plan = DumpPlan.get(Widget.class, DumpType.def);
+
+    assertEquals("widget", plan.elementTag.getLocalPart());
+    assertEquals(List.of("getZeta", "getCount", "getInherited",
+                         "getItems", "getKey"),
+                 names(plan));
+  }
+
+  @Test
+  public void accessorsReadValues() {
+    final DumpPlan plan = DumpPlan.get(Widget.class, DumpType.def);
+    final Widget w = new Widget();
+
+    assertEquals(42, accessor(plan, "getCount").get(w));
+    assertEquals("base", accessor(plan, "getInherited").get(w));
+    assertEquals(List.of("a"), accessor(plan, "getItems").get(w));
+  }
+
+  @Test
+  public void annotationsResolveTags() {
+    final DumpPlan.Accessor items =
+            accessor(DumpPlan.get(Widget.class, DumpType.def),
+                     "getItems");
+
+    assertNotNull(items);
+    assertTrue(items.compound);
+    assertEquals("parts", items.getTag(false).getLocalPart());
+    assertEquals("part", items.getTag(true).getLocalPart());
+
+    final DumpPlan.Accessor count =
+            accessor(DumpPlan.get(Widget.class, DumpType.def),
+                     "getCount");
+
+    assertNotNull(count);
+    assertFalse(count.compound);
+    assertEquals("count", count.getTag(false).getLocalPart());
+    assertNull(count.getTag(true));
+  }
+
+  @Test
+  public void referenceHasOnlyKeyFields() {
+    assertEquals(List.of("getKey"),
+                 names(DumpPlan.get(Widget.class, DumpType.reference)));
+    assertNotNull(DumpPlan.get(Keyless.class, DumpType.reference).error);
+  }
+
+  @Test
+  public void plansAreCached() {
+    assertSame(DumpPlan.get(Widget.class, DumpType.def),
+               DumpPlan.get(Widget.class, DumpType.def));
+    assertSame(DumpPlan.get(Widget.class, DumpType.def),
+               DumpPlan.get(Widget.class, DumpType.compound));
+    assertTrue(DumpPlan.get(Suppressed.class, DumpType.def).suppressed);
+  }
+
+  @Test
+  public void getterFailuresAreWrapped() {
+    final DumpPlan.Accessor acc = DumpPlan.accessor(
+            "getBroken", false, "broken", null,
+            o -> ((Widget)o).getBroken());
+
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> acc.get(new Widget()));
+  }
+}
@@ -0,0 +1,195 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.hibernate.DumpEntity.DumpType;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+import org.bedework.util.xml.XmlEmit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DumpProcessorTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String source = """
+          package gen.test;
+
+          import org.bedework.util.hibernate.Dump;
+          import org.bedework.util.hibernate.DumpEntity;
+          import org.bedework.util.hibernate.NoDump;
+
+          import java.util.List;
+
+          @Dump(elementName = "thing", keyFields = {"key"},
+                firstFields = {"zeta"})
+          @NoDump({"skipped"})
+          public class Thing extends DumpEntity<Thing> {
+            public String getKey() { return "k"; }
+            public int getCount() { return 7; }
+            public String getZeta() { return "z"; }
+            public String getSkipped() { return "s"; }
+            @NoDump public String getHidden() { return "h"; }
+
+            @Dump(elementName = "parts", collectionElementName = "part",
+                  compound = true)
+            public List<String> getItems() { return List.of("a"); }
+
+            @Dump(elementName = "q\\"uote")
+            public static class Inner extends DumpEntity<Inner> {
+              public String getName() { return "inner"; }
+            }
+
+            public abstract static class Abstract
+                    extends DumpEntity<Abstract> {
+            }
+          }
+          """;
+
+  /* Compile Thing with or without the processor */
+  private File compile(final boolean process) throws Exception {
+    final File src = tmp.newFolder();
+    final File out = tmp.newFolder();
+    final File java = new File(src, "Thing.java");
+
+    Files.writeString(java.toPath(), source);
+
+    final List<String> cp = new ArrayList<>();
+    for (final Class<?> cl: new Class<?>[]{DumpEntity.class, Logged.class,
+                                           BwLogger.class, XmlEmit.class}) {
+      cp.add(new File(cl.getProtectionDomain().getCodeSource()
+                        .getLocation().toURI()).getPath());
+    }
+
+    final List<String> opts = new ArrayList<>(List.of(
+            "-Xlint:all", "-classpath",
+            String.join(File.pathSeparator, cp),
+            "-d", out.getPath(), "-s", out.getPath()));
+
+    if (!process) {
+      opts.add("-proc:none");
+    }
+
+    final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    final DiagnosticCollector<JavaFileObject> diags =
+            new DiagnosticCollector<>();
+
+    try (final StandardJavaFileManager fm =
+                 javac.getStandardFileManager(diags, null, null)) {
+      final JavaCompiler.CompilationTask task = javac.getTask(
+              null, fm, diags, opts, null,
+              fm.getJavaFileObjects(java));
+
+      if (process) {
+        task.setProcessors(List.of(new DumpProcessor()));
+      }
+
+      assertTrue(diags.getDiagnostics().toString(), task.call());
+    }
+
+    for (final Diagnostic<? extends JavaFileObject> d:
+            diags.getDiagnostics()) {
+      assertFalse(d.toString(),
+                  d.getKind() == Diagnostic.Kind.WARNING ||
+                          d.getKind() == Diagnostic.Kind.MANDATORY_WARNING);
+    }
+
+    return out;
+  }
+
+  private static List<String> describe(final Class<?> cl,
+                                       final DumpType dt)
+          throws Exception {
+    final Object ent = cl.getDeclaredConstructor().newInstance();
+    final DumpPlan plan = DumpPlan.get(cl, dt);
+    final List<String> res = new ArrayList<>();
+
+    res.add(plan.elementTag.getLocalPart());
+
+    for (final DumpPlan.Accessor acc: plan.accessors) {
+      res.add(acc.methodName + " " + acc.compound + " " +
+                      acc.getTag(false) + " " + acc.getTag(true) + " " +
+                      acc.get(ent));
+    }
+
+    return res;
+  }
+
+  @Test
+  public void generatedPlansMatchReflection() throws Exception {
+    final File gen = compile(true);
+    final File refl = compile(false);
+
+    assertTrue(new File(gen, "gen/test/Thing_DumpPlan.class").exists());
+    assertTrue(new File(gen, "gen/test/Thing_Inner_DumpPlan.class")
+                       .exists());
+    assertFalse(new File(gen, "gen/test/Thing_Abstract_DumpPlan.class")
+                        .exists());
+    assertFalse(new File(refl, "gen/test/Thing_DumpPlan.class").exists());
+
+    try (final URLClassLoader gcl = new URLClassLoader(
+            new URL[]{gen.toURI().toURL()}, getClass().getClassLoader());
+         final URLClassLoader rcl = new URLClassLoader(
+                 new URL[]{refl.toURI().toURL()},
+                 getClass().getClassLoader())) {
+      for (final String name: new String[]{"gen.test.Thing",
+                                           "gen.test.Thing$Inner"}) {
+        final Class<?> gthing = gcl.loadClass(name);
+        final Class<?> rthing = rcl.loadClass(name);
+
+        /* The generated plan is the one used */
+        final DumpPlan.Provider provider = (DumpPlan.Provider)gcl
+                .loadClass(DumpPlan.generatedName(name))
+                .getDeclaredConstructor().newInstance();
+        assertSame(provider.plan(DumpType.def),
+                   DumpPlan.get(gthing, DumpType.def));
+
+        assertEquals(describe(rthing, DumpType.def),
+                     describe(gthing, DumpType.def));
+      }
+
+      assertEquals(describe(rcl.loadClass("gen.test.Thing"),
+                            DumpType.reference),
+                   describe(gcl.loadClass("gen.test.Thing"),
+                            DumpType.reference));
+    }
+  }
+}
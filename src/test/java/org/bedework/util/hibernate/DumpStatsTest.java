@@ -0,0 +1,113 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class DumpStatsTest {
+  private static Map<String, DumpStats.ClassStats> byName(
+          final DumpStats stats) {
+    final Map<String, DumpStats.ClassStats> res = new HashMap<>();
+
+    for (final DumpStats.ClassStats cs: stats.getClassStatsList()) {
+      res.put(cs.getName(), cs);
+    }
+
+    return res;
+  }
+
+  private static DumpContext context(
+          final DumpStats stats,
+          final DumpStats.CountingOutputStream counted) {
+    final DumpContext ctx = new DumpContext(new BinaryDumpSink(counted));
+
+    ctx.setStats(stats);
+    ctx.setCounted(counted);
+
+    return ctx;
+  }
+
+  @Test
+  public void bytesCountedPerContext() {
+    final DumpStats stats = new DumpStats("test");
+    stats.setProgressIntervalSeconds(0);
+    stats.start();
+
+    /* As two threads of a parallel dump would */
+    final DumpStats.CountingOutputStream c1 =
+            stats.count(new ByteArrayOutputStream());
+    final DumpStats.CountingOutputStream c2 =
+            stats.count(new ByteArrayOutputStream());
+    final DumpContext ctx1 = context(stats, c1);
+    final DumpContext ctx2 = context(stats, c2);
+
+    /* The binary header is not part of any entity */
+    final long header = c1.getCount();
+
+    final DumpEntityTest.Box box =
+            new DumpEntityTest.Box("box", List.of("a", "b"));
+    final DumpContextTest.Person person =
+            new DumpContextTest.Person("someone");
+
+    box.dump(ctx1, DumpEntity.DumpType.def, false);
+    person.dump(ctx2, DumpEntity.DumpType.def, false);
+    box.dump(ctx1, DumpEntity.DumpType.def, false);
+    person.dump(ctx2, DumpEntity.DumpType.def, false);
+    stats.finish();
+
+    final Map<String, DumpStats.ClassStats> css = byName(stats);
+    final DumpStats.ClassStats boxes =
+            css.get(DumpEntityTest.Box.class.getName());
+    final DumpStats.ClassStats people =
+            css.get(DumpContextTest.Person.class.getName());
+
+    assertEquals(2, boxes.getCount());
+    assertEquals(c1.getCount() - header, boxes.getBytes());
+    assertEquals(2, people.getCount());
+    assertEquals(c2.getCount() - header, people.getBytes());
+    assertEquals(c1.getCount() + c2.getCount(), stats.getBytes());
+    assertEquals(4, stats.getEntities());
+  }
+
+  @Test
+  public void timeSpreadOverBatch() {
+    final DumpStats stats = new DumpStats("test");
+    stats.setProgressIntervalSeconds(0);
+    stats.start();
+
+    stats.record(String.class, 10, 0);
+    stats.record(String.class, 10, 0);
+    stats.record(Integer.class, 10, 0);
+
+    stats.spread(List.of("a", "b", 1), 300);
+
+    final Map<String, DumpStats.ClassStats> css = byName(stats);
+
+    assertEquals(220, css.get(String.class.getName()).getNanos());
+    assertEquals(110, css.get(Integer.class.getName()).getNanos());
+    assertEquals(2, css.get(String.class.getName()).getCount());
+  }
+}
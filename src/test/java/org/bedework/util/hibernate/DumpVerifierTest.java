@@ -0,0 +1,97 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DumpVerifierTest {
+  private static SessionFactory sf;
+
+  private static TestItem changed;
+
+  @Rule
+  public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("dumpVerifier");
+
+    final TestItem parent = new TestItem("parent");
+    HibTestSupport.save(sf, parent);
+
+    for (int i = 1; i < 5; i++) {
+      final TestItem item = new TestItem("item" + i);
+      item.setParent(parent);
+      HibTestSupport.save(sf, item);
+      changed = item;
+    }
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  @Test
+  public void verifiesAgainstDumpDigest() throws Throwable {
+    final File manifest = tmp.newFile("digest.properties");
+    final DumpDigest digest = new DumpDigest();
+    final DbDump dump = new DbDump(sf);
+
+    dump.setDigest(digest);
+    dump.dump(new RecordingSink());
+    digest.save(manifest);
+
+    final DumpVerifier verifier = new DumpVerifier(sf, 2);
+
+    assertEquals(List.of(), verifier.verify(manifest));
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+
+    try {
+      sess.beginTransaction();
+
+      final TestItem item =
+              (TestItem)sess.get(TestItem.class, changed.getId());
+      item.setName("changed");
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    final List<String> diffs = verifier.verify(manifest);
+
+    assertEquals(diffs.toString(), 1, diffs.size());
+    assertTrue(diffs.get(0),
+               diffs.get(0).startsWith(TestItem.class.getName() +
+                                               ": hashes differ"));
+  }
+}
@@ -0,0 +1,302 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class EntityBuilderTest {
+  /** Referred to by events */
+  @Dump(elementName = "person", keyFields = {"account"})
+  public static class Person extends DumpEntity<Person> {
+    private String account;
+    private String email;
+
+    /**
+     * @param val account
+     */
+    public void setAccount(final String val) {
+      account = val;
+    }
+
+    /**
+     * @return account
+     */
+    public String getAccount() {
+      return account;
+    }
+
+    /**
+     * @param val email
+     */
+    public void setEmail(final String val) {
+      email = val;
+    }
+
+    /**
+     * @return email
+     */
+    public String getEmail() {
+      return email;
+    }
+  }
+
+  /** A compound value */
+  public static class Address extends DumpEntity<Address> {
+    private String street;
+    private String city;
+
+    /**
+     * @param val street
+     */
+    public void setStreet(final String val) {
+      street = val;
+    }
+
+    /**
+     * @return street
+     */
+    public String getStreet() {
+      return street;
+    }
+
+    /**
+     * @param val city
+     */
+    public void setCity(final String val) {
+      city = val;
+    }
+
+    /**
+     * @return city
+     */
+    public String getCity() {
+      return city;
+    }
+  }
+
+  /** Dumped at the top level */
+  @Dump(elementName = "event")
+  public static class Event extends DumpEntity<Event> {
+    private String name;
+    private Date created;
+    private Integer count;
+    private Address where;
+    private Person owner;
+    private List<String> tags;
+
+    /**
+     * @param val name
+     */
+    public void setName(final String val) {
+      name = val;
+    }
+
+    /**
+     * @return name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @param val created
+     */
+    public void setCreated(final Date val) {
+      created = val;
+    }
+
+    /**
+     * @return created
+     */
+    public Date getCreated() {
+      return created;
+    }
+
+    /**
+     * @param val count
+     */
+    public void setCount(final Integer val) {
+      count = val;
+    }
+
+    /**
+     * @return count
+     */
+    public Integer getCount() {
+      return count;
+    }
+
+    /**
+     * @param val where
+     */
+    public void setWhere(final Address val) {
+      where = val;
+    }
+
+    /**
+     * @return where
+     */
+    @Dump(compound = true)
+    public Address getWhere() {
+      return where;
+    }
+
+    /**
+     * @param val owner
+     */
+    public void setOwner(final Person val) {
+      owner = val;
+    }
+
+    /**
+     * @return owner
+     */
+    public Person getOwner() {
+      return owner;
+    }
+
+    /**
+     * @param val tags
+     */
+    public void setTags(final List<String> val) {
+      tags = val;
+    }
+
+    /**
+     * @return tags
+     */
+    public List<String> getTags() {
+      return tags;
+    }
+  }
+
+  /* Dump as xml, read it back and rebuild */
+  private static List<Object> roundTrip(final Event... events) {
+    final StringWriter sw = new StringWriter();
+    final XmlDumpSink sink = new XmlDumpSink(sw);
+    final DumpContext ctx = new DumpContext(sink);
+
+    sink.openCollection(DbDump.dumpTag);
+    for (final Event ev: events) {
+      ev.dump(ctx, DumpEntity.DumpType.def, false);
+    }
+    sink.closeCollection(DbDump.dumpTag);
+    sink.flush();
+
+    final List<Object> res = new ArrayList<>();
+    final EntityBuilder bldr =
+            new EntityBuilder(List.of(Event.class, Person.class),
+                              res::add);
+
+    new XmlDumpReader(new ByteArrayInputStream(
+            sw.toString().getBytes(StandardCharsets.UTF_8)))
+            .replay(bldr);
+
+    assertEquals(events.length, bldr.getBuilt());
+    return res;
+  }
+
+  @Test
+  public void roundTripsValues() {
+    final Person p = new Person();
+    p.setAccount("p<1>");
+    p.setEmail("p@example.org");
+
+    final Address a = new Address();
+    a.setCity("Caf\u00e9 & co");
+
+    final Event ev = new Event();
+    ev.setName("e");
+    ev.setCreated(new Date(1_700_000_000_000L));
+    ev.setCount(-3);
+    ev.setWhere(a);
+    ev.setOwner(p);
+    ev.setTags(List.of("x", "y"));
+
+    final Event res = (Event)roundTrip(ev).get(0);
+
+    assertEquals("e", res.getName());
+    assertEquals(ev.getCreated(), res.getCreated());
+    assertEquals(Integer.valueOf(-3), res.getCount());
+    assertNull(res.getWhere().getStreet());
+    assertEquals("Caf\u00e9 & co", res.getWhere().getCity());
+    assertEquals(List.of("x", "y"), res.getTags());
+
+    /* References only have their key */
+    assertEquals("p<1>", res.getOwner().getAccount());
+    assertNull(res.getOwner().getEmail());
+  }
+
+  @Test
+  public void emptyValuesKept() {
+    final Event ev = new Event();
+    ev.setWhere(new Address());
+    ev.setOwner(new Person());
+
+    final List<Object> res = roundTrip(ev, new Event());
+
+    assertEquals(2, res.size());
+
+    final Event ev0 = (Event)res.get(0);
+    assertNotNull(ev0.getWhere());
+    assertNull(ev0.getWhere().getCity());
+    assertNotNull(ev0.getOwner());
+    assertNull(ev0.getOwner().getAccount());
+
+    final Event ev1 = (Event)res.get(1);
+    assertNull(ev1.getWhere());
+    assertNull(ev1.getOwner());
+  }
+
+  @Test
+  public void emptyStringsStayStrings() {
+    final Event ev = new Event();
+    ev.setName("");
+
+    assertEquals("", ((Event)roundTrip(ev).get(0)).getName());
+  }
+
+  @Test
+  public void datesDumpedAsToStringAndParsedEitherWay() {
+    final Date d = new Date(1_700_000_000_000L);
+    final String s = DumpChars.toString(d);
+
+    assertEquals(String.valueOf(d), s);
+    assertEquals(d, EntityBuilder.convert(s, Date.class));
+
+    /* An ISO instant keeps the milliseconds */
+    final Date ms = new Date(1_700_000_000_123L);
+    assertEquals(ms, EntityBuilder.convert("2023-11-14T22:13:20.123Z",
+                                          Date.class));
+
+    final java.sql.Timestamp ts = new java.sql.Timestamp(ms.getTime());
+    assertEquals(ts.toString(), DumpChars.toString(ts));
+  }
+}
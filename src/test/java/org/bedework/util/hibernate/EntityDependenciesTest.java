@@ -0,0 +1,126 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.ManyToOneType;
+import org.hibernate.type.Type;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntityDependenciesTest {
+  private final Map<String, EntityPersister> persisters = new HashMap<>();
+
+  private final SessionFactoryImplementor sf =
+          (SessionFactoryImplementor)Proxy.newProxyInstance(
+                  getClass().getClassLoader(),
+                  new Class<?>[]{SessionFactoryImplementor.class},
+                  (proxy, method, args) -> {
+                    if (method.getName().equals("getMetamodel")) {
+                      return metamodel();
+                    }
+                    return null;
+                  });
+
+  private MetamodelImplementor metamodel() {
+    return (MetamodelImplementor)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[]{MetamodelImplementor.class},
+            (proxy, method, args) -> {
+              if (method.getName().equals("entityPersister")) {
+                return persisters.get((String)args[0]);
+              }
+              return null;
+            });
+  }
+
+  /* An entity with a many-to-one to each of refs */
+  private void entity(final String name,
+                      final String... refs) {
+    final Type[] types = new Type[refs.length];
+
+    for (int i = 0; i < refs.length; i++) {
+      types[i] = new ManyToOneType(null, refs[i]);
+    }
+
+    persisters.put(name, (EntityPersister)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[]{EntityPersister.class},
+            (proxy, method, args) -> switch (method.getName()) {
+              case "getEntityName" -> name;
+              case "getPropertyTypes" -> types;
+              case "isSubclassEntityName" -> name.equals(args[0]);
+              default -> null;
+            }));
+  }
+
+  @Test
+  public void referencedFirst() {
+    entity("A", "B");
+    entity("B", "C");
+    entity("C");
+
+    final Set<String> cyclic = new HashSet<>();
+
+    assertEquals(List.of("C", "B", "A"),
+                 EntityDependencies.insertOrder(
+                         sf, Arrays.asList("A", "B", "C"), cyclic));
+    assertTrue(cyclic.isEmpty());
+  }
+
+  @Test
+  public void cyclesAreReported() {
+    entity("A", "B");
+    entity("B", "C");
+    entity("C", "B");
+    entity("D", "D");
+
+    final Set<String> cyclic = new HashSet<>();
+    final List<String> order = EntityDependencies.insertOrder(
+            sf, Arrays.asList("A", "B", "C", "D"), cyclic);
+
+    assertEquals("D", order.get(0));
+    assertEquals(Set.of("A", "B", "C"), cyclic);
+  }
+
+  @Test
+  public void selfReferencesAreFound() {
+    entity("D", "A", "D");
+    entity("A");
+
+    assertEquals(1, EntityDependencies.selfReferences(
+            sf, persisters.get("D")).length);
+    assertEquals(0, EntityDependencies.selfReferences(
+            sf, persisters.get("A")).length);
+    assertEquals(List.of("A", "D"), EntityDependencies.insertOrder(
+            sf, Arrays.asList("D", "A"), null));
+  }
+}
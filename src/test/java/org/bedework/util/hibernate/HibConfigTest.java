@@ -0,0 +1,117 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HibConfigTest {
+  private final List<String> props = new ArrayList<>();
+
+  private final HibConfig config =
+          new HibConfig(() -> props, getClass().getClassLoader());
+
+  @Test
+  public void snapshotIsReusedUntilPropertiesChange() {
+    props.add("hibernate.show_sql=true");
+
+    final HibConfig.Snapshot s = config.getSnapshot();
+    assertSame(s, config.getSnapshot());
+    assertEquals("true",
+                 s.getProperties().getProperty("hibernate.show_sql"));
+
+    /* Changed in place - as a config setter would */
+    props.set(0, "hibernate.show_sql=false");
+
+    final HibConfig.Snapshot s2 = config.getSnapshot();
+    assertNotSame(s, s2);
+    assertEquals("false",
+                 s2.getProperties().getProperty("hibernate.show_sql"));
+
+    /* The old snapshot is unchanged */
+    assertEquals("true",
+                 s.getProperties().getProperty("hibernate.show_sql"));
+  }
+
+  @Test
+  public void refreshRebuilds() {
+    final HibConfig.Snapshot s = config.getSnapshot();
+
+    config.refresh();
+    assertNotSame(s, config.getSnapshot());
+  }
+
+  @Test
+  public void propertiesAreCopied() {
+    props.add("a=b");
+
+    final Properties p = config.getSnapshot().getProperties();
+    p.setProperty("a", "c");
+
+    assertEquals("b", config.getSnapshot().getProperties().getProperty("a"));
+  }
+
+  @Test
+  public void concurrentCallersShareOneSnapshot() throws Exception {
+    props.add("a=b");
+
+    final ExecutorService exec = Executors.newFixedThreadPool(8);
+    try {
+      final List<Callable<HibConfig.Snapshot>> calls = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        calls.add(config::getSnapshot);
+      }
+
+      HibConfig.Snapshot first = null;
+      for (final Future<HibConfig.Snapshot> f: exec.invokeAll(calls)) {
+        if (first == null) {
+          first = f.get();
+        }
+        assertSame(first, f.get());
+      }
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void poolOptionSetsProvider() {
+    final List<String> ps = new ArrayList<>();
+    ps.add(PooledConnectionProvider.poolEnabled + "=true");
+
+    assertEquals(PooledConnectionProvider.class.getName(),
+                 HibConfig.loadProperties(ps)
+                          .getProperty(AvailableSettings.CONNECTION_PROVIDER));
+    assertNull(HibConfig.loadProperties(null)
+                        .getProperty(AvailableSettings.CONNECTION_PROVIDER));
+  }
+}
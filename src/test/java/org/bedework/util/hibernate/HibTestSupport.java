@@ -0,0 +1,104 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.hibernate.h2.H2Dialect;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+
+/** Session factories on an in memory H2 database for the tests.
+ */
+final class HibTestSupport {
+  private HibTestSupport() {
+  }
+
+  /** The schema is created when the factory is built and dropped
+   * when it is closed.
+   *
+   * @param dbName distinguishes the database of each test class
+   * @return a new session factory
+   */
+  static SessionFactory sessionFactory(final String dbName) {
+    final Configuration cfg = new Configuration();
+
+    cfg.setProperty(AvailableSettings.DIALECT, H2Dialect.class.getName());
+    cfg.setProperty(AvailableSettings.DRIVER, "org.h2.Driver");
+    cfg.setProperty(AvailableSettings.URL,
+                    "jdbc:h2:mem:" + dbName + ";DB_CLOSE_DELAY=-1");
+    cfg.setProperty(AvailableSettings.USER, "sa");
+    cfg.setProperty(AvailableSettings.PASS, "");
+    cfg.setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop");
+
+    cfg.addResource("org/bedework/util/hibernate/TestItem.hbm.xml");
+
+    return cfg.buildSessionFactory();
+  }
+
+  /**
+   * @param sf the factory
+   * @return an open session
+   */
+  static HibSession openSession(final SessionFactory sf) {
+    final HibSession sess = new HibSessionImpl();
+
+    sess.init(sf);
+
+    return sess;
+  }
+
+  /** Save the items in their own transaction.
+   *
+   * @param sf the factory
+   * @param items to save
+   */
+  static void save(final SessionFactory sf,
+                   final TestItem... items) {
+    final HibSession sess = openSession(sf);
+
+    try {
+      sess.beginTransaction();
+
+      for (final TestItem item: items) {
+        sess.save(item);
+      }
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+
+  /**
+   * @param sf the factory
+   * @param id of the item
+   * @return the item loaded in a new session or null
+   */
+  static TestItem load(final SessionFactory sf,
+                       final long id) {
+    final HibSession sess = openSession(sf);
+
+    try {
+      return (TestItem)sess.get(TestItem.class, id);
+    } finally {
+      sess.close();
+    }
+  }
+}
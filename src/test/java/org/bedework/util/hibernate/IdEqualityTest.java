@@ -0,0 +1,133 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class IdEqualityTest {
+  /** Equal by id */
+  @IdEquality
+  public static class Thing extends UnversionedDbentity<Long, Thing> {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /** Inherits the annotation */
+  public static class SubThing extends Thing {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /** Must implement its own */
+  public static class Plain extends UnversionedDbentity<Long, Plain> {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static Thing thing(final long id) {
+    final Thing t = new Thing();
+    t.setId(id);
+
+    return t;
+  }
+
+  @Test
+  public void unsavedOnlyEqualToItself() {
+    final Thing a = new Thing();
+    final Thing b = new Thing();
+
+    assertEquals(a, a);
+    assertNotEquals(a, b);
+    assertNotEquals(a, thing(1));
+    assertNotEquals(thing(1), a);
+    assertEquals(a.hashCode(), b.hashCode());
+  }
+
+  @Test
+  public void equalIdsEqual() {
+    final Thing a = thing(42);
+    final Thing b = thing(42);
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertNotEquals(a, thing(43));
+  }
+
+  @Test
+  public void foundAfterSave() {
+    final Set<Thing> things = new HashSet<>();
+    final Thing a = new Thing();
+    final Thing b = new Thing();
+
+    things.add(a);
+    things.add(b);
+    assertEquals(2, things.size());
+
+    /* As a cascade save of a new child collection would */
+    a.setId(7L);
+    b.setId(8L);
+
+    assertTrue(things.contains(a));
+    assertTrue(things.contains(thing(7)));
+    assertTrue(things.remove(b));
+    assertEquals(1, things.size());
+  }
+
+  @Test
+  public void foundByLoadedCopy() {
+    final Set<Thing> things = new HashSet<>();
+
+    for (long i = 0; i < 100; i++) {
+      things.add(thing(i));
+    }
+
+    assertEquals(100, things.size());
+    assertTrue(things.contains(thing(50)));
+    things.add(thing(50));
+    assertEquals(100, things.size());
+  }
+
+  @Test
+  public void classesMustMatch() {
+    final SubThing s = new SubThing();
+    s.setId(3L);
+
+    assertNotEquals(thing(3), s);
+    assertNotEquals(s, thing(3));
+
+    final SubThing s1 = new SubThing();
+    s1.setId(3L);
+
+    assertEquals(s, s1);
+    assertEquals(s.hashCode(), s1.hashCode());
+  }
+
+  @Test
+  public void notAnnotatedMustImplement() {
+    final Plain p = new Plain();
+    p.setId(1L);
+
+    assertThrows(RuntimeException.class, p::hashCode);
+  }
+}
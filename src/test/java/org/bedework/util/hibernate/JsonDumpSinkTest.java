@@ -0,0 +1,133 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+
+import javax.xml.namespace.QName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class JsonDumpSinkTest {
+  private static final QName dumpTag = DbDump.dumpTag;
+  private static final QName entTag = new QName("ent");
+  private static final QName tagsTag = new QName("tags");
+  private static final QName tagTag = new QName("tag");
+  private static final QName nameTag = new QName("name");
+  private static final QName countTag = new QName("count");
+
+  /* Two entities, the second with a collection */
+  private static void write(final DumpSink sink) {
+    sink.openCollection(dumpTag);
+
+    sink.openTag(entTag);
+    sink.property(nameTag, "a\"b\\c\n\u0001");
+    sink.value(countTag, 42);
+    sink.closeTag(entTag);
+
+    sink.openTag(entTag);
+    sink.openCollection(tagsTag);
+    sink.property(tagTag, "x");
+    sink.openTag(entTag);
+    sink.value(nameTag, new char[]{'y', '"'});
+    sink.closeTag(entTag);
+    sink.closeCollection(tagsTag);
+    sink.closeTag(entTag);
+
+    sink.closeCollection(dumpTag);
+    sink.flush();
+  }
+
+  private static final String expected =
+          "{\"dump\":[\n" +
+          "{\"ent\":{\"name\":\"a\\\"b\\\\c\\n\\u0001\",\"count\":\"42\"}},\n" +
+          "{\"ent\":{\"tags\":[{\"tag\":\"x\"},{\"ent\":{\"name\":\"y\\\"\"}}]}}\n" +
+          "]}\n";
+
+  @Test
+  public void writesArraysAndEscapes() {
+    final StringWriter sw = new StringWriter();
+
+    write(new JsonDumpSink(sw));
+
+    assertEquals(expected, sw.toString());
+  }
+
+  @Test
+  public void binaryReplaysIntoJson() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(new BinaryDumpSink(out));
+
+    final StringWriter sw = new StringWriter();
+    new BinaryDumpReader(new ByteArrayInputStream(out.toByteArray()))
+            .replay(new JsonDumpSink(sw));
+
+    assertEquals(expected, sw.toString());
+  }
+
+  @Test
+  public void binaryVersionIsChecked() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(new BinaryDumpSink(out));
+    final byte[] dump = out.toByteArray();
+    final int vpos = BinaryDumpSink.magic.length;
+
+    /* Newer than we know */
+    dump[vpos] = (byte)(BinaryDumpSink.version + 1);
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> new BinaryDumpReader(new ByteArrayInputStream(dump))
+                         .replay(new RecordingSink()));
+
+    /* Version 1 had no collections */
+    dump[vpos] = 1;
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> new BinaryDumpReader(new ByteArrayInputStream(dump))
+                         .replay(new RecordingSink()));
+
+    /* but is otherwise still readable */
+    final ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+    final BinaryDumpSink sink = new BinaryDumpSink(v1);
+    sink.openTag(entTag);
+    sink.property(nameTag, "n");
+    sink.closeTag(entTag);
+    sink.flush();
+
+    final byte[] v1dump = v1.toByteArray();
+    v1dump[vpos] = 1;
+
+    final RecordingSink rec = new RecordingSink();
+    new BinaryDumpReader(new ByteArrayInputStream(v1dump)).replay(rec);
+    assertEquals(3, rec.calls.size());
+  }
+
+  @Test
+  public void unbalancedCloseRejected() {
+    final JsonDumpSink sink = new JsonDumpSink(new StringWriter());
+
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> sink.closeTag(entTag));
+  }
+}
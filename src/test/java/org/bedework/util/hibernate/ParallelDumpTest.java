@@ -0,0 +1,116 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDumpTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static SessionFactory sf;
+
+  private static final int numItems = 10;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("parallelDump");
+
+    for (int i = 0; i < numItems; i++) {
+      HibTestSupport.save(sf, new TestItem("item" + i));
+    }
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static int occurrences(final String s,
+                                 final String sub) {
+    int ct = 0;
+    int pos = s.indexOf(sub);
+
+    while (pos >= 0) {
+      ct++;
+      pos = s.indexOf(sub, pos + 1);
+    }
+
+    return ct;
+  }
+
+  @Test
+  public void partsCoverEveryEntityOnce() throws Exception {
+    final File dir = new File(tmp.getRoot(), "parts");
+    final ParallelDump dump = new ParallelDump(sf, 3, dir);
+
+    dump.setRowsPerPart(3);
+    dump.dump();
+
+    assertEquals(numItems, dump.getDumped());
+
+    final Properties index = new Properties();
+    try (final Reader rdr = new FileReader(
+            new File(dir, ParallelDump.indexName))) {
+      index.load(rdr);
+    }
+
+    final int parts = Integer.parseInt(index.getProperty("parts"));
+    assertTrue(String.valueOf(parts), parts >= 4);
+    assertEquals("xml", index.getProperty("format"));
+
+    int items = 0;
+    long counted = 0;
+    long lastHi = Long.MIN_VALUE;
+
+    for (int i = 0; i < parts; i++) {
+      final String pfx = "part." + i + ".";
+      final String xml = Files.readString(
+              new File(dir, index.getProperty(pfx + "file")).toPath(),
+              StandardCharsets.UTF_8);
+
+      items += occurrences(xml, "<item>");
+      counted += Long.parseLong(index.getProperty(pfx + "count"));
+
+      /* Ranges ascend without overlapping */
+      final long lo = Long.parseLong(index.getProperty(pfx + "lo"));
+      assertTrue(lo > lastHi);
+      lastHi = Long.parseLong(index.getProperty(pfx + "hi"));
+      assertTrue(lastHi >= lo);
+    }
+
+    assertEquals(numItems, items);
+    assertEquals(numItems, counted);
+  }
+}
@@ -0,0 +1,114 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+
+public class ParallelRestoreTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("parallelRestore");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static RestoreSource source(final List<TestItem> items) {
+    return new RestoreSource() {
+      @Override
+      public Collection<Class<?>> getClasses() {
+        return List.of(TestItem.class);
+      }
+
+      @Override
+      public Iterator<?> entities(final Class<?> cl) {
+        return items.iterator();
+      }
+    };
+  }
+
+  /* Each item refers to the one before */
+  private static List<TestItem> chain(final long firstId,
+                                      final int len) {
+    final List<TestItem> items = new ArrayList<>();
+    TestItem prev = null;
+
+    for (int i = 0; i < len; i++) {
+      final TestItem item = new TestItem("chain" + (firstId + i));
+      item.setId(firstId + i);
+      item.setSeq(0);
+      item.setParent(prev);
+      items.add(item);
+      prev = item;
+    }
+
+    return items;
+  }
+
+  @Test
+  public void selfReferencesRestoredInOrder() {
+    final ParallelRestore pr = new ParallelRestore(sf, 4, 1, null);
+
+    pr.restore(source(chain(100, 20)));
+
+    assertEquals(20, pr.getRestored());
+    assertEquals(20, pr.getBatches());
+
+    final TestItem last = HibTestSupport.load(sf, 119);
+    assertNotNull(last);
+    assertEquals(118L, (long)last.getParent().getId());
+  }
+
+  @Test
+  public void failureDoesNotStopTheNextRestore() {
+    final ParallelRestore pr = new ParallelRestore(sf, 2, 1, null);
+
+    /* Parent is never restored so the foreign key fails */
+    final TestItem missing = new TestItem("missing");
+    missing.setId(999L);
+    final TestItem orphan = new TestItem("orphan");
+    orphan.setId(200L);
+    orphan.setSeq(0);
+    orphan.setParent(missing);
+
+    assertThrows(RuntimeException.class,
+                 () -> pr.restore(source(List.of(orphan))));
+
+    pr.restore(source(chain(300, 3)));
+
+    assertEquals(3, pr.getRestored());
+    assertNotNull(HibTestSupport.load(sf, 302));
+  }
+}
@@ -0,0 +1,110 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PooledIdGeneratorTest {
+  private static <T> T fake(final Class<T> cl,
+                            final Map<String, Object> results) {
+    return cl.cast(Proxy.newProxyInstance(
+            cl.getClassLoader(), new Class<?>[]{cl},
+            (proxy, method, args) -> results.get(method.getName())));
+  }
+
+  private static EntityPersister persister(final String root,
+                                           final PooledIdGenerator gen) {
+    final Map<String, Object> results = new LinkedHashMap<>();
+    results.put("getRootEntityName", root);
+    results.put("getIdentifierGenerator", gen);
+
+    return fake(EntityPersister.class, results);
+  }
+
+  private static SessionFactoryImplementor factory(
+          final String uuid,
+          final Map<String, EntityPersister> persisters) {
+    final Map<String, Object> mresults = new LinkedHashMap<>();
+    mresults.put("entityPersisters", persisters);
+
+    final Map<String, Object> results = new LinkedHashMap<>();
+    results.put("getMetamodel",
+                fake(MetamodelImplementor.class, mresults));
+    results.put("getUuid", uuid);
+
+    return fake(SessionFactoryImplementor.class, results);
+  }
+
+  private static boolean registered(final String name)
+          throws Exception {
+    return ManagementFactory.getPlatformMBeanServer().isRegistered(
+            new ObjectName(HibMBeans.domain +
+                                   ":type=PooledIdGenerator,name=" +
+                                   ObjectName.quote(name)));
+  }
+
+  @Test
+  public void beansLiveAsLongAsTheirFactory() throws Exception {
+    final PooledIdGenerator gen = new PooledIdGenerator();
+    final Map<String, EntityPersister> persisters =
+            new LinkedHashMap<>();
+
+    /* A subclass shares the generator of its root */
+    persisters.put("Item", persister("Item", gen));
+    persisters.put("SubItem", persister("Item", gen));
+
+    final SessionFactoryImplementor sf1 = factory("one", persisters);
+    final SessionFactoryImplementor sf2 = factory(
+            "two", Map.of("Item", persister("Item",
+                                            new PooledIdGenerator())));
+
+    final PooledIdGeneratorIntegrator.Observer obs1 =
+            new PooledIdGeneratorIntegrator.Observer();
+    final PooledIdGeneratorIntegrator.Observer obs2 =
+            new PooledIdGeneratorIntegrator.Observer();
+
+    obs1.sessionFactoryCreated(sf1);
+    obs2.sessionFactoryCreated(sf2);
+
+    assertTrue(registered("Item@one"));
+    assertTrue(registered("Item@two"));
+
+    obs1.sessionFactoryClosed(sf1);
+
+    assertFalse(registered("Item@one"));
+    assertTrue(registered("Item@two"));
+
+    obs2.sessionFactoryClosed(sf2);
+
+    assertFalse(registered("Item@two"));
+  }
+}
@@ -0,0 +1,50 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+/** Records the calls made on it as strings for the tests.
+ */
+class RecordingSink implements DumpSink {
+  final List<String> calls = new ArrayList<>();
+
+  @Override
+  public void openTag(final QName tag) {
+    calls.add("open " + tag.getLocalPart());
+  }
+
+  @Override
+  public void closeTag(final QName tag) {
+    calls.add("close " + tag.getLocalPart());
+  }
+
+  @Override
+  public void property(final QName tag,
+                       final String val) {
+    calls.add(tag.getLocalPart() + "=" + val);
+  }
+
+  @Override
+  public void flush() {
+  }
+}
@@ -0,0 +1,157 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionGovernorTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("governor");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  @Test
+  public void flushEvictKeepsWrittenEntityAttached() {
+    final SessionGovernor gov = new SessionGovernor("flushEvict");
+    gov.setActionValue(SessionGovernor.Action.flushEvict);
+    gov.setMaxEntities(3);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    sess.setGovernor(gov);
+    sess.setStreaming(true);
+
+    final TestItem parent = new TestItem("parent");
+    final List<TestItem> children = new ArrayList<>();
+    TestItem last = null;
+
+    try {
+      sess.beginTransaction();
+      sess.save(parent);
+
+      for (int i = 0; i < 5; i++) {
+        last = new TestItem("child" + i);
+        last.setParent(parent);
+        sess.save(last);
+        children.add(last);
+      }
+
+      final Session hs = sess.getSession();
+
+      assertTrue(gov.getFlushEvicts() > 0);
+      assertTrue(hs.contains(last));
+      assertTrue("referenced entity evicted", hs.contains(parent));
+      assertFalse(hs.contains(children.get(0)));
+
+      /* Still attached so these are saved at commit */
+      last.setCount(42);
+      parent.setCount(7);
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    final TestItem reloaded = HibTestSupport.load(sf, last.getId());
+    assertNotNull(reloaded);
+    assertEquals(42, reloaded.getCount());
+    assertEquals(7, HibTestSupport.load(sf, parent.getId()).getCount());
+  }
+
+  @Test
+  public void flushEvictOnlyForStreamingSessions() {
+    final SessionGovernor gov = new SessionGovernor("notStreaming");
+    gov.setActionValue(SessionGovernor.Action.flushEvict);
+    gov.setMaxEntities(2);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    sess.setGovernor(gov);
+
+    final List<TestItem> items = new ArrayList<>();
+
+    try {
+      sess.beginTransaction();
+
+      for (int i = 0; i < 5; i++) {
+        final TestItem item = new TestItem("kept" + i);
+        sess.save(item);
+        items.add(item);
+      }
+
+      assertEquals(0, gov.getFlushEvicts());
+      assertEquals(1, gov.getWarnings());
+      assertTrue(sess.getSession().contains(items.get(0)));
+
+      /* The caller still holds the first one */
+      items.get(0).setCount(11);
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+
+    assertEquals(11,
+                 HibTestSupport.load(sf, items.get(0).getId()).getCount());
+  }
+
+  @Test
+  public void warnsOncePerSession() {
+    final SessionGovernor gov = new SessionGovernor("warn");
+    gov.setActionValue(SessionGovernor.Action.warn);
+    gov.setMaxEntities(2);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    sess.setGovernor(gov);
+
+    try {
+      sess.beginTransaction();
+
+      for (int i = 0; i < 5; i++) {
+        sess.save(new TestItem("warn" + i));
+      }
+
+      assertEquals(1, gov.getWarnings());
+      assertEquals(0, gov.getFlushEvicts());
+      assertEquals(5, gov.getEntitiesHighWater());
+      assertEquals(5, sess.getSession().getStatistics().getEntityCount());
+
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.base.exc.persist.BedeworkDatabaseException;
+
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SessionWatchdogTest {
+  private static SessionFactory sf;
+
+  private final SessionWatchdog watchdog =
+          HibSessionFactory.getWatchdog();
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("watchdog");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  @Before
+  public void enable() {
+    watchdog.setMaxSessionAgeSeconds(1);
+    watchdog.setMaxTransactionAgeSeconds(0);
+    watchdog.setEnabled(true);
+  }
+
+  @After
+  public void disable() {
+    watchdog.setEnabled(false);
+    watchdog.setForceClose(false);
+    watchdog.setMaxSessionAgeSeconds(600);
+    watchdog.setMaxTransactionAgeSeconds(120);
+  }
+
+  @Test
+  public void reportsLongOpenSession() throws Exception {
+    final HibSession sess = HibTestSupport.openSession(sf);
+
+    try {
+      assertEquals(1, watchdog.getOpenSessions());
+      assertTrue(watchdog.check().isEmpty());
+
+      Thread.sleep(1100);
+
+      final List<String> res = watchdog.check();
+      assertEquals(1, res.size());
+
+      /* Reporting leaves the session alone */
+      assertTrue(sess.isOpen());
+    } finally {
+      sess.close();
+    }
+
+    assertEquals(0, watchdog.getOpenSessions());
+  }
+
+  @Test
+  public void abandonedSessionIsClosed() throws Exception {
+    watchdog.setForceClose(true);
+
+    final HibSession sess = HibTestSupport.openSession(sf);
+    final TestItem item = new TestItem("abandoned");
+
+    sess.beginTransaction();
+    sess.save(item);
+    sess.flush();
+
+    Thread.sleep(1100);
+
+    assertEquals(1, watchdog.check().size());
+    assertEquals(1, watchdog.getForceClosed());
+
+    /* Closed and rolled back without waiting for the owner */
+    assertFalse(sess.getSession().isOpen());
+    assertEquals(0, watchdog.getOpenSessions());
+    assertNull(HibTestSupport.load(sf, item.getId()));
+
+    /* The owner finds out on its next call */
+    assertThrows(BedeworkDatabaseException.class,
+                 () -> sess.save(new TestItem("after")));
+    assertFalse(sess.isOpen());
+    assertTrue(sess.rolledback());
+  }
+}
@@ -0,0 +1,167 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** A minimal versioned entity for the tests. Mapped in
+ * TestItem.hbm.xml.
+ */
+@Dump(elementName = "item", keyFields = {"id"})
+public class TestItem extends VersionedDbEntity<Long, TestItem> {
+  private static final long serialVersionUID = 1L;
+
+  private String name;
+
+  /* Mapped update="false" */
+  private String created;
+
+  private int count;
+
+  private TestItem parent;
+
+  /* Not mapped */
+  private List<VersionedDbEntity<?, ?>> deleted;
+
+  /** No-arg constructor
+   *
+   */
+  public TestItem() {
+  }
+
+  /**
+   * @param name of the item
+   */
+  public TestItem(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param val the name
+   */
+  public void setName(final String val) {
+    name = val;
+  }
+
+  /**
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param val set when first saved only
+   */
+  public void setCreated(final String val) {
+    created = val;
+  }
+
+  /**
+   * @return set when first saved only
+   */
+  public String getCreated() {
+    return created;
+  }
+
+  /**
+   * @param val a count
+   */
+  public void setCount(final int val) {
+    count = val;
+  }
+
+  /**
+   * @return a count
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @param val the parent item or null
+   */
+  public void setParent(final TestItem val) {
+    parent = val;
+  }
+
+  /**
+   * @return the parent item or null
+   */
+  public TestItem getParent() {
+    return parent;
+  }
+
+  /**
+   * @param val entity to delete when this one is next saved
+   */
+  public void addDeleted(final VersionedDbEntity<?, ?> val) {
+    if (deleted == null) {
+      deleted = new ArrayList<>();
+    }
+
+    deleted.add(val);
+  }
+
+  @Override
+  @NoDump
+  public Collection<VersionedDbEntity<?, ?>> getDeletedEntities() {
+    return deleted;
+  }
+
+  /* ====================================================================
+   *                   Object methods
+   * ==================================================================== */
+
+  @Override
+  public int compareTo(final TestItem that) {
+    if (that == null) {
+      return 1;
+    }
+
+    if (name == null) {
+      return (that.name == null) ? 0 : -1;
+    }
+
+    if (that.name == null) {
+      return 1;
+    }
+
+    return name.compareTo(that.name);
+  }
+
+  @Override
+  public int hashCode() {
+    return (name == null) ? 0 : name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("TestItem{");
+
+    toStringSegment(sb);
+    sb.append(", name=");
+    sb.append(name);
+    sb.append("}");
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.bedework.util.hibernate.derby.DerbyDialect;
+import org.bedework.util.hibernate.h2.H2Dialect;
+
+import org.junit.Test;
+
+import java.sql.Types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpsertDialectTest {
+  private static final String[] keys = {"id"};
+  private static final String[] cols = {"name", "created"};
+  private static final boolean[] updateable = {true, false};
+  private static final int[] sqlTypes = {
+          Types.BIGINT, Types.VARCHAR, Types.VARCHAR};
+
+  private static int markers(final String sql) {
+    return sql.length() - sql.replace("?", "").length();
+  }
+
+  @Test
+  public void orderLeavesOutNonUpdateableColumns() {
+    final int[] order = new H2Dialect().getUpsertParameterOrder(1,
+                                                                updateable);
+
+    /* on id, set name, insert id, name, created */
+    assertArrayEquals(new int[]{0, 1, 0, 1, 2}, order);
+  }
+
+  @Test
+  public void h2UpdatesOnlyUpdateableColumns() {
+    final String sql = new H2Dialect().getUpsertString("t", keys, cols,
+                                                       updateable,
+                                                       sqlTypes);
+
+    assertTrue(sql, sql.contains("update set name = ? when"));
+    assertFalse(sql, sql.contains("created = ?"));
+    assertTrue(sql, sql.contains("insert (id, name, created)"));
+    assertEquals(5, markers(sql));
+  }
+
+  @Test
+  public void h2OmitsUpdateWhenNothingUpdateable() {
+    final String sql = new H2Dialect().getUpsertString(
+            "t", keys, cols, new boolean[]{false, false}, sqlTypes);
+
+    assertFalse(sql, sql.contains("when matched"));
+    assertEquals(4, markers(sql));
+  }
+
+  @Test
+  public void derbyCastsEveryMarker() {
+    final DerbyDialect dialect = new DerbyDialect();
+    final String sql = dialect.getUpsertString("t", keys, cols,
+                                               updateable, sqlTypes);
+
+    assertTrue(sql, sql.contains("using SYSIBM.SYSDUMMY1"));
+    assertTrue(sql, sql.contains(
+            "update set name = cast(? as varchar(32672)) when"));
+    assertFalse(sql, sql.contains("created = cast"));
+    assertEquals(markers(sql), sql.split("cast\\(\\? as ").length - 1);
+    assertEquals(dialect.getUpsertParameterOrder(1, updateable).length,
+                 markers(sql));
+  }
+}
@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.util.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class UpsertTest {
+  private static SessionFactory sf;
+
+  @BeforeClass
+  public static void init() {
+    sf = HibTestSupport.sessionFactory("upsert");
+  }
+
+  @AfterClass
+  public static void destroy() {
+    sf.close();
+  }
+
+  private static void upsert(final TestItem item) {
+    final HibSession sess = HibTestSupport.openSession(sf);
+    try {
+      sess.beginTransaction();
+      sess.upsert(item);
+      sess.commit();
+    } finally {
+      sess.close();
+    }
+  }
+
+  @Test
+  public void insertsNewRow() {
+    final TestItem item = new TestItem("new");
+    item.setId(1000L);
+    item.setCreated("then");
+    item.setCount(3);
+
+    upsert(item);
+
+    final TestItem t = HibTestSupport.load(sf, 1000L);
+    assertNotNull(t);
+    assertEquals("new", t.getName());
+    assertEquals("then", t.getCreated());
+    assertEquals(3, t.getCount());
+  }
+
+  @Test
+  public void updateKeepsUpdateFalseColumns() {
+    final TestItem item = new TestItem("old");
+    item.setCreated("then");
+    HibTestSupport.save(sf, item);
+
+    final TestItem changed = new TestItem("changed");
+    changed.setId(item.getId());
+    changed.setSeq(item.getSeq());
+    changed.setCreated("now");
+    changed.setCount(7);
+
+    upsert(changed);
+
+    final TestItem t = HibTestSupport.load(sf, item.getId());
+    assertEquals("changed", t.getName());
+    assertEquals(7, t.getCount());
+    assertEquals("then", t.getCreated());
+  }
+}